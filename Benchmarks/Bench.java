@@ -0,0 +1,180 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+import Server.ChatStore;
+import Storage.ChatLog;
+import Storage.LogRecord;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static Utilities.Constants.TEXT_MESSAGE;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+class Bench {
+
+    /**
+     * Threads appending to a chat log at the same time, like the request threads of a node
+     */
+    static final int APPENDERS = 32;
+
+    /**
+     * @return argument at an index as a number, or the default if it is missing
+     */
+    static int arg(String[] args, int index, int value) {
+        return args.length > index ? Integer.parseInt(args[index]) : value;
+    }
+
+    /**
+     * @param latencies latencies in nanoseconds, sorted
+     * @return percentile in microseconds
+     */
+    static long percentile(long[] latencies, double percentile) {
+        if (latencies.length == 0)
+            return 0;
+        return latencies[(int) Math.min(latencies.length - 1, Math.ceil(percentile * latencies.length) - 1)] / 1000;
+    }
+
+    /**
+     * Appends records to a chat log from APPENDERS threads and waits until they are all on disk
+     */
+    static void append(ChatLog log, List<LogRecord> records) throws Exception {
+        ExecutorService appenders = Executors.newFixedThreadPool(APPENDERS);
+        AtomicInteger next = new AtomicInteger();
+        IOException[] failure = new IOException[1];
+
+        for (int i = 0; i < APPENDERS; i++) {
+            appenders.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < records.size()) {
+                    try {
+                        log.append(records.get(index));
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return;
+                    }
+                }
+            });
+        }
+
+        appenders.shutdown();
+        appenders.awaitTermination(1, TimeUnit.HOURS);
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * Creates a chat in a store and appends messages to it, one second apart
+     *
+     * @param author  participant sending every message
+     * @param content content of the message at each position
+     * @return chat of the store
+     */
+    static Chat chat(ChatStore store, String name, String author, int messages, IntFunction<byte[]> content) {
+        Chat chat = store.register(new Chat(createHash(name), name));
+        chat.setCreatorEmail(author);
+        chat.addParticipant(author);
+
+        BigInteger authorId = createHash(author);
+        long time = System.currentTimeMillis() - messages * 1000L;
+        for (int i = 0; i < messages; i++)
+            store.append(new ChatMessage(chat.getIdChat(), new Date(time + i * 1000L), authorId, content.apply(i), TEXT_MESSAGE), logged -> true);
+        return chat;
+    }
+
+    /**
+     * @return bytes of an object serialized as it is sent in a message
+     */
+    static long serializedSize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.size();
+    }
+
+    /**
+     * Opens a TLS connection to this process, as between a client and a node or two nodes.
+     * Needs the key and trust stores of a server
+     *
+     * @return accepted end and connecting end of the connection
+     */
+    static Connection[] connect() throws Exception {
+        try (SSLServerSocket serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0)) {
+            serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
+
+            ExecutorService acceptor = Executors.newSingleThreadExecutor();
+            Future<Connection> accepted = acceptor.submit(() -> new Connection((SSLSocket) serverSocket.accept()));
+            Connection connecting = new Connection("localhost", serverSocket.getLocalPort());
+            connecting.connect();
+            acceptor.shutdown();
+            return new Connection[]{accepted.get(), connecting};
+        }
+    }
+
+    /**
+     * @return file of random bytes
+     */
+    static File randomFile(File directory, String name, long size) throws IOException {
+        File file = new File(directory, name);
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random(1);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += bytes.length) {
+                random.nextBytes(bytes);
+                out.write(bytes, 0, (int) Math.min(bytes.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return CPU time used by the process in nanoseconds, both ends of the connections of a benchmark included
+     */
+    static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * Writes a message on a stream shared by several threads
+     */
+    static void write(ObjectOutputStream out, Message message) throws IOException {
+        synchronized (out) {
+            out.writeObject(message);
+            out.reset();
+            out.flush();
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,216 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.CHAIN_HOP;
+import static Utilities.Constants.CHAIN_LENGTH;
+import static Utilities.Constants.CHAIN_UPDATE;
+import static Utilities.Constants.LINK_ACK;
+import static Utilities.Constants.RESPONSIBLE;
+import static Utilities.Constants.SERVER_SUCCESS;
+import static Utilities.Constants.TEXT_MESSAGE;
+
+/**
+ * Throughput of a chain of CHAIN_LENGTH nodes when every hop opens a TLS connection for each update
+ * and when the hops keep one link open and send the updates of several requests on it without waiting.
+ * The nodes after the head run in this process on local ports, the head is the writer threads
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.ChainBenchmark [Updates] [Writers] [FirstPort]
+ */
+public class ChainBenchmark {
+
+    private static final int CONTENT_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        int updates = Bench.arg(args, 0, 2000);
+        int writers = Bench.arg(args, 1, 16);
+        int port = Bench.arg(args, 2, 5500);
+
+        run("Connection per hop", false, updates, writers, port);
+        run("Link per hop", true, updates, writers, port + CHAIN_LENGTH);
+    }
+
+    private static void run(String name, boolean links, int updates, int writers, int port) throws Exception {
+        //the last node is the tail, it has no next hop
+        ArrayList<Hop> chain = new ArrayList<>();
+        Hop next = null;
+        for (int i = CHAIN_LENGTH - 2; i >= 0; i--) {
+            next = new Hop(port + i, next, links);
+            chain.add(0, next);
+        }
+        Hop first = chain.get(0);
+
+        ExecutorService threads = Executors.newFixedThreadPool(writers);
+        AtomicInteger remaining = new AtomicInteger(updates);
+        long[] latencies = new long[updates];
+        Exception[] failure = new Exception[1];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < writers; i++) {
+            threads.execute(() -> {
+                int index;
+                while ((index = remaining.decrementAndGet()) >= 0) {
+                    long sent = System.nanoTime();
+                    try {
+                        first.send(update(index));
+                    } catch (Exception e) {
+                        failure[0] = e;
+                        return;
+                    }
+                    latencies[index] = System.nanoTime() - sent;
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        for (Hop hop : chain)
+            hop.close();
+        if (failure[0] != null)
+            throw failure[0];
+
+        Arrays.sort(latencies);
+        System.out.println(name + " - " + updates + " updates down " + CHAIN_LENGTH + " nodes in " + elapsed / 1000000 + " ms, "
+                + updates * 1000000000L / elapsed + " updates/s"
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " connections: " + chain.stream().mapToLong(hop -> hop.accepted.get()).sum());
+    }
+
+    private static ChatMessage update(int number) {
+        return new ChatMessage(BigInteger.valueOf(number % 64), new Date(), BigInteger.ONE, new byte[CONTENT_SIZE], TEXT_MESSAGE);
+    }
+
+    /**
+     * Node of the chain after the head, applies nothing and only passes the updates on and acks them
+     */
+    private static class Hop {
+        private SSLServerSocket serverSocket;
+        private Hop next;
+        private boolean links;
+        private Link link;
+        private AtomicLong accepted = new AtomicLong();
+        private ExecutorService handlers = Executors.newCachedThreadPool();
+
+        private Hop(int port, Hop next, boolean links) throws IOException {
+            this.next = next;
+            this.links = links;
+            serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port);
+            serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
+            handlers.execute(this::accept);
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    SSLSocket socket = (SSLSocket) serverSocket.accept();
+                    accepted.incrementAndGet();
+                    handlers.execute(() -> serve(socket));
+                }
+            } catch (IOException e) {
+                //closed at the end of the run
+            }
+        }
+
+        /**
+         * Answers the updates of a connection, on a link each update is handled on its own thread
+         */
+        private void serve(SSLSocket socket) {
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+                if (!links) {
+                    Message message = (Message) in.readObject();
+                    forward(message);
+                    Bench.write(out, new Message(SERVER_SUCCESS, BigInteger.ONE, RESPONSIBLE, "", ""));
+                    socket.close();
+                    return;
+                }
+
+                while (true) {
+                    Message message = (Message) in.readObject();
+                    handlers.execute(() -> {
+                        try {
+                            forward(message);
+                            Bench.write(out, new Message(LINK_ACK, BigInteger.ONE, RESPONSIBLE, message.getBody(), "true"));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            System.out.println("Failed to forward update");
+                        }
+                    });
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //the other end closed the connection
+            }
+        }
+
+        private void forward(Message message) throws IOException {
+            if (next != null)
+                next.send((ChatMessage) message.getObject());
+        }
+
+        /**
+         * Sends an update to this node and waits until the tail applied it
+         */
+        private void send(ChatMessage update) throws IOException {
+            if (links) {
+                synchronized (this) {
+                    if (link == null)
+                        link = new Link(connect());
+                }
+                try {
+                    link.send(CHAIN_HOP, update, "").get(1, TimeUnit.MINUTES);
+                } catch (Exception e) {
+                    throw new IOException("Update not acked", e);
+                }
+                return;
+            }
+
+            SSLSocket socket = connect();
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                Bench.write(out, new Message(CHAIN_UPDATE, BigInteger.ONE, RESPONSIBLE, update, BigInteger.ONE));
+                in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                socket.close();
+            }
+        }
+
+        private SSLSocket connect() throws IOException {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket("localhost", serverSocket.getLocalPort());
+            socket.setEnabledCipherSuites(socket.getSupportedCipherSuites());
+            return socket;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            if (link != null)
+                link.close();
+            handlers.shutdownNow();
+        }
+    }
+}
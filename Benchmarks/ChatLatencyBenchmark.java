@@ -0,0 +1,137 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static Utilities.Constants.FILE_CHUNK_SIZE;
+import static Utilities.Constants.IMAGE_MESSAGE;
+import static Utilities.Constants.NEW_MESSAGE;
+import static Utilities.Constants.RESPONSIBLE;
+import static Utilities.Constants.TEXT_MESSAGE;
+import static Utilities.Constants.TRANSFER_WINDOW;
+import static Utilities.Constants.UPLOAD_ACK;
+import static Utilities.Constants.UPLOAD_CHUNK;
+import static Utilities.Constants.UPLOAD_COMPLETE;
+import static Utilities.Constants.UPLOAD_DONE;
+
+/**
+ * Latency of chat messages sent on a TLS connection while a file is uploaded on it. The chunks are sent as
+ * messages with no window, as uploads were, and with sendBulk and a window of chunks given back by the acks
+ * of the receiver, as uploads are. A run with no transfer gives the latency of the connection alone
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.ChatLatencyBenchmark [Messages] [IntervalMs] [Window] [ChunkKiloBytes]
+ */
+public class ChatLatencyBenchmark {
+
+    private interface ChunkSender {
+        void send(Connection connection, Message chunk) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = Bench.arg(args, 0, 500);
+        int interval = Bench.arg(args, 1, 10);
+        int window = Bench.arg(args, 2, TRANSFER_WINDOW);
+        int chunkSize = Bench.arg(args, 3, FILE_CHUNK_SIZE / 1024) * 1024;
+
+        //twice, the first round warms the code up
+        for (int round = 0; round < 2; round++) {
+            run("No transfer", messages, interval, chunkSize, 0, null);
+            run("Chunks as messages, no window", messages, interval, chunkSize, 0, Connection::sendMessage);
+            run("Bulk chunks, window of " + window, messages, interval, chunkSize, window, Connection::sendBulk);
+        }
+    }
+
+    /**
+     * @param window chunks sent and not acked, 0 for no window
+     * @param sender how chunks are sent, null for no transfer
+     */
+    private static void run(String name, int messages, int interval, int chunkSize, int window, ChunkSender sender) throws Exception {
+        Connection[] connection = Bench.connect();
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        AtomicBoolean chatting = new AtomicBoolean(true);
+        Semaphore credits = new Semaphore(window > 0 ? window : Integer.MAX_VALUE);
+
+        //the receiver acks every chunk and records when each chat message arrived
+        Future<long[]> received = threads.submit(() -> {
+            long[] latencies = new long[messages];
+            int count = 0;
+            while (true) {
+                Message message = connection[1].receiveMessage();
+                switch (message.getMessageType()) {
+                    case NEW_MESSAGE:
+                        latencies[count++] = System.nanoTime() - Long.parseLong(message.getBody());
+                        break;
+                    case UPLOAD_CHUNK:
+                        connection[1].sendMessage(new Message(UPLOAD_ACK, BigInteger.ONE, RESPONSIBLE, "1", message.getBody(), Integer.toString(chunkSize)));
+                        break;
+                    case UPLOAD_COMPLETE:
+                        connection[1].sendMessage(new Message(UPLOAD_DONE, BigInteger.ONE, RESPONSIBLE, "1", "1"));
+                        return latencies;
+                }
+            }
+        });
+
+        Future<?> acks = threads.submit(() -> {
+            while (!connection[0].receiveMessage().getMessageType().equals(UPLOAD_DONE))
+                credits.release();
+            return null;
+        });
+
+        Future<Long> uploaded = threads.submit(() -> {
+            long bytes = 0;
+            if (sender == null)
+                return bytes;
+
+            byte[] content = new byte[chunkSize];
+            new Random(1).nextBytes(content);
+            ChatMessage chunk = new ChatMessage(BigInteger.ONE, new Date(), BigInteger.ONE, content, IMAGE_MESSAGE, "file");
+            for (long offset = 0; chatting.get(); offset += chunkSize) {
+                credits.acquire();
+                Message message = new Message(UPLOAD_CHUNK, BigInteger.ONE, RESPONSIBLE, chunk, BigInteger.ONE);
+                message.setBody(Long.toString(offset));
+                sender.send(connection[0], message);
+                bytes += chunkSize;
+            }
+            return bytes;
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            ChatMessage chatMessage = new ChatMessage(BigInteger.ONE, new Date(), BigInteger.ONE, ("message " + i).getBytes(), TEXT_MESSAGE);
+            Message message = new Message(NEW_MESSAGE, BigInteger.ONE, RESPONSIBLE, chatMessage);
+            message.setBody(Long.toString(System.nanoTime()));
+            connection[0].sendMessage(message);
+            Thread.sleep(interval);
+        }
+        chatting.set(false);
+        long bytes = uploaded.get();
+        long elapsed = System.nanoTime() - start;
+        connection[0].sendMessage(new Message(UPLOAD_COMPLETE, BigInteger.ONE, RESPONSIBLE, "1", "0"));
+
+        long[] latencies = received.get();
+        acks.get();
+        threads.shutdown();
+        connection[0].closeConnection();
+        connection[1].closeConnection();
+
+        Arrays.sort(latencies);
+        System.out.println(name + " - messages: " + messages
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " max: " + Bench.percentile(latencies, 1) + "us"
+                + " upload: " + (long) (bytes * 1000000000.0 / elapsed / 1024 / 1024) + " MB/s");
+    }
+}
@@ -0,0 +1,119 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+import Utilities.ChunkSizer;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static Utilities.Constants.DOWNLOADING_FILE;
+import static Utilities.Constants.FILE_CHUNK_SIZE;
+import static Utilities.Constants.IMAGE_MESSAGE;
+import static Utilities.Constants.MAX_FILE_CHUNK_SIZE;
+import static Utilities.Constants.RESPONSIBLE;
+import static Utilities.Utilities.printOverhead;
+
+/**
+ * Envelope overhead and throughput of files sent in chunks over TLS, from 10 KB to 1 GB, with chunks of
+ * FILE_CHUNK_SIZE as transfers had and with chunks sized by a ChunkSizer as transfers have. Small files are
+ * sent many times on the same connection so each size moves tens of MB
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.ChunkBenchmark [MaxMegaBytes]
+ */
+public class ChunkBenchmark {
+
+    private static final long BYTES_PER_SIZE = 64 * 1024 * 1024;
+
+    private interface Sizer {
+        int next();
+
+        void record(long bytes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long maxSize = Bench.arg(args, 0, 1024) * 1024L * 1024L;
+
+        byte[] content = new byte[MAX_FILE_CHUNK_SIZE];
+        new Random(1).nextBytes(content);
+
+        long[] sizes = {10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024, 100 * 1024 * 1024, 1024 * 1024 * 1024};
+        for (long size : sizes) {
+            if (size > maxSize)
+                break;
+            run("Chunks of " + FILE_CHUNK_SIZE / 1024 + " KB", content, size, () -> new Sizer() {
+                public int next() {
+                    return FILE_CHUNK_SIZE;
+                }
+
+                public void record(long bytes) {
+                }
+            });
+            run("Adaptive chunks", content, size, () -> new Sizer() {
+                private ChunkSizer sizer = new ChunkSizer(FILE_CHUNK_SIZE, MAX_FILE_CHUNK_SIZE);
+
+                public int next() {
+                    return sizer.next();
+                }
+
+                public void record(long bytes) {
+                    sizer.record(bytes);
+                }
+            });
+        }
+    }
+
+    private interface Sizers {
+        Sizer create();
+    }
+
+    /**
+     * Sends files of a size one after the other, each with a new sizer as each transfer has its own
+     */
+    private static void run(String name, byte[] content, long size, Sizers sizers) throws Exception {
+        int transfers = (int) Math.max(1, BYTES_PER_SIZE / size);
+        Connection[] connection = Bench.connect();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+
+        long start = System.nanoTime();
+        Future<long[]> sent = sender.submit(() -> {
+            long wire = 0;
+            long chunks = 0;
+            for (int i = 0; i < transfers; i++) {
+                Sizer sizer = sizers.create();
+                for (long offset = 0; offset < size; ) {
+                    int length = (int) Math.min(sizer.next(), size - offset);
+                    ChatMessage chunk = new ChatMessage(BigInteger.ONE, new Date(), BigInteger.ONE, Arrays.copyOf(content, length), IMAGE_MESSAGE, "file");
+                    Message message = new Message(DOWNLOADING_FILE, BigInteger.ONE, RESPONSIBLE, chunk, BigInteger.ONE);
+                    message.setBody(offset + " " + size);
+                    wire += connection[0].sendBulk(message);
+                    sizer.record(length);
+                    offset += length;
+                    chunks++;
+                }
+            }
+            return new long[]{wire, chunks};
+        });
+
+        long received = 0;
+        while (received < size * transfers)
+            received += ((ChatMessage) connection[1].receiveMessage().getObject()).getContent().length;
+        long elapsed = System.nanoTime() - start;
+
+        long[] result = sent.get();
+        sender.shutdown();
+        connection[0].closeConnection();
+        connection[1].closeConnection();
+
+        String label = name + " - " + transfers + " x " + (size < 1024 * 1024 ? size / 1024 + " KB" : size / 1024 / 1024 + " MB");
+        System.out.println(label + " in " + elapsed / 1000000 + " ms, " + (long) (received * 1000000000.0 / elapsed / 1024 / 1024) + " MB/s");
+        printOverhead(label, received, result[0], result[1]);
+    }
+}
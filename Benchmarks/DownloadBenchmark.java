@@ -0,0 +1,129 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static Utilities.Constants.DOWNLOADING_FILE;
+import static Utilities.Constants.DOWNLOAD_STREAM;
+import static Utilities.Constants.FILE_CHUNK_SIZE;
+import static Utilities.Constants.IMAGE_MESSAGE;
+import static Utilities.Constants.RESPONSIBLE;
+
+/**
+ * Throughput and CPU per GB of a file download over TLS when the file is sent as 8 KB chunks each wrapped in a
+ * message, as downloads were, and when a header message is followed by the raw bytes of the file sent with
+ * transferTo, as DOWNLOAD_STREAM does. Both ends run in this process, the CPU time counts both
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.DownloadBenchmark [MegaBytes] [Downloads]
+ */
+public class DownloadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long size = Bench.arg(args, 0, 256) * 1024L * 1024L;
+        int downloads = Bench.arg(args, 1, 3);
+
+        File directory = Files.createTempDirectory("download-benchmark").toFile();
+        try {
+            File file = Bench.randomFile(directory, "file", size);
+            File copy = new File(directory, "copy");
+
+            //twice, the first round warms the code up
+            for (int round = 0; round < 2; round++) {
+                run("Chunk messages", downloads, size, () -> chunked(file, copy, size));
+                run("Stream", downloads, size, () -> streamed(file, copy, size));
+            }
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private interface Download {
+        void run() throws Exception;
+    }
+
+    private static void run(String name, int downloads, long size, Download download) throws Exception {
+        long cpu = Bench.cpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < downloads; i++)
+            download.run();
+        long elapsed = System.nanoTime() - start;
+        cpu = Bench.cpuTime() - cpu;
+
+        long bytes = size * downloads;
+        System.out.println(name + " - " + downloads + " downloads of " + size / 1024 / 1024 + " MB in " + elapsed / 1000000 + " ms, "
+                + (long) (bytes * 1000000000.0 / elapsed / 1024 / 1024) + " MB/s, CPU per GB: " + (long) (cpu * 1024.0 * 1024 * 1024 / bytes / 1000000) + " ms");
+    }
+
+    /**
+     * Sends the file as one message per chunk, each chunk is copied to a new array
+     */
+    private static void chunked(File file, File copy, long size) throws Exception {
+        Connection[] connection = Bench.connect();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+
+        Future<?> sent = sender.submit(() -> {
+            try (FileInputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[FILE_CHUNK_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    ChatMessage chunk = new ChatMessage(BigInteger.ONE, new Date(), BigInteger.ONE, Arrays.copyOf(buffer, read), IMAGE_MESSAGE, file.getName());
+                    connection[0].sendMessage(new Message(DOWNLOADING_FILE, BigInteger.ONE, RESPONSIBLE, chunk));
+                }
+            }
+            return null;
+        });
+
+        try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long received = 0;
+            while (received < size) {
+                ChatMessage chunk = (ChatMessage) connection[1].receiveMessage().getObject();
+                received += out.write(ByteBuffer.wrap(chunk.getContent()), received);
+            }
+        }
+
+        sent.get();
+        sender.shutdown();
+        connection[0].closeConnection();
+        connection[1].closeConnection();
+    }
+
+    /**
+     * Sends a header message and then the bytes of the file, received straight into the copy
+     */
+    private static void streamed(File file, File copy, long size) throws Exception {
+        Connection[] connection = Bench.connect();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+
+        Future<?> sent = sender.submit(() -> {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                connection[0].sendFile(new Message(DOWNLOAD_STREAM, BigInteger.ONE, RESPONSIBLE, file.getName(), Long.toString(size)), in, size);
+            }
+            return null;
+        });
+
+        connection[1].receiveMessage();
+        try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            connection[1].receiveFile(out, size);
+        }
+
+        sent.get();
+        sender.shutdown();
+        connection[0].closeConnection();
+        connection[1].closeConnection();
+    }
+}
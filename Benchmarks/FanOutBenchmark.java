@@ -0,0 +1,225 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.LINK_ACK;
+import static Utilities.Constants.MAX_NUMBER_OF_THREADS;
+import static Utilities.Constants.NEW_MESSAGE_BATCH;
+import static Utilities.Constants.RESPONSIBLE;
+import static Utilities.Constants.SERVER_SUCCESS;
+import static Utilities.Constants.TEXT_MESSAGE;
+
+/**
+ * Cost of delivering a message to the participants of groups of 10, 100 and 1000 spread over the nodes,
+ * sending it once per remote participant on a new TLS connection from MAX_NUMBER_OF_THREADS threads, as
+ * NEW_MESSAGE_TO_PARTICIPANT redirects did, and once per node as a NEW_MESSAGE_BATCH listing its recipients
+ * on the link to the node, as sendMessage does. The sender is one of the nodes, the others run in this
+ * process on local ports and only ack what they get
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.FanOutBenchmark [Nodes] [MessagesToTheGroupOf10] [MessageSize]
+ */
+public class FanOutBenchmark {
+
+    //the redirects were sent with this type, it is no longer handled by the nodes
+    private static final String NEW_MESSAGE_TO_PARTICIPANT = "NEW_MESSAGE_TO_PARTICIPANT";
+
+    private static final int[] GROUP_SIZES = {10, 100, 1000};
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Bench.arg(args, 0, 8);
+        int messages = Bench.arg(args, 1, 20);
+        int size = Bench.arg(args, 2, 256);
+
+        //the sender is node 0
+        ArrayList<Node> remote = new ArrayList<>();
+        for (int i = 1; i < nodes; i++)
+            remote.add(new Node());
+        ArrayList<Link> links = new ArrayList<>();
+        for (Node node : remote)
+            links.add(new Link(node.connect()));
+
+        try {
+            for (int group : GROUP_SIZES) {
+                //fewer messages to the larger groups, a redirect per participant takes long
+                int count = Math.max(2, messages * GROUP_SIZES[0] / group);
+                run("Message per participant", group, nodes, count, size, chatMessage -> perParticipant(remote, chatMessage, group, nodes), remote);
+                run("Batch per node", group, nodes, count, size, chatMessage -> perNode(links, chatMessage, group, nodes), remote);
+            }
+        } finally {
+            for (Link link : links)
+                link.close();
+            for (Node node : remote)
+                node.close();
+        }
+    }
+
+    private interface FanOut {
+        void send(ChatMessage chatMessage) throws Exception;
+    }
+
+    private static void run(String name, int group, int nodes, int messages, int size, FanOut fanOut, ArrayList<Node> remote) throws Exception {
+        long connections = remote.stream().mapToLong(node -> node.accepted.get()).sum();
+        long received = remote.stream().mapToLong(node -> node.messages.get()).sum();
+
+        long[] latencies = new long[messages];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            ChatMessage chatMessage = new ChatMessage(BigInteger.ONE, new Date(), BigInteger.ONE, new byte[size], TEXT_MESSAGE);
+            long sent = System.nanoTime();
+            fanOut.send(chatMessage);
+            latencies[i] = System.nanoTime() - sent;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        connections = remote.stream().mapToLong(node -> node.accepted.get()).sum() - connections;
+        received = remote.stream().mapToLong(node -> node.messages.get()).sum() - received;
+
+        Arrays.sort(latencies);
+        System.out.println(name + " - group of " + group + " over " + nodes + " nodes, " + messages + " messages in " + elapsed / 1000000 + " ms"
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " sends per message: " + received / messages
+                + " connections per message: " + connections / messages);
+    }
+
+    /**
+     * @return node owning a participant, 0 is the sender
+     */
+    private static int owner(int participant, int nodes) {
+        return participant % nodes;
+    }
+
+    /**
+     * Sends the message to every remote participant on a new connection and waits for all of them
+     */
+    private static void perParticipant(ArrayList<Node> remote, ChatMessage chatMessage, int group, int nodes) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(MAX_NUMBER_OF_THREADS);
+        ArrayList<Future<?>> sent = new ArrayList<>();
+        for (int participant = 0; participant < group; participant++) {
+            int owner = owner(participant, nodes);
+            if (owner == 0)
+                continue;
+            Node node = remote.get(owner - 1);
+            BigInteger receiver = BigInteger.valueOf(participant);
+            sent.add(threads.submit(() -> {
+                SSLSocket socket = node.connect();
+                try {
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    Bench.write(out, new Message(NEW_MESSAGE_TO_PARTICIPANT, BigInteger.ONE, RESPONSIBLE, chatMessage, receiver));
+                    in.readObject();
+                } finally {
+                    socket.close();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : sent)
+                future.get();
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    /**
+     * Sends the message once to every node owning participants, with the list of them, and waits for the acks
+     */
+    private static void perNode(ArrayList<Link> links, ChatMessage chatMessage, int group, int nodes) throws Exception {
+        StringBuilder[] recipients = new StringBuilder[nodes];
+        for (int participant = 0; participant < group; participant++) {
+            int owner = owner(participant, nodes);
+            if (owner == 0)
+                continue;
+            if (recipients[owner] == null)
+                recipients[owner] = new StringBuilder();
+            else
+                recipients[owner].append(',');
+            recipients[owner].append(participant).append(":R");
+        }
+
+        ArrayList<CompletableFuture<Boolean>> acked = new ArrayList<>();
+        for (int owner = 1; owner < nodes; owner++)
+            if (recipients[owner] != null)
+                acked.add(links.get(owner - 1).send(NEW_MESSAGE_BATCH, chatMessage, "1 " + recipients[owner]));
+        for (CompletableFuture<Boolean> ack : acked)
+            ack.get(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Node owning participants, answers redirects and acks batches without delivering them
+     */
+    private static class Node {
+        private SSLServerSocket serverSocket;
+        private AtomicLong accepted = new AtomicLong();
+        private AtomicLong messages = new AtomicLong();
+        private ExecutorService handlers = Executors.newCachedThreadPool();
+
+        private Node() throws IOException {
+            serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0);
+            serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
+            handlers.execute(this::accept);
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    SSLSocket socket = (SSLSocket) serverSocket.accept();
+                    accepted.incrementAndGet();
+                    handlers.execute(() -> serve(socket));
+                }
+            } catch (IOException e) {
+                //closed at the end of the benchmark
+            }
+        }
+
+        private void serve(SSLSocket socket) {
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Message message = (Message) in.readObject();
+                    messages.incrementAndGet();
+                    if (message.getMessageType().equals(NEW_MESSAGE_BATCH))
+                        Bench.write(out, new Message(LINK_ACK, BigInteger.ONE, RESPONSIBLE, message.getBody().split(" ")[0], "true"));
+                    else
+                        Bench.write(out, new Message(SERVER_SUCCESS, BigInteger.ONE, RESPONSIBLE, "", ""));
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //the other end closed the connection
+            }
+        }
+
+        private SSLSocket connect() throws IOException {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket("localhost", serverSocket.getLocalPort());
+            socket.setEnabledCipherSuites(socket.getSupportedCipherSuites());
+            return socket;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            handlers.shutdownNow();
+        }
+    }
+}
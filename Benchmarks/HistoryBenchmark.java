@@ -0,0 +1,85 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.ChatStore;
+import Server.User;
+import Storage.HistoryStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static Utilities.Constants.HISTORY_PAGE_SIZE;
+import static Utilities.Constants.HOT_MESSAGE_BYTES;
+
+/**
+ * Time and bytes to open a long chat when the whole chat is sent, as GET_CHAT did, and when only its last page
+ * is sent, then the time to fetch an older page with a cursor, as GET_CHAT_HISTORY does. The older messages of
+ * the chat are in the cold tier, as on a node
+ * <p>
+ * Usage: java Benchmarks.HistoryBenchmark [Messages] [MessageSize] [Opens]
+ */
+public class HistoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = Bench.arg(args, 0, 100000);
+        int size = Bench.arg(args, 1, 100);
+        int opens = Bench.arg(args, 2, 200);
+
+        File directory = Files.createTempDirectory("history-benchmark").toFile();
+        try {
+            run(new ChatStore(new HistoryStore(directory.getPath()), null, HOT_MESSAGE_BYTES), messages, size, opens);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(ChatStore store, int messages, int size, int opens) throws Exception {
+        long start = System.nanoTime();
+        Chat chat = Bench.chat(store, "history", "author@bench", messages, i -> new byte[size]);
+        System.out.println("Appended " + messages + " messages in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        User reader = new User("reader@bench", BigInteger.ONE);
+        Random random = new Random(1);
+
+        //the whole chat is slow, it is opened a few times only
+        long[] latencies = new long[Math.max(1, opens / 20)];
+        long bytes = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            long opened = System.nanoTime();
+            int first = store.first(chat);
+            ArrayList<ChatMessage> all = store.messages(chat, first, store.size(chat));
+            bytes = Bench.serializedSize(ChatStore.view(reader, chat, all, first));
+            latencies[i] = System.nanoTime() - opened;
+        }
+        print("Whole chat", latencies, bytes);
+
+        latencies = new long[opens];
+        for (int i = 0; i < opens; i++) {
+            long opened = System.nanoTime();
+            bytes = Bench.serializedSize(store.view(reader, chat));
+            latencies[i] = System.nanoTime() - opened;
+        }
+        print("Last page", latencies, bytes);
+
+        for (int i = 0; i < opens; i++) {
+            int cursor = HISTORY_PAGE_SIZE + random.nextInt(messages - HISTORY_PAGE_SIZE);
+            long opened = System.nanoTime();
+            bytes = Bench.serializedSize(store.messages(chat, cursor - HISTORY_PAGE_SIZE, cursor));
+            latencies[i] = System.nanoTime() - opened;
+        }
+        print("Page before a random cursor", latencies, bytes);
+    }
+
+    private static void print(String name, long[] latencies, long bytes) {
+        Arrays.sort(latencies);
+        System.out.println(name + " - opens: " + latencies.length
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " bytes: " + bytes);
+    }
+}
@@ -0,0 +1,82 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Server.User;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static Utilities.Utilities.createHash;
+
+/**
+ * Cost of finding the ids of the participants of a chat, as done for every message sent to it, when each email
+ * is hashed and when the ids cached by the chat and the users are read. The lookups run on several threads
+ * at the same time, as request threads do
+ * <p>
+ * Usage: java Benchmarks.IdBenchmark [Participants] [Messages] [Threads]
+ */
+public class IdBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int participants = Bench.arg(args, 0, 100);
+        int messages = Bench.arg(args, 1, 20000);
+        int threads = Bench.arg(args, 2, Bench.APPENDERS);
+
+        Chat chat = new Chat(createHash("bench"), "bench");
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < participants; i++) {
+            User user = new User("user" + i + "@bench", BigInteger.valueOf(i));
+            chat.addParticipant(user.getEmail());
+            users.add(user);
+        }
+
+        //twice, the first round warms the code up
+        for (int round = 0; round < 2; round++) {
+            run("Hashing each email", chat, messages, threads, email -> createHash(email));
+            run("Participant ids of the chat", chat, messages, threads, chat::getParticipantId);
+            run("User ids", users, messages, threads);
+        }
+    }
+
+    private static void run(String name, Chat chat, int messages, int threads, Function<String, BigInteger> id) throws Exception {
+        ArrayList<String> emails = new ArrayList<>(chat.getParticipants());
+        time(name, emails.size(), messages, threads, () -> {
+            for (String email : emails)
+                id.apply(email);
+        });
+    }
+
+    private static void run(String name, ArrayList<User> users, int messages, int threads) throws Exception {
+        time(name, users.size(), messages, threads, () -> {
+            for (User user : users)
+                user.getUserId();
+        });
+    }
+
+    /**
+     * Runs a message worth of lookups a number of times, spread over the threads
+     */
+    private static void time(String name, int participants, int messages, int threads, Runnable message) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            int share = messages / threads + (i < messages % threads ? 1 : 0);
+            pool.execute(() -> {
+                for (int j = 0; j < share; j++)
+                    message.run();
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+
+        long elapsed = System.nanoTime() - start;
+        long lookups = (long) messages * participants;
+        System.out.println(name + " - " + messages + " messages to " + participants + " participants on " + threads
+                + " threads in " + elapsed / 1000000 + " ms, " + elapsed / lookups + " ns per participant");
+    }
+}
@@ -0,0 +1,96 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.ChatStore;
+import Storage.HistoryStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static Utilities.Constants.HOT_MESSAGE_BYTES;
+import static Utilities.Constants.MAX_HISTORY_PAGE_SIZE;
+
+/**
+ * Time to find the position of a sequence number and of a time in a long chat with the indexes of the store,
+ * next to finding them by reading the history from its start, as a scan of the messages did
+ * <p>
+ * Usage: java Benchmarks.IndexBenchmark [Messages] [Queries] [Scans]
+ */
+public class IndexBenchmark {
+
+    private static final int MESSAGE_SIZE = 32;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Bench.arg(args, 0, 1000000);
+        int queries = Bench.arg(args, 1, 10000);
+        int scans = Bench.arg(args, 2, 10);
+
+        File directory = Files.createTempDirectory("index-benchmark").toFile();
+        try {
+            run(new ChatStore(new HistoryStore(directory.getPath()), null, HOT_MESSAGE_BYTES), messages, queries, scans);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(ChatStore store, int messages, int queries, int scans) throws Exception {
+        long start = System.nanoTime();
+        Chat chat = Bench.chat(store, "index", "author@bench", messages, i -> new byte[MESSAGE_SIZE]);
+        System.out.println("Appended " + messages + " messages in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        int first = store.first(chat);
+        long firstTime = store.messages(chat, first, first + 1).get(0).getCreationDate().getTime();
+        Random random = new Random(1);
+
+        long[] latencies = new long[queries];
+        for (int i = 0; i < queries; i++) {
+            long sequence = 1 + random.nextInt(messages);
+            long queried = System.nanoTime();
+            store.positionAfter(chat, sequence);
+            latencies[i] = System.nanoTime() - queried;
+        }
+        print("Position after a sequence number", latencies);
+
+        for (int i = 0; i < queries; i++) {
+            long time = firstTime + random.nextInt(messages) * 1000L;
+            long queried = System.nanoTime();
+            store.positionAt(chat, time);
+            latencies[i] = System.nanoTime() - queried;
+        }
+        print("Position at a time", latencies);
+
+        latencies = new long[scans];
+        for (int i = 0; i < scans; i++) {
+            long sequence = 1 + random.nextInt(messages);
+            long queried = System.nanoTime();
+            scan(store, chat, first, sequence);
+            latencies[i] = System.nanoTime() - queried;
+        }
+        print("Scan to a sequence number", latencies);
+    }
+
+    /**
+     * @return position of the first message after a sequence number, found by reading the chat page by page
+     */
+    private static int scan(ChatStore store, Chat chat, int first, long sequence) {
+        int size = store.size(chat);
+        for (int from = first; from < size; from += MAX_HISTORY_PAGE_SIZE) {
+            ArrayList<ChatMessage> page = store.messages(chat, from, Math.min(size, from + MAX_HISTORY_PAGE_SIZE));
+            for (int i = 0; i < page.size(); i++)
+                if (page.get(i).getSequence() > sequence)
+                    return from + i;
+        }
+        return size;
+    }
+
+    private static void print(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.println(name + " - queries: " + latencies.length
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us");
+    }
+}
@@ -0,0 +1,67 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Messages.Message;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.RESPONSIBLE;
+
+/**
+ * Open connection to a node, messages are numbered and completed as their acks arrive, as on the links of
+ * NodeLinks. The number is the first word of the body of a message and of its ack
+ */
+class Link {
+    private SSLSocket socket;
+    private ObjectOutputStream out;
+    private AtomicLong sequence = new AtomicLong();
+    private ConcurrentHashMap<Long, CompletableFuture<Boolean>> unacked = new ConcurrentHashMap<>();
+
+    Link(SSLSocket socket) throws IOException {
+        this.socket = socket;
+        out = new ObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Message ack = (Message) in.readObject();
+                    CompletableFuture<Boolean> acked = unacked.remove(Long.parseLong(ack.getBody().split(" ")[0]));
+                    if (acked != null)
+                        acked.complete(true);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                for (CompletableFuture<Boolean> acked : unacked.values())
+                    acked.completeExceptionally(e);
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @param body words after the number, may be empty
+     * @return completed once the message is acked
+     */
+    CompletableFuture<Boolean> send(String type, ChatMessage chatMessage, String body) throws IOException {
+        long number = sequence.incrementAndGet();
+        CompletableFuture<Boolean> acked = new CompletableFuture<>();
+        unacked.put(number, acked);
+
+        Message message = new Message(type, BigInteger.ONE, RESPONSIBLE, chatMessage, BigInteger.ONE);
+        message.setBody(body.isEmpty() ? Long.toString(number) : number + " " + body);
+        Bench.write(out, message);
+        return acked;
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,80 @@
+package Benchmarks;
+
+import Chat.ChatMessage;
+import Storage.ChatLog;
+import Storage.LogRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Utilities.Constants.TEXT_MESSAGE;
+
+/**
+ * Sustained append throughput of the chat log and the time an append waits for its record to be on disk,
+ * with APPENDERS threads appending chat messages at the same time. The log prints its fsync latencies at the end
+ * <p>
+ * Usage: java Benchmarks.LogBenchmark [Records] [MessageSize]
+ */
+public class LogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = Bench.arg(args, 0, 100000);
+        int size = Bench.arg(args, 1, 200);
+
+        File directory = Files.createTempDirectory("log-benchmark").toFile();
+        try {
+            run(new ChatLog(directory.getPath()), records, size);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(ChatLog log, int records, int size) throws Exception {
+        ExecutorService appenders = Executors.newFixedThreadPool(Bench.APPENDERS);
+        AtomicInteger next = new AtomicInteger();
+        long[] latencies = new long[records];
+        IOException[] failure = new IOException[1];
+        long time = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < Bench.APPENDERS; i++) {
+            appenders.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < records) {
+                    ChatMessage message = new ChatMessage(BigInteger.valueOf(index % 100), new Date(time + index), BigInteger.ONE, new byte[size], TEXT_MESSAGE);
+                    message.setSequence(index + 1);
+
+                    long appended = System.nanoTime();
+                    try {
+                        log.append(LogRecord.chatMessage(message, BigInteger.ONE));
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return;
+                    }
+                    latencies[index] = System.nanoTime() - appended;
+                }
+            });
+        }
+        appenders.shutdown();
+        appenders.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null)
+            throw failure[0];
+
+        Arrays.sort(latencies);
+        System.out.println("Appended " + records + " records of " + size + " bytes from " + Bench.APPENDERS + " threads in "
+                + elapsed / 1000000 + " ms, " + records * 1000000000L / elapsed + " records/s"
+                + " append p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " max: " + Bench.percentile(latencies, 1.0) + "us");
+        log.printStats();
+    }
+}
@@ -0,0 +1,102 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.ChatStore;
+import Storage.HistoryStore;
+import Storage.PayloadArena;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Utilities.Constants.HOT_MESSAGE_BYTES;
+import static Utilities.Constants.OFF_HEAP_PAYLOAD_BYTES;
+import static Utilities.Constants.TEXT_MESSAGE;
+
+/**
+ * GC time and heap occupancy while APPENDERS threads flood the chats of a store with messages, with the bodies
+ * of the messages in memory on the heap or in the payload arena. Older messages go to the cold tier as on a node.
+ * Each run measures one of the two, the GC counters are per process
+ * <p>
+ * Usage: java Benchmarks.PayloadBenchmark [1 for the arena, 0 for the heap] [Messages] [MessageSize] [Chats]
+ */
+public class PayloadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        boolean offHeap = Bench.arg(args, 0, 1) == 1;
+        int messages = Bench.arg(args, 1, 500000);
+        int size = Bench.arg(args, 2, 1024);
+        int chats = Bench.arg(args, 3, 500);
+
+        File directory = Files.createTempDirectory("payload-benchmark").toFile();
+        try {
+            PayloadArena arena = offHeap ? new PayloadArena(OFF_HEAP_PAYLOAD_BYTES) : null;
+            run(new ChatStore(new HistoryStore(directory.getPath()), arena, HOT_MESSAGE_BYTES), offHeap, messages, size, chats);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(ChatStore store, boolean offHeap, int messages, int size, int chats) throws Exception {
+        ArrayList<Chat> flooded = new ArrayList<>();
+        for (int i = 0; i < chats; i++)
+            flooded.add(Bench.chat(store, "flood " + i, "author@bench", 0, j -> null));
+
+        System.gc();
+        long collections = collections();
+        long collectionTime = collectionTime();
+
+        ExecutorService appenders = Executors.newFixedThreadPool(Bench.APPENDERS);
+        AtomicInteger next = new AtomicInteger();
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < Bench.APPENDERS; i++) {
+            appenders.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < messages) {
+                    Chat chat = flooded.get(index % chats);
+                    store.append(new ChatMessage(chat.getIdChat(), new Date(time + index), BigInteger.ONE, new byte[size], TEXT_MESSAGE), logged -> true);
+                }
+            });
+        }
+        appenders.shutdown();
+        appenders.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        collections = collections() - collections;
+        collectionTime = collectionTime() - collectionTime;
+
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        System.out.println((offHeap ? "Bodies in the arena" : "Bodies on the heap") + " - " + messages + " messages of " + size
+                + " bytes to " + chats + " chats in " + elapsed / 1000000 + " ms"
+                + " gc: " + collections + " collections " + collectionTime + " ms"
+                + " average pause: " + (collections == 0 ? 0 : collectionTime / collections) + " ms"
+                + " heap used after the flood: " + heap / 1024 / 1024 + " MB"
+                + " in memory: " + store.getHotBytes() / 1024 / 1024 + " MB");
+    }
+
+    private static long collections() {
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            collections += Math.max(0, collector.getCollectionCount());
+        return collections;
+    }
+
+    private static long collectionTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, collector.getCollectionTime());
+        return time;
+    }
+}
@@ -0,0 +1,216 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Server.ChatStore;
+import Server.Server;
+import Server.User;
+import Storage.HistoryStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.CLIENT_SUCCESS;
+import static Utilities.Constants.GET_CHAT;
+import static Utilities.Constants.HOT_MESSAGE_BYTES;
+import static Utilities.Constants.MAX_NUMBER_OF_THREADS;
+import static Utilities.Constants.READ_BOUNDED_STALENESS;
+import static Utilities.Constants.READ_CURSOR_REPLICATION_INTERVAL;
+import static Utilities.Constants.READ_YOUR_WRITES;
+import static Utilities.Constants.RESPONSIBLE;
+import static Utilities.Constants.TEXT_MESSAGE;
+import static Utilities.Utilities.threadCpuTime;
+
+/**
+ * CPU used by the primary and by its successor when clients read their chats with GET_CHAT under a skewed load,
+ * a few users make most of the requests, with every read sent to the primary and with the reads sent to the
+ * replica as clients do. One request in ten is a write, it goes to the primary and reaches the replica after a
+ * replication lag, as do the watermarks the primary sends every READ_CURSOR_REPLICATION_INTERVAL. Half the reads
+ * ask for bounded staleness and half for read-your-writes with the latest version of the user. The replica checks
+ * them with the rules of Server.isFreshEnough and sends the reads its copy cannot answer to the primary.
+ * The two nodes run in this process, each with its own store and request threads
+ * <p>
+ * Usage: java Benchmarks.ReplicaReadBenchmark [Requests] [Users] [MessagesPerChat] [Clients] [ReplicationLagMs]
+ */
+public class ReplicaReadBenchmark {
+
+    private static final int MESSAGE_SIZE = 256;
+    private static final int WRITES_EVERY = 10;
+
+    public static void main(String[] args) throws Exception {
+        int requests = Bench.arg(args, 0, 100000);
+        int users = Bench.arg(args, 1, 1000);
+        int messagesPerChat = Bench.arg(args, 2, 100);
+        int clients = Bench.arg(args, 3, 16);
+        int lag = Bench.arg(args, 4, 10);
+
+        File directory = Files.createTempDirectory("replica-read-benchmark").toFile();
+        try {
+            //twice, the first round warms the code up
+            for (int round = 0; round < 2; round++) {
+                run("Reads on the primary", false, new File(directory, "primary" + round), requests, users, messagesPerChat, clients, lag);
+                run("Reads on the replica", true, new File(directory, "replica" + round), requests, users, messagesPerChat, clients, lag);
+            }
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(String name, boolean replicaReads, File directory, int requests, int users, int messagesPerChat, int clients, int lag) throws Exception {
+        Node primary = new Node("primary", new File(directory, "primary"), users, messagesPerChat);
+        Node replica = new Node("replica", new File(directory, "replica"), users, messagesPerChat);
+        ScheduledExecutorService replication = Executors.newSingleThreadScheduledExecutor();
+        //watermarks go after the updates sent before them, on the same lagging replication
+        ScheduledExecutorService watermarks = Executors.newSingleThreadScheduledExecutor();
+        watermarks.scheduleAtFixedRate(() -> {
+            long watermark = System.currentTimeMillis();
+            replication.schedule(() -> replica.watermark.accumulateAndGet(watermark, Math::max), lag, TimeUnit.MILLISECONDS);
+        }, 0, READ_CURSOR_REPLICATION_INTERVAL, TimeUnit.MILLISECONDS);
+
+        ExecutorService threads = Executors.newFixedThreadPool(clients);
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong redirected = new AtomicLong();
+        long[] latencies = new long[requests];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long seed = i;
+            threads.execute(() -> {
+                Random random = new Random(seed);
+                int index;
+                while ((index = next.getAndIncrement()) < requests) {
+                    int user = (int) (Math.pow(random.nextDouble(), 3) * users);
+                    long sent = System.nanoTime();
+                    try {
+                        if (index % WRITES_EVERY == 0)
+                            write(primary, replica, replication, user, lag);
+                        else if (!replicaReads)
+                            primary.handle(() -> primary.read(user));
+                        else {
+                            //the client sends the version of the last write it saw
+                            Message request = new Message(GET_CHAT, primary.users[user].getUserId(), RESPONSIBLE, primary.chats[user].getIdChat().toString());
+                            request.setReadConsistency(random.nextBoolean() ? READ_BOUNDED_STALENESS : READ_YOUR_WRITES);
+                            request.setVersion(primary.users[user].getVersion());
+                            if (!replica.handle(() -> Server.isFreshEnough(replica.users[user], request, replica.watermark.get()) && replica.read(user))) {
+                                redirected.incrementAndGet();
+                                primary.handle(() -> primary.read(user));
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.out.println("Failed to handle request " + index);
+                        return;
+                    }
+                    latencies[index] = System.nanoTime() - sent;
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        watermarks.shutdown();
+        replication.shutdown();
+        replication.awaitTermination(1, TimeUnit.MINUTES);
+        primary.close();
+        replica.close();
+
+        Arrays.sort(latencies);
+        System.out.println(name + " - " + requests + " requests in " + elapsed / 1000000 + " ms, "
+                + (long) (requests * 1000000000.0 / elapsed) + " requests/s"
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " replica reads sent to the primary: " + redirected.get());
+        primary.print(name);
+        replica.print(name);
+    }
+
+    /**
+     * Appends a message to the chat of a user on the primary, the replica gets it after the replication lag
+     */
+    private static void write(Node primary, Node replica, ScheduledExecutorService replication, int user, int lag) throws Exception {
+        long version = primary.handle(() -> {
+            primary.append(user);
+            return primary.users[user].incrementVersion();
+        });
+        replication.schedule(() -> {
+            replica.append(user);
+            replica.users[user].setVersion(version);
+            replica.users[user].setReplicatedAt(System.currentTimeMillis());
+        }, lag, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Node answering requests on MAX_NUMBER_OF_THREADS threads, counting the CPU time they use
+     */
+    private static class Node {
+        private String name;
+        private ChatStore store;
+        private User[] users;
+        private Chat[] chats;
+        private ExecutorService requestThreads = Executors.newFixedThreadPool(MAX_NUMBER_OF_THREADS);
+        private AtomicLong cpu = new AtomicLong();
+        private AtomicLong requests = new AtomicLong();
+        //last watermark of the primary received, used by the replica
+        private AtomicLong watermark = new AtomicLong();
+
+        private Node(String name, File directory, int users, int messagesPerChat) throws IOException {
+            this.name = name;
+            directory.mkdirs();
+            store = new ChatStore(new HistoryStore(directory.getPath()), null, HOT_MESSAGE_BYTES);
+            this.users = new User[users];
+            chats = new Chat[users];
+            for (int i = 0; i < users; i++) {
+                this.users[i] = new User("user" + i + "@bench", BigInteger.ONE);
+                chats[i] = Bench.chat(store, "chat " + i, this.users[i].getEmail(), messagesPerChat, j -> new byte[MESSAGE_SIZE]);
+                this.users[i].addChat(chats[i]);
+            }
+        }
+
+        private <T> T handle(Callable<T> request) throws Exception {
+            return requestThreads.submit(() -> {
+                long cpuStart = threadCpuTime();
+                try {
+                    return request.call();
+                } finally {
+                    cpu.addAndGet(threadCpuTime() - cpuStart);
+                    requests.incrementAndGet();
+                }
+            }).get();
+        }
+
+        /**
+         * Answers GET_CHAT as a node does, the response is serialized as it would be written to the client
+         */
+        private boolean read(int user) throws Exception {
+            Chat chat = store.view(users[user], chats[user]);
+            Bench.serializedSize(new Message(CLIENT_SUCCESS, BigInteger.ONE, RESPONSIBLE, chat));
+            return true;
+        }
+
+        private void append(int user) {
+            Chat chat = chats[user];
+            store.append(new ChatMessage(chat.getIdChat(), new Date(), users[user].getUserId(), new byte[MESSAGE_SIZE], TEXT_MESSAGE), logged -> true);
+        }
+
+        private void close() {
+            requestThreads.shutdown();
+        }
+
+        private void print(String run) {
+            System.out.println(run + " - " + name + " requests: " + requests.get() + " CPU: " + cpu.get() / 1000000 + " ms");
+        }
+    }
+}
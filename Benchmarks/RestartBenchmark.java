@@ -0,0 +1,112 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.User;
+import Storage.ChatLog;
+import Storage.LogRecord;
+import Storage.LogReplay;
+import Storage.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static Utilities.Constants.TEXT_MESSAGE;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Time a node takes to restart from its chat log alone and from a snapshot plus the records logged after it.
+ * The log is written by several threads, as request threads do, so its records are synced in groups
+ * <p>
+ * Usage: java Benchmarks.RestartBenchmark [Users] [ChatsPerUser] [MessagesPerChat] [TailMessages]
+ */
+public class RestartBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int users = Bench.arg(args, 0, 200);
+        int chatsPerUser = Bench.arg(args, 1, 5);
+        int messagesPerChat = Bench.arg(args, 2, 100);
+        int tailMessages = Bench.arg(args, 3, 1000);
+
+        File directory = Files.createTempDirectory("restart-benchmark").toFile();
+        try {
+            run(directory, users, chatsPerUser, messagesPerChat, tailMessages);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(File directory, int users, int chatsPerUser, int messagesPerChat, int tailMessages) throws Exception {
+        ChatLog log = new ChatLog(new File(directory, "log").getPath());
+        File snapshotFile = new File(directory, "snapshot");
+
+        ConcurrentHashMap<BigInteger, User> state = new ConcurrentHashMap<>();
+        ArrayList<LogRecord> members = new ArrayList<>();
+        ArrayList<LogRecord> messages = new ArrayList<>();
+        ArrayList<Chat> chats = new ArrayList<>();
+        long time = System.currentTimeMillis();
+
+        for (int i = 0; i < users; i++) {
+            User user = new User("user" + i + "@bench", BigInteger.valueOf(i));
+            state.put(user.getUserId(), user);
+            members.add(LogRecord.userCreated(user));
+
+            for (int j = 0; j < chatsPerUser; j++) {
+                Chat chat = new Chat(createHash(user.getEmail() + "/" + j), "chat " + j);
+                chat.setCreatorEmail(user.getEmail());
+                chat.addParticipant(user.getEmail());
+                user.addChat(chat);
+                chats.add(chat);
+                members.add(LogRecord.chatCreated(chat));
+                members.add(LogRecord.membership(chat.getIdChat(), user.getUserId(), false));
+
+                for (int k = 0; k < messagesPerChat; k++)
+                    messages.add(LogRecord.chatMessage(message(chat, user, time++, k), user.getUserId()));
+            }
+        }
+
+        long start = System.nanoTime();
+        Bench.append(log, members);
+        Bench.append(log, messages);
+        long records = members.size() + messages.size();
+        System.out.println("Logged " + records + " records in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        start = System.nanoTime();
+        Snapshot.write(snapshotFile, log.getDurableSequence(), state, new ConcurrentHashMap<>(), new ArrayList<>(), new ArrayList<>());
+        System.out.println("Snapshot of " + users + " users and " + chats.size() + " chats written in "
+                + (System.nanoTime() - start) / 1000000 + " ms, " + snapshotFile.length() / 1024 + " KB");
+
+        //messages logged after the snapshot
+        ArrayList<LogRecord> tail = new ArrayList<>();
+        for (int i = 0; i < tailMessages; i++) {
+            Chat chat = chats.get(i % chats.size());
+            User user = state.get(createHash(chat.getCreatorEmail()));
+            tail.add(LogRecord.chatMessage(message(chat, user, time++, messagesPerChat + i), user.getUserId()));
+        }
+        Bench.append(log, tail);
+
+        start = System.nanoTime();
+        long replayed = log.replay(0, new LogReplay(new ConcurrentHashMap<>()));
+        System.out.println("Restart from the log alone: " + replayed + " records in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        start = System.nanoTime();
+        Snapshot snapshot = Snapshot.read(snapshotFile);
+        if (snapshot == null)
+            throw new IOException("Snapshot could not be read");
+        replayed = log.replay(snapshot.getLogSequence(), new LogReplay(snapshot.getUsers()));
+        System.out.println("Restart from the snapshot: " + snapshot.getUsers().size() + " users and " + replayed
+                + " records after it in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private static ChatMessage message(Chat chat, User user, long time, int number) {
+        ChatMessage message = new ChatMessage(chat.getIdChat(), new Date(time), user.getUserId(), ("message " + number).getBytes(), TEXT_MESSAGE);
+        message.setSequence(chat.nextSequence());
+        chat.addChatMessage(message);
+        return message;
+    }
+}
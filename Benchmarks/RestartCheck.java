@@ -0,0 +1,177 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.ChatStore;
+import Server.User;
+import Storage.ChatLog;
+import Storage.HistoryStore;
+import Storage.LogRecord;
+import Storage.LogReplay;
+import Storage.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Utilities.Constants.TEXT_MESSAGE;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Restarts a node from a snapshot written while APPENDERS threads were appending to its chats, as the snapshot
+ * thread of a node does, and checks that every message whose append was acknowledged is in the chats after the
+ * restart, once. Snapshots are written back to back with the log sequence of the one before, as takeSnapshot does,
+ * and the store keeps few bytes in memory so most messages are spilled to the history store
+ * <p>
+ * Usage: java Benchmarks.RestartCheck [Messages] [Chats] [HotKiloBytes] [Rounds]
+ */
+public class RestartCheck {
+
+    private static final int MESSAGE_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Bench.arg(args, 0, 50000);
+        int chats = Bench.arg(args, 1, 20);
+        long hotBytes = Bench.arg(args, 2, 256) * 1024L;
+        int rounds = Bench.arg(args, 3, 5);
+
+        int failed = 0;
+        for (int round = 0; round < rounds; round++) {
+            File directory = Files.createTempDirectory("restart-check").toFile();
+            try {
+                if (!run(directory, messages, chats, hotBytes))
+                    failed++;
+            } finally {
+                Bench.delete(directory);
+            }
+        }
+        System.out.println(failed == 0 ? "Restart check passed " + rounds + " rounds" : "Restart check failed " + failed + " of " + rounds + " rounds");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @return true if the chats after the restart have every acknowledged message once
+     */
+    private static boolean run(File directory, int messages, int chatCount, long hotBytes) throws Exception {
+        ChatLog log = new ChatLog(new File(directory, "log").getPath());
+        File history = new File(directory, "history");
+        File snapshotFile = new File(directory, "snapshot");
+        ChatStore store = new ChatStore(new HistoryStore(history.getPath()), null, hotBytes);
+
+        ConcurrentHashMap<BigInteger, User> users = new ConcurrentHashMap<>();
+        ArrayList<Chat> chats = new ArrayList<>();
+        ArrayList<LogRecord> created = new ArrayList<>();
+        for (int i = 0; i < chatCount; i++) {
+            User user = new User("user" + i + "@bench", BigInteger.ONE);
+            Chat chat = Bench.chat(store, "restart " + i, user.getEmail(), 0, j -> null);
+            user.addChat(chat);
+            users.put(user.getUserId(), user);
+            chats.add(chat);
+            created.add(LogRecord.userCreated(user));
+            created.add(LogRecord.chatCreated(chat));
+            created.add(LogRecord.membership(chat.getIdChat(), user.getUserId(), false));
+        }
+        Bench.append(log, created);
+
+        //messages of each chat whose append was acknowledged
+        HashMap<BigInteger, HashSet<String>> acknowledged = new HashMap<>();
+        for (Chat chat : chats)
+            acknowledged.put(chat.getIdChat(), new HashSet<>());
+
+        AtomicBoolean appending = new AtomicBoolean(true);
+        AtomicInteger snapshots = new AtomicInteger();
+        Thread snapshotter = new Thread(() -> {
+            long lastSequence = 0;
+            while (appending.get()) {
+                long sequence = log.getDurableSequence();
+                store.awaitLogging();
+                try {
+                    Snapshot.write(snapshotFile, lastSequence, users, new ConcurrentHashMap<>(), store.getChats(), new ArrayList<>());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Failed to write snapshot");
+                    return;
+                }
+                lastSequence = sequence;
+                snapshots.incrementAndGet();
+            }
+        });
+        snapshotter.start();
+
+        ExecutorService appenders = Executors.newFixedThreadPool(Bench.APPENDERS);
+        AtomicInteger next = new AtomicInteger();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < Bench.APPENDERS; i++) {
+            appenders.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < messages) {
+                    Chat chat = chats.get(index % chatCount);
+                    BigInteger userId = createHash(chat.getCreatorEmail());
+                    ChatMessage message = new ChatMessage(chat.getIdChat(), new Date(time + index), userId, new byte[MESSAGE_SIZE], TEXT_MESSAGE);
+                    int position = store.append(message, logged -> {
+                        try {
+                            log.append(LogRecord.chatMessage(logged, userId));
+                            return true;
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            System.out.println("Failed to log message");
+                            return false;
+                        }
+                    });
+                    if (position > 0) {
+                        HashSet<String> keys = acknowledged.get(chat.getIdChat());
+                        synchronized (keys) {
+                            keys.add(LogRecord.messageKey(message));
+                        }
+                    }
+                }
+            });
+        }
+        appenders.shutdown();
+        appenders.awaitTermination(1, TimeUnit.HOURS);
+        appending.set(false);
+        snapshotter.join();
+
+        //restart from the last snapshot, written while messages were appended, and the log after it
+        Snapshot snapshot = Snapshot.read(snapshotFile);
+        if (snapshot == null)
+            throw new IOException("Snapshot could not be read");
+        LogReplay replay = new LogReplay(snapshot.getUsers(), snapshot.getChats());
+        log.replay(snapshot.getLogSequence(), replay);
+        ChatStore restarted = new ChatStore(new HistoryStore(history.getPath()), null, hotBytes);
+        for (User user : snapshot.getUsers().values())
+            restarted.recover(user);
+
+        int lost = 0;
+        int duplicated = 0;
+        for (User user : snapshot.getUsers().values()) {
+            for (Chat chat : user.getChats().values()) {
+                HashSet<String> expected = acknowledged.get(chat.getIdChat());
+                HashSet<String> found = new HashSet<>();
+                Chat stored = restarted.get(chat.getIdChat());
+                for (ChatMessage message : restarted.messages(stored, restarted.first(stored), restarted.size(stored)))
+                    if (!found.add(LogRecord.messageKey(message)))
+                        duplicated++;
+                for (String key : expected)
+                    if (!found.contains(key))
+                        lost++;
+            }
+        }
+
+        System.out.println("Restarted after " + messages + " appends and " + snapshots.get() + " snapshots written meanwhile - lost: "
+                + lost + " duplicated: " + duplicated);
+        return lost == 0 && duplicated == 0;
+    }
+}
@@ -0,0 +1,86 @@
+package Benchmarks;
+
+import Chat.Chat;
+import Server.ChatStore;
+import Server.SearchIndex;
+import Server.User;
+import Storage.HistoryStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static Utilities.Constants.HOT_MESSAGE_BYTES;
+
+/**
+ * Throughput of building the search index of the chats of a node and latency of the queries of a user
+ * taking part in all of them. The words of the messages follow a skewed distribution, a few are in most messages
+ * <p>
+ * Usage: java Benchmarks.SearchBenchmark [Chats] [MessagesPerChat] [Queries]
+ */
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 20000;
+    private static final int WORDS_PER_MESSAGE = 12;
+    private static final int HITS_PER_PAGE = 20;
+
+    public static void main(String[] args) throws Exception {
+        int chats = Bench.arg(args, 0, 20);
+        int messagesPerChat = Bench.arg(args, 1, 25000);
+        int queries = Bench.arg(args, 2, 2000);
+
+        File directory = Files.createTempDirectory("search-benchmark").toFile();
+        try {
+            run(new ChatStore(new HistoryStore(directory.getPath()), null, HOT_MESSAGE_BYTES), chats, messagesPerChat, queries);
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(ChatStore store, int chats, int messagesPerChat, int queries) {
+        Random random = new Random(1);
+        User user = new User("reader@bench", BigInteger.ONE);
+        for (int i = 0; i < chats; i++)
+            user.addChat(Bench.chat(store, "search " + i, user.getEmail(), messagesPerChat, j -> text(random).getBytes()));
+
+        SearchIndex index = new SearchIndex(store);
+        long start = System.nanoTime();
+        index.build();
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        long indexed = (long) chats * messagesPerChat;
+        System.out.println("Indexed " + indexed + " messages of " + chats + " chats in " + elapsed / 1000000 + " ms, "
+                + indexed * 1000000000L / elapsed + " messages/s");
+
+        long[] latencies = new long[queries];
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            String query = word(random) + " " + word(random);
+            long queried = System.nanoTime();
+            hits += index.search(user, query, 0, HITS_PER_PAGE).getTotal();
+            latencies[i] = System.nanoTime() - queried;
+        }
+
+        Arrays.sort(latencies);
+        System.out.println("Searched " + queries + " queries of two words over " + chats + " chats"
+                + " p50: " + Bench.percentile(latencies, 0.50) + "us"
+                + " p99: " + Bench.percentile(latencies, 0.99) + "us"
+                + " hits per query: " + hits / queries);
+    }
+
+    private static String text(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_MESSAGE; i++)
+            text.append(word(random)).append(' ');
+        return text.toString();
+    }
+
+    /**
+     * @return word of the vocabulary, low numbers are much more frequent
+     */
+    private static String word(Random random) {
+        double skewed = Math.pow(random.nextDouble(), 3);
+        return "w" + (int) (skewed * VOCABULARY);
+    }
+}
@@ -0,0 +1,228 @@
+package Benchmarks;
+
+import Messages.Message;
+import Protocols.Connection;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static Utilities.Constants.FILE_STREAM;
+import static Utilities.Constants.RESPONSIBLE;
+
+/**
+ * Throughput of a file transfer split into ranges sent at the same time over 1, 2, 4... streams, as uploads
+ * and streamed downloads do, with sendFile and positional receiveFile into one channel. Every stream goes
+ * through a relay on loopback that delays the bytes by the given time in each direction and keeps at most a
+ * window of bytes in flight, as a TCP connection over a long link does, so a single stream is bound by the
+ * window over the round trip
+ * <p>
+ * Needs the key and trust stores of a server, as in the README.
+ * Usage: java Benchmarks.StreamsBenchmark [MegaBytes] [DelayMs] [WindowKiloBytes] [MaxStreams]
+ */
+public class StreamsBenchmark {
+
+    private static final int RELAY_BUFFER_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long size = Bench.arg(args, 0, 64) * 1024L * 1024L;
+        int delay = Bench.arg(args, 1, 20);
+        int window = Bench.arg(args, 2, 256) * 1024;
+        int maxStreams = Bench.arg(args, 3, 8);
+
+        File directory = Files.createTempDirectory("streams-benchmark").toFile();
+        try (SSLServerSocket serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0);
+             Relay relay = new Relay(serverSocket.getLocalPort(), delay, window)) {
+            serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
+            File file = Bench.randomFile(directory, "file", size);
+            File copy = new File(directory, "copy");
+
+            System.out.println("Relay - delay: " + delay + " ms each way, window: " + window / 1024 + " KB");
+            for (int streams = 1; streams <= maxStreams; streams *= 2) {
+                long start = System.nanoTime();
+                transfer(serverSocket, relay, file, copy, size, streams);
+                long elapsed = System.nanoTime() - start;
+
+                if (copy.length() != size || !Arrays.equals(Files.readAllBytes(file.toPath()), Files.readAllBytes(copy.toPath())))
+                    System.out.println("Failed to copy the file with " + streams + " streams");
+                System.out.println("Streams: " + streams + " - " + size / 1024 / 1024 + " MB in " + elapsed / 1000000 + " ms, "
+                        + (long) (size * 1000000000.0 / elapsed / 1024 / 1024) + " MB/s");
+                copy.delete();
+            }
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    /**
+     * Sends the file as one range per stream, each range is received at its offset of the copy
+     */
+    private static void transfer(SSLServerSocket serverSocket, Relay relay, File file, File copy, long size, int streams) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(2 * streams);
+        ArrayList<Connection[]> connections = new ArrayList<>();
+        ArrayList<Future<?>> transferred = new ArrayList<>();
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long range = (size + streams - 1) / streams;
+            for (int i = 0; i < streams; i++) {
+                long offset = i * range;
+                long length = Math.min(range, size - offset);
+                Connection[] connection = connect(serverSocket, relay);
+                connections.add(connection);
+
+                transferred.add(threads.submit(() -> {
+                    connection[0].sendFile(new Message(FILE_STREAM, BigInteger.ONE, RESPONSIBLE, Long.toString(size), Long.toString(offset), Long.toString(length), file.getName()), in, offset, length);
+                    return null;
+                }));
+                transferred.add(threads.submit(() -> {
+                    connection[1].receiveMessage();
+                    connection[1].receiveFile(out, offset, length);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : transferred)
+                future.get();
+        } finally {
+            threads.shutdown();
+            for (Connection[] connection : connections) {
+                connection[0].closeConnection();
+                connection[1].closeConnection();
+            }
+        }
+    }
+
+    /**
+     * @return accepted end and connecting end of a TLS connection through the relay
+     */
+    private static Connection[] connect(SSLServerSocket serverSocket, Relay relay) throws Exception {
+        ExecutorService acceptor = Executors.newSingleThreadExecutor();
+        Future<Connection> accepted = acceptor.submit(() -> new Connection((SSLSocket) serverSocket.accept()));
+        Connection connecting = new Connection("localhost", relay.getPort());
+        connecting.connect();
+        acceptor.shutdown();
+        return new Connection[]{accepted.get(), connecting};
+    }
+
+    /**
+     * Forwards the connections it accepts to a port, delaying the bytes in both directions. Bytes written on
+     * count against the window until the time of the way back passed, as the acks of TCP would
+     */
+    private static class Relay implements AutoCloseable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final ExecutorService threads = Executors.newCachedThreadPool(Relay::daemon);
+        private final ScheduledExecutorService acks = Executors.newSingleThreadScheduledExecutor(Relay::daemon);
+        private final int delay;
+        private final int window;
+
+        Relay(int target, int delay, int window) throws IOException {
+            this.delay = delay;
+            this.window = window;
+
+            threads.execute(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket client = serverSocket.accept();
+                        Socket server = new Socket("localhost", target);
+                        client.setTcpNoDelay(true);
+                        server.setTcpNoDelay(true);
+                        pipe(client, server);
+                        pipe(server, client);
+                    } catch (IOException e) {
+                        //closed at the end of the benchmark
+                    }
+                }
+            });
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private static Thread daemon(Runnable runnable) {
+            Thread thread = new Thread(runnable, "relay");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        /**
+         * One thread reads and queues the bytes with the time they are due, another writes them once due
+         */
+        private void pipe(Socket from, Socket to) {
+            LinkedBlockingQueue<Segment> queue = new LinkedBlockingQueue<>();
+            Semaphore inFlight = new Semaphore(window);
+
+            threads.execute(() -> {
+                try {
+                    InputStream in = from.getInputStream();
+                    byte[] buffer = new byte[Math.min(RELAY_BUFFER_SIZE, window)];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        inFlight.acquire(read);
+                        queue.put(new Segment(Arrays.copyOf(buffer, read), System.nanoTime() + delay * 1000000L));
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //the connection was closed
+                }
+                queue.add(new Segment(null, 0));
+            });
+
+            threads.execute(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    Segment segment;
+                    while ((segment = queue.take()).bytes != null) {
+                        long wait = segment.due - System.nanoTime();
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        out.write(segment.bytes);
+                        out.flush();
+                        int length = segment.bytes.length;
+                        acks.schedule(() -> inFlight.release(length), delay, TimeUnit.MILLISECONDS);
+                    }
+                    to.shutdownOutput();
+                } catch (IOException | InterruptedException e) {
+                    //the connection was closed
+                }
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            threads.shutdownNow();
+            acks.shutdownNow();
+        }
+
+        private static class Segment {
+            private final byte[] bytes;
+            private final long due;
+
+            Segment(byte[] bytes, long due) {
+                this.bytes = bytes;
+                this.due = due;
+            }
+        }
+    }
+}
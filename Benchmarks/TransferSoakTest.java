@@ -0,0 +1,137 @@
+package Benchmarks;
+
+import Storage.FileSessions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.FILE_CHUNK_SIZE;
+import static Utilities.Constants.MAX_OPEN_TRANSFER_FILES;
+
+/**
+ * Soak test of the channels kept open for the files being received. Transfers run back to back for a while,
+ * more of them at the same time than the cap of open channels, and one in ten is abandoned halfway as a client
+ * that goes away would, so its channel is only closed by the idle timeout. The open file descriptors of the
+ * process are printed every second and should stay flat. The same load is then run opening the file for every
+ * chunk, as the transfers did before, to compare the write throughput
+ * <p>
+ * Usage: java Benchmarks.TransferSoakTest [Seconds] [Transfers] [FileKiloBytes]
+ */
+public class TransferSoakTest {
+
+    private static final long IDLE_TIMEOUT = 1000;
+
+    private interface Writer {
+        void write(File file, long offset, byte[] bytes) throws IOException;
+
+        void close(File file) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = Bench.arg(args, 0, 30);
+        int transfers = Bench.arg(args, 1, 2 * MAX_OPEN_TRANSFER_FILES);
+        long fileSize = Bench.arg(args, 2, 1024) * 1024L;
+
+        File directory = Files.createTempDirectory("transfer-soak").toFile();
+        try {
+            FileSessions sessions = new FileSessions(MAX_OPEN_TRANSFER_FILES, IDLE_TIMEOUT);
+            run("Open channels", directory, seconds, transfers, fileSize, new Writer() {
+                public void write(File file, long offset, byte[] bytes) throws IOException {
+                    sessions.write(file, offset, bytes);
+                }
+
+                public void close(File file) throws IOException {
+                    sessions.close(file);
+                }
+            });
+            sessions.printStats();
+
+            run("File opened per chunk", directory, seconds, transfers, fileSize, new Writer() {
+                public void write(File file, long offset, byte[] bytes) throws IOException {
+                    try (FileOutputStream out = new FileOutputStream(file, true)) {
+                        out.write(bytes);
+                    }
+                }
+
+                public void close(File file) {
+                }
+            });
+        } finally {
+            Bench.delete(directory);
+        }
+    }
+
+    private static void run(String name, File directory, int seconds, int transfers, long fileSize, Writer writer) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(transfers);
+        AtomicLong written = new AtomicLong();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger abandoned = new AtomicInteger();
+        AtomicInteger next = new AtomicInteger();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+
+        for (int i = 0; i < transfers; i++) {
+            threads.execute(() -> {
+                byte[] chunk = new byte[FILE_CHUNK_SIZE];
+                while (System.currentTimeMillis() < end) {
+                    int number = next.incrementAndGet();
+                    File file = new File(directory, "transfer" + number);
+                    boolean abandon = number % 10 == 0;
+                    try {
+                        for (long offset = 0; offset < fileSize && System.currentTimeMillis() < end; offset += chunk.length) {
+                            if (abandon && offset >= fileSize / 2)
+                                break;
+                            writer.write(file, offset, chunk);
+                            written.addAndGet(chunk.length);
+                        }
+                        if (abandon) {
+                            abandoned.incrementAndGet();
+                        } else {
+                            writer.close(file);
+                            completed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.out.println("Failed to write transfer " + number);
+                        return;
+                    }
+                    file.delete();
+                }
+            });
+        }
+        threads.shutdown();
+
+        long start = System.nanoTime();
+        long maxOpen = 0;
+        while (!threads.awaitTermination(1, TimeUnit.SECONDS)) {
+            long open = openFiles();
+            maxOpen = Math.max(maxOpen, open);
+            System.out.println(name + " - open file descriptors: " + open + " written: " + written.get() / 1024 / 1024 + " MB");
+        }
+        long elapsed = System.nanoTime() - start;
+
+        //abandoned channels are closed once idle
+        Thread.sleep(2 * IDLE_TIMEOUT);
+        System.out.println(name + " - " + completed.get() + " transfers completed and " + abandoned.get() + " abandoned by "
+                + transfers + " threads, " + (long) (written.get() * 1000000000.0 / elapsed / 1024 / 1024) + " MB/s"
+                + " open file descriptors max: " + maxOpen + " after the idle timeout: " + openFiles());
+    }
+
+    /**
+     * @return open file descriptors of the process, -1 if the platform does not tell
+     */
+    private static long openFiles() {
+        OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+        if (system instanceof com.sun.management.UnixOperatingSystemMXBean)
+            return ((com.sun.management.UnixOperatingSystemMXBean) system).getOpenFileDescriptorCount();
+        return -1;
+    }
+}
@@ -17,10 +17,51 @@ public class Chat implements Serializable {
     private String chatName;
     private String creatorEmail;
     private Set<String> participants;
+
+    /**
+     * Ids of the participants by email, each email is hashed once, not serialized
+     */
+    private transient volatile ConcurrentHashMap<String, BigInteger> participantIds;
     private ArrayList<ChatMessage> chatMessages;
     private ArrayList<ChatMessage> pendingChatMessages;
     private ConcurrentHashMap<BigInteger, PublicKey> usersPubKeys;
 
+    /**
+     * Position in the chat history of the first message in chatMessages, older messages are fetched by page
+     */
+    private int historyOffset;
+
+    /**
+     * Position before which the history is kept by the store the chat was promoted from, 0 if there is none
+     */
+    private int handover;
+
+    /**
+     * Last sequence number given to a change of the chat, clients send it back to get only later changes
+     */
+    private long sequence;
+
+    /**
+     * Sequence number of the last change of the participants or their public keys
+     */
+    private long membershipSequence;
+
+    /**
+     * Sequence number of the newest message added, messages logged with a higher one may not be added yet
+     */
+    private long messageSequence;
+
+    /**
+     * Limits of the history of the chat, null keeps every message
+     */
+    private RetentionPolicy retention;
+
+    /**
+     * True if the messages of the chat are kept by the node responsible for the chat id and this copy only
+     * follows the number of messages and the sequence number
+     */
+    private volatile boolean reference;
+
     public Chat(String creatorEmail, String name) {
         this.idChat = Utilities.generateChatId(creatorEmail);
         this.creatorEmail = creatorEmail;
@@ -47,6 +88,10 @@ public class Chat implements Serializable {
         return creatorEmail;
     }
 
+    public void setCreatorEmail(String creatorEmail) {
+        this.creatorEmail = creatorEmail;
+    }
+
     public String getChatName() {
         return chatName;
     }
@@ -63,8 +108,35 @@ public class Chat implements Serializable {
         return participants;
     }
 
-    public void addParticipant(String email) {
+    public synchronized void addParticipant(String email) {
         participants.add(email);
+        getParticipantId(email);
+    }
+
+    /**
+     * @param email email of a participant
+     * @return id of the participant
+     */
+    public BigInteger getParticipantId(String email) {
+        ConcurrentHashMap<String, BigInteger> ids = participantIds;
+        if (ids == null) {
+            synchronized (this) {
+                if (participantIds == null)
+                    participantIds = new ConcurrentHashMap<>();
+                ids = participantIds;
+            }
+        }
+        return ids.computeIfAbsent(email, Utilities::createHash);
+    }
+
+    /**
+     * @return ids of the participants
+     */
+    public ArrayList<BigInteger> getParticipantIds() {
+        ArrayList<BigInteger> ids = new ArrayList<>(participants.size());
+        for (String email : participants)
+            ids.add(getParticipantId(email));
+        return ids;
     }
 
     public ArrayList<ChatMessage> getChatMessages() {
@@ -77,12 +149,161 @@ public class Chat implements Serializable {
 
     public void addChatMessage(ChatMessage chatMessage) {
         chatMessages.add(chatMessage);
+        messageSequence = Math.max(messageSequence, chatMessage.getSequence());
     }
 
-    public void addPendingChatMessage(ChatMessage chatMessage) {
+    public synchronized void addPendingChatMessage(ChatMessage chatMessage) {
         pendingChatMessages.add(chatMessage);
     }
 
+    /**
+     * Copy of this chat with other messages, used to answer a user with its own view of the chat
+     *
+     * @param historyOffset   position in the chat history of the first message
+     * @param messages        messages the user already received
+     * @param pendingMessages messages the user did not see yet
+     * @return chat copy
+     */
+    public Chat withMessages(int historyOffset, ArrayList<ChatMessage> messages, ArrayList<ChatMessage> pendingMessages) {
+        Chat copy = new Chat(idChat, chatName);
+        copy.creatorEmail = creatorEmail;
+        copy.participants.addAll(participants);
+        copy.usersPubKeys.putAll(usersPubKeys);
+        copy.chatMessages = messages;
+        copy.pendingChatMessages = pendingMessages;
+        copy.historyOffset = historyOffset;
+        copy.sequence = sequence;
+        copy.membershipSequence = membershipSequence;
+        copy.retention = retention;
+        return copy;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized long getMembershipSequence() {
+        return membershipSequence;
+    }
+
+    public synchronized long getMessageSequence() {
+        return messageSequence;
+    }
+
+    /**
+     * @return sequence number for a new message of the chat
+     */
+    public synchronized long nextSequence() {
+        return ++sequence;
+    }
+
+    /**
+     * Gives a sequence number to a change of the participants or their public keys
+     */
+    public synchronized void membershipChanged() {
+        membershipSequence = ++sequence;
+    }
+
+    /**
+     * Moves the sequence forward to a sequence number given by another node or found in the log
+     *
+     * @param sequence sequence number already used
+     */
+    public synchronized void advanceSequence(long sequence) {
+        this.sequence = Math.max(this.sequence, sequence);
+    }
+
+    /**
+     * Sets the sequence numbers read from a snapshot
+     */
+    public synchronized void setSequences(long sequence, long membershipSequence, long messageSequence) {
+        this.sequence = sequence;
+        this.membershipSequence = membershipSequence;
+        this.messageSequence = messageSequence;
+    }
+
+    /**
+     * Applies the changes of a chat since the last sequence number this copy had, used by clients.
+     * Messages this copy already has, such as the ones sent from it, are skipped
+     *
+     * @param delta chat with the new messages and, if they changed, the participants and public keys
+     */
+    public synchronized void applyDelta(Chat delta) {
+        participants.addAll(delta.participants);
+        usersPubKeys.putAll(delta.usersPubKeys);
+
+        HashSet<String> known = new HashSet<>();
+        for (ChatMessage message : chatMessages)
+            known.add(message.getUserId() + ":" + message.getCreationDate().getTime());
+        for (ChatMessage message : pendingChatMessages)
+            known.add(message.getUserId() + ":" + message.getCreationDate().getTime());
+
+        for (ChatMessage message : delta.chatMessages) {
+            if (known.add(message.getUserId() + ":" + message.getCreationDate().getTime()))
+                chatMessages.add(message);
+        }
+        for (ChatMessage message : delta.pendingChatMessages) {
+            if (known.add(message.getUserId() + ":" + message.getCreationDate().getTime()))
+                pendingChatMessages.add(message);
+        }
+
+        sequence = Math.max(sequence, delta.sequence);
+        membershipSequence = Math.max(membershipSequence, delta.membershipSequence);
+    }
+
+    public int getHistoryOffset() {
+        return historyOffset;
+    }
+
+    public void setHistoryOffset(int historyOffset) {
+        this.historyOffset = historyOffset;
+    }
+
+    public int getHandover() {
+        return handover;
+    }
+
+    public void setHandover(int handover) {
+        this.handover = handover;
+    }
+
+    public boolean isReference() {
+        return reference;
+    }
+
+    public void setReference(boolean reference) {
+        this.reference = reference;
+    }
+
+    public RetentionPolicy getRetention() {
+        return retention;
+    }
+
+    public void setRetention(RetentionPolicy retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Drops the oldest messages held in memory, the node keeps them in its cold tier unless they expired
+     *
+     * @param count number of messages dropped
+     */
+    public synchronized void dropOldestMessages(int count) {
+        chatMessages.subList(0, count).clear();
+        historyOffset += count;
+    }
+
+    /**
+     * Adds a page of older messages before the messages already loaded
+     *
+     * @param historyOffset position in the chat history of the first message of the page
+     * @param messages      page of messages
+     */
+    public void addOlderMessages(int historyOffset, ArrayList<ChatMessage> messages) {
+        chatMessages.addAll(0, messages);
+        this.historyOffset = historyOffset;
+    }
+
     public ConcurrentHashMap<BigInteger, PublicKey> getUsersPubKeys() {
         return usersPubKeys;
     }
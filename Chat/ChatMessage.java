@@ -1,5 +1,11 @@
 package Chat;
 
+import Storage.PayloadArena;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.Date;
@@ -13,6 +19,17 @@ public class ChatMessage implements Serializable {
     private BigInteger chatId;
     private String filename;
 
+    /**
+     * Sequence number given by the chat of the node that stored the message
+     */
+    private long sequence;
+
+    /**
+     * Handle of the content in the arena of the node once it was moved off the heap, content is then null
+     */
+    private transient PayloadArena arena;
+    private transient long payload = -1;
+
     public ChatMessage(BigInteger chatId, Date creationDate, BigInteger userId, byte[] content, String type) {
         this.chatId = chatId;
         this.creationDate = creationDate;
@@ -30,6 +47,10 @@ public class ChatMessage implements Serializable {
         this.filename = filename;
     }
 
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
     public BigInteger getUserId() {
         return userId;
     }
@@ -38,10 +59,67 @@ public class ChatMessage implements Serializable {
         return chatId;
     }
 
-    public byte[] getContent() {
+    public synchronized byte[] getContent() {
+        if (content == null && arena != null)
+            return arena.read(payload);
         return content;
     }
 
+    /**
+     * @return length of the content, -1 if there is none
+     */
+    public synchronized int getContentLength() {
+        if (content == null && arena != null)
+            return arena.length(payload);
+        return content == null ? -1 : content.length;
+    }
+
+    /**
+     * Writes the content to a stream without copying an off-heap content to the heap first
+     *
+     * @param out stream
+     */
+    public void writeContent(OutputStream out) throws IOException {
+        byte[] heapContent;
+        PayloadArena offHeap;
+        long handle;
+        synchronized (this) {
+            heapContent = content;
+            offHeap = arena;
+            handle = payload;
+        }
+
+        if (heapContent != null || offHeap == null) {
+            if (heapContent != null)
+                out.write(heapContent);
+            return;
+        }
+        offHeap.writeTo(handle, out);
+        //keeps this message, and so its content, reachable until the copy is done
+        synchronized (this) {
+            if (payload != handle)
+                throw new IOException("Content released while written");
+        }
+    }
+
+    /**
+     * Moves the content to an off-heap arena, it stays on the heap if the arena is full
+     *
+     * @param arena arena of the node
+     */
+    public synchronized void moveOffHeap(PayloadArena arena) {
+        if (content == null || this.arena != null)
+            return;
+
+        long handle = arena.store(content, this);
+        if (handle < 0)
+            return;
+
+        this.arena = arena;
+        this.payload = handle;
+        this.content = null;
+    }
+
     public String getType() {
         return type;
     }
@@ -50,4 +128,36 @@ public class ChatMessage implements Serializable {
         return filename;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * An off-heap content is written after the fields, so the receiver always gets it on its heap
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        boolean offHeap;
+        synchronized (this) {
+            out.defaultWriteObject();
+            offHeap = content == null && arena != null;
+        }
+        out.writeInt(offHeap ? getContentLength() : -1);
+        if (offHeap)
+            writeContent(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        payload = -1;
+        int length = in.readInt();
+        if (length >= 0) {
+            content = new byte[length];
+            in.readFully(content);
+        }
+    }
+
 }
@@ -0,0 +1,58 @@
+package Chat;
+
+import java.io.Serializable;
+
+import static Utilities.Constants.RETENTION_MAX_AGE;
+import static Utilities.Constants.RETENTION_MAX_BYTES;
+import static Utilities.Constants.RETENTION_MAX_COUNT;
+
+/**
+ * How long the messages of a chat are kept, a limit of 0 means no limit.
+ * The policy travels with the chat, so every node and replica holding the chat drops the same messages
+ */
+public class RetentionPolicy implements Serializable {
+
+    private long maxAge;
+    private long maxCount;
+    private long maxBytes;
+
+    public RetentionPolicy(long maxAge, long maxCount, long maxBytes) {
+        this.maxAge = maxAge;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return policy of the node for new chats, overridden by -DretentionMaxAge, -DretentionMaxCount and -DretentionMaxBytes
+     */
+    public static RetentionPolicy defaults() {
+        return new RetentionPolicy(Long.getLong("retentionMaxAge", RETENTION_MAX_AGE),
+                Long.getLong("retentionMaxCount", RETENTION_MAX_COUNT),
+                Long.getLong("retentionMaxBytes", RETENTION_MAX_BYTES));
+    }
+
+    /**
+     * @return milliseconds a message is kept after it was created
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return number of messages kept
+     */
+    public long getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * @return bytes of messages kept
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isUnlimited() {
+        return maxAge <= 0 && maxCount <= 0 && maxBytes <= 0;
+    }
+}
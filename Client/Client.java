@@ -4,22 +4,36 @@ import Chat.Chat;
 import Chat.ChatMessage;
 import Messages.Message;
 import Protocols.ClientConnection;
+import Protocols.Connection;
 import Server.Node;
 import Server.User;
+import Storage.FileSessions;
+import Utilities.ChunkSizer;
 import Utilities.Constants;
 
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import static Client.Client.Task.*;
 import static Utilities.Constants.*;
@@ -30,7 +44,13 @@ public class Client extends User {
 
     private Scanner scannerIn;
     private ExecutorService threadPool = Executors.newFixedThreadPool(MAX_NUMBER_OF_REQUESTS);
-    private ClientConnection connection;
+    private volatile ClientConnection connection;
+
+    /**
+     * Connection to the node holding the backup of this client, used for reads
+     */
+    private ClientConnection replicaConnection;
+    private long lastWriteVersion = -1;
 
     private Task actualState;
     private ConcurrentHashMap<BigInteger, Chat> chats;
@@ -44,6 +64,23 @@ public class Client extends User {
     private int recoverServerPort;
     private String recoverServerIp;
 
+    /**
+     * Extra connections to the server the ranges of uploads are sent on, and the threads sending them
+     */
+    private ArrayList<ClientConnection> transferConnections = new ArrayList<>();
+    private ExecutorService transferPool = Executors.newCachedThreadPool();
+
+    /**
+     * Uploads in progress, by chat id and filename
+     */
+    private ConcurrentHashMap<String, FileUpload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes received of the files being downloaded in chunks, each one written on its own open channel
+     */
+    private ConcurrentHashMap<File, Long> downloads = new ConcurrentHashMap<>();
+    private FileSessions fileSessions = new FileSessions(MAX_OPEN_TRANSFER_FILES, TRANSFER_IDLE_TIMEOUT);
+
     /**
      * Client
      */
@@ -130,7 +167,7 @@ public class Client extends User {
     public void signInMenu() {
         actualState = Task.HOLDING;
         currentChat = Constants.NO_CHAT_OPPEN;
-        String menu = "\n Menu " + "\n 1. Create a new Chat" + "\n 2. Open Chat" + "\n 3. Send Files" + "\n 4. Download Files" + "\n 5. Sign Out" + "\n";
+        String menu = "\n Menu " + "\n 1. Create a new Chat" + "\n 2. Open Chat" + "\n 3. Send Files" + "\n 4. Download Files" + "\n 5. Search Messages" + "\n 6. Sign Out" + "\n";
         System.out.println(menu);
 
 
@@ -153,6 +190,9 @@ public class Client extends User {
                 downloadFile();
                 break;
             case 5:
+                searchMessages();
+                break;
+            case 6:
                 signOut();
                 break;
             default:
@@ -183,8 +223,7 @@ public class Client extends User {
             else {
                 Message message = new Message(GET_CHAT, getClientId(), RESPONSIBLE, requiredChatId.toString());
                 actualState = Task.WAITING_FOR_CHAT;
-                message.getBody();
-                connection.sendMessage(message);
+                sendRead(message, READ_YOUR_WRITES);
             }
         } else signInMenu();
 
@@ -233,12 +272,103 @@ public class Client extends User {
 
             actualState = Task.DOWNLOADING_FILE;
 
-            Message saveFile = new Message(DOWNLOAD_FILE, getClientId(), RESPONSIBLE, path, getClientId());
-            connection.sendMessage(saveFile);
+            //the chunked path is kept to compare both, -DchunkedDownload=true
+            if (Boolean.getBoolean("chunkedDownload")) {
+                Message saveFile = new Message(DOWNLOAD_FILE, getClientId(), RESPONSIBLE, path, getClientId());
+                connection.sendMessage(saveFile);
+                return;
+            }
+
+            streamFile(path);
+            signInMenu();
 
         } else signInMenu();
     }
 
+    /**
+     * Downloads a file in parts, each on a connection opened for it, the server sends a FILE_STREAM header
+     * followed by the raw bytes of the part and the parts are written at their offsets as they arrive.
+     * The number of parts is set with -DtransferStreams
+     *
+     * @param path path of the file on the server
+     */
+    private void streamFile(String path) {
+        int streams = Math.max(1, Integer.getInteger("transferStreams", TRANSFER_STREAMS));
+        File file = new File("data/client/" + getClientId().intValue() + "/" + path.split("/", 3)[2]);
+        file.getParentFile().mkdirs();
+
+        long start = System.nanoTime();
+        AtomicLong cpu = new AtomicLong();
+        ExecutorService streamPool = Executors.newFixedThreadPool(streams);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ArrayList<Future<long[]>> parts = new ArrayList<>();
+            for (int part = 0; part < streams; part++) {
+                int index = part;
+                parts.add(streamPool.submit(() -> {
+                    long cpuStart = threadCpuTime();
+                    try {
+                        return streamPart(path, index, streams, channel);
+                    } finally {
+                        cpu.addAndGet(threadCpuTime() - cpuStart);
+                    }
+                }));
+            }
+
+            long size = 0;
+            long received = 0;
+            for (Future<long[]> part : parts) {
+                long[] range = part.get();
+                size = range[0];
+                received += range[1];
+            }
+            if (received != size)
+                throw new IOException("Received " + received + " of " + size + " bytes");
+
+            printThroughput("Downloaded " + file.getPath() + " on " + streams + " streams", size, System.nanoTime() - start, cpu.get());
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            System.out.println("Error downloading file");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streamPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads a part of a file on a connection opened for it
+     *
+     * @param path    path of the file on the server
+     * @param part    index of the part
+     * @param parts   number of parts
+     * @param channel file the part is written to, at its offset
+     * @return size of the file and bytes of the part
+     */
+    private long[] streamPart(String path, int part, int parts, FileChannel channel) throws IOException, ClassNotFoundException {
+        Connection dataConnection = new Connection(serverIp, serverPort);
+
+        try {
+            dataConnection.connect();
+            dataConnection.sendMessage(new Message(DOWNLOAD_STREAM, getClientId(), RESPONSIBLE, Integer.toString(part), Integer.toString(parts), path));
+            Message header = dataConnection.receiveMessage();
+
+            if (!header.getMessageType().equals(FILE_STREAM)) {
+                printError(header.getBody().split(" ")[0]);
+                throw new FileNotFoundException(path);
+            }
+
+            String[] body = header.getBody().split(" ", 4);
+            long offset = Long.parseLong(body[1]);
+            long length = Long.parseLong(body[2]);
+            dataConnection.receiveFile(channel, offset, length);
+
+            return new long[]{Long.parseLong(body[0]), length};
+        } finally {
+            dataConnection.closeConnection();
+        }
+    }
+
     public void sendFiles() {
         Console console = System.console();
         BigInteger[] tempChats;
@@ -262,55 +392,267 @@ public class Client extends User {
             System.out.println("chatId " + requiredChatId);
             Date date = new Date();
 
-            FileInputStream inputStream;
-
-
-            try {
-                inputStream = new FileInputStream(filename);
-            } catch (FileNotFoundException e) {
+            File file = new File(filename);
+            if (!file.isFile()) {
                 System.out.println("Could not open file to backup.");
                 signInMenu();
                 return;
             }
 
-            ChatMessage chatMessage = new ChatMessage(requiredChatId, date, getClientId(), null, IMAGE_MESSAGE, filename);
-            Message saveFile = new Message(STORE_FILE_MESSAGE, getClientId(), RESPONSIBLE, chatMessage, getClientId());
-            connection.sendMessage(saveFile);
-
-            try {
+            ChatMessage chatMessage = new ChatMessage(requiredChatId, date, getClientId(), null, IMAGE_MESSAGE, file.getName());
+            FileUpload upload = new FileUpload(file, chatMessage);
+            uploads.put(upload.key(), upload);
 
-                int bytesRead;
-                byte[] chunk = new byte[8192];
+            Message startUpload = new Message(UPLOAD_START, getClientId(), RESPONSIBLE, chatMessage, getClientId());
+            startUpload.setBody(Long.toString(upload.size));
+            connection.sendMessage(startUpload);
 
-                while ((bytesRead = inputStream.read(chunk)) != -1) {
+            signInMenu();
 
-                    byte[] chunkToSend = new byte[bytesRead];
-                    System.arraycopy(chunk, 0, chunkToSend, 0, bytesRead);
+        } else signInMenu();
+    }
 
-                    Message messageToSend = null;
-                    ChatMessage chatMessageToSend = new ChatMessage(requiredChatId, date, getClientId(), chunkToSend, IMAGE_MESSAGE, filename);
+    /**
+     * Sends the chunks of an upload from the offset the server asked for, split in ranges sent on concurrent
+     * connections, -DtransferStreams. Each range has at most the window of the server not acknowledged,
+     * without acks for a while the server is asked where to resume
+     *
+     * @param message UPLOAD_READY message
+     */
+    public void continueUpload(Message message) {
+        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        FileUpload upload = uploads.get(chatMessage.getChatId() + "/" + chatMessage.getFilename());
+        if (upload == null)
+            return;
 
-                    messageToSend = new Message(FILE_TRANSACTION, getClientId(), RESPONSIBLE, chatMessageToSend, getClientId());
+        String[] body = message.getBody().split(" ");
+        long offset = Long.parseLong(body[1]);
+        int chunkSize = Integer.parseInt(body[2]);
+        int window = body.length > 3 ? Integer.parseInt(body[3]) : TRANSFER_WINDOW;
+        int maxChunkSize = body.length > 4 ? Integer.parseInt(body[4]) : chunkSize;
+        int streams = Math.max(1, Integer.getInteger("transferStreams", TRANSFER_STREAMS));
+
+        //ranges of whole chunks, small files use fewer streams
+        int ranges = (int) Math.max(1, Math.min(streams, (upload.size - offset) / MIN_TRANSFER_RANGE));
+        long rangeChunks = Math.max(1, ((upload.size - offset + chunkSize - 1) / chunkSize + ranges - 1) / ranges);
+        long[] starts = new long[ranges];
+        Semaphore[] credits = new Semaphore[ranges];
+        ChunkSizer[] sizers = new ChunkSizer[ranges];
+        for (int i = 0; i < ranges; i++) {
+            starts[i] = Math.min(upload.size, offset + i * rangeChunks * chunkSize);
+            credits[i] = new Semaphore(window);
+            sizers[i] = new ChunkSizer(chunkSize, maxChunkSize);
+        }
 
-                    connection.sendMessage(messageToSend);
+        boolean complete;
+        synchronized (upload) {
+            upload.uploadId = body[0];
+            upload.chunkSize = chunkSize;
+            upload.acked.clear();
+            upload.acked.set(0, upload.chunk(offset));
+            upload.starts = starts;
+            upload.credits = credits;
+            upload.sizers = sizers;
+            //the server already has every chunk
+            complete = offset >= upload.size;
+            upload.completing = complete;
+        }
 
-                  /*  Message response = connection.receiveMessage();
+        if (complete) {
+            threadPool.submit(() -> completeUpload(upload));
+            return;
+        }
 
-                    if (!response.getMessageType().equals(CLIENT_SUCCESS)) {
-                        System.out.println("ERROR SENDING FILE...");
-                        return;
-                    }*/
+        ClientConnection uploadConnection = connection;
+        for (int i = 0; i < ranges; i++) {
+            int range = i;
+            long end = i + 1 < ranges ? starts[i + 1] : upload.size;
+            ClientConnection stream = i == 0 ? uploadConnection : getTransferConnection(i - 1);
+            transferPool.submit(() -> sendRange(upload, uploadConnection, stream, credits, range, end));
+        }
+    }
 
+    /**
+     * Sends the chunks of a range of an upload, each once a credit of the range is available.
+     * Chunks grow with the throughput of the acks of the range
+     *
+     * @param uploadConnection connection of the client when the range was started
+     * @param stream           connection the chunks are sent on
+     * @param credits          credits of the ranges of the upload
+     * @param range            index of the range
+     * @param end              offset after the range
+     */
+    private void sendRange(FileUpload upload, ClientConnection uploadConnection, ClientConnection stream, Semaphore[] credits, int range, long end) {
+        long cpuStart = threadCpuTime();
+        try (FileChannel channel = FileChannel.open(upload.file.toPath(), StandardOpenOption.READ)) {
+            long position = upload.starts[range];
+            while (position < end) {
+                boolean credit = credits[range].tryAcquire(TRANSFER_CREDIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                //resumed on the new connection or from another offset
+                if (connection != uploadConnection || upload.credits != credits)
+                    return;
+                if (!credit) {
+                    System.out.println("No acks for " + upload.file.getName() + ", resuming");
+                    resumeUpload(upload);
+                    return;
                 }
+                int length = (int) Math.min(upload.sizers[range].next(), end - position);
+                sendChunk(upload, stream, channel, position, length);
+                position += length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read " + upload.file.getPath());
+            uploads.remove(upload.key());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            upload.cpu.addAndGet(threadCpuTime() - cpuStart);
+        }
+    }
 
-                signInMenu();
+    private void sendChunk(FileUpload upload, ClientConnection stream, FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, offset + chunk.position()) == -1)
+                throw new EOFException();
+        }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array());
+
+        ChatMessage chatMessage = new ChatMessage(upload.chatMessage.getChatId(), upload.chatMessage.getCreationDate(), getClientId(), chunk.array(), IMAGE_MESSAGE, upload.chatMessage.getFilename());
+        Message message = new Message(UPLOAD_CHUNK, getClientId(), RESPONSIBLE, chatMessage, getClientId());
+        message.setBody(upload.uploadId + " " + offset + " " + crc.getValue());
+        //chat messages go first
+        upload.wireBytes.addAndGet(stream.sendBulk(message));
+        upload.payloadBytes.addAndGet(length);
+        upload.chunksSent.incrementAndGet();
+    }
+
+    /**
+     * Marks a chunk as written by the server and gives its credit back, the upload is completed once every chunk was
+     *
+     * @param message UPLOAD_ACK message
+     */
+    public void ackUploadChunk(Message message) {
+        String[] body = message.getBody().split(" ");
+        FileUpload upload = getUpload(body[0]);
+        if (upload == null)
+            return;
+
+        boolean complete;
+        synchronized (upload) {
+            long offset = Long.parseLong(body[1]);
+            int length = Integer.parseInt(body[2]);
+            int chunk = upload.chunk(offset);
+            if (!upload.acked.get(chunk)) {
+                upload.acked.set(chunk, upload.chunk(Math.min(upload.size, offset + length)));
+                int range = upload.range(offset);
+                upload.credits[range].release();
+                upload.sizers[range].record(length);
             }
+            complete = !upload.completing && upload.acked.cardinality() == upload.chunks();
+            if (complete)
+                upload.completing = true;
+        }
 
+        if (complete)
+            threadPool.submit(() -> completeUpload(upload));
+    }
 
-        } else signInMenu();
+    /**
+     * Sends again a chunk the server could not write, it keeps the credit it was sent with
+     *
+     * @param message UPLOAD_CHUNK_FAILED message
+     */
+    public void resendUploadChunk(Message message) {
+        String[] body = message.getBody().split(" ");
+        FileUpload upload = getUpload(body[0]);
+        if (upload == null)
+            return;
+
+        try (FileChannel channel = FileChannel.open(upload.file.toPath(), StandardOpenOption.READ)) {
+            sendChunk(upload, connection, channel, Long.parseLong(body[1]), Integer.parseInt(body[2]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read " + upload.file.getPath());
+        }
+    }
+
+    private void completeUpload(FileUpload upload) {
+        try {
+            if (upload.digest == null)
+                upload.digest = digest(upload.file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read " + upload.file.getPath());
+            uploads.remove(upload.key());
+            return;
+        }
+
+        connection.sendMessage(new Message(UPLOAD_COMPLETE, getClientId(), RESPONSIBLE, upload.uploadId, upload.digest));
+    }
+
+    /**
+     * @param message UPLOAD_DONE or UPLOAD_FAILED message
+     */
+    public void endUpload(Message message) {
+        FileUpload upload = getUpload(message.getBody().split(" ")[0]);
+        if (upload == null)
+            return;
+
+        uploads.remove(upload.key());
+        if (message.getMessageType().equals(UPLOAD_DONE)) {
+            System.out.println("Sent file " + upload.file.getName());
+            printThroughput("Uploaded " + upload.file.getPath(), upload.size, System.nanoTime() - upload.start, upload.cpu.get());
+            printOverhead("Uploaded " + upload.file.getPath(), upload.payloadBytes.get(), upload.wireBytes.get(), upload.chunksSent.get());
+        } else System.out.println("Failed to send file " + upload.file.getName());
+    }
+
+    /**
+     * Asks the server to resume the uploads in progress after the connection changed,
+     * a server that does not know an upload starts it again
+     */
+    private void resumeUploads() {
+        for (FileUpload upload : uploads.values())
+            resumeUpload(upload);
+    }
+
+    private void resumeUpload(FileUpload upload) {
+        Message message = new Message(UPLOAD_START, getClientId(), RESPONSIBLE, upload.chatMessage, getClientId());
+        message.setBody(upload.uploadId == null ? Long.toString(upload.size) : upload.size + " " + upload.uploadId);
+        connection.sendMessage(message);
+    }
+
+    private FileUpload getUpload(String uploadId) {
+        for (FileUpload upload : uploads.values()) {
+            if (uploadId.equals(upload.uploadId))
+                return upload;
+        }
+        return null;
+    }
+
+    /**
+     * @return SHA-256 of a file, in hexadecimal
+     */
+    private static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(FILE_STREAM_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return bytesToHex(digest.digest());
     }
 
     /**
@@ -332,12 +674,18 @@ public class Client extends User {
             System.out.println(alert);
             printChatPendingMessages(chatId);
 
-            String send = "\n \n Send a message: " + "\n" + "\n" + "\n" + "\n";
+            String send = "\n \n Send a message (" + LOAD_OLDER_MESSAGES + " for older messages): " + "\n" + "\n" + "\n" + "\n";
             System.out.println(send);
             currentChat = chatId.intValue();
 
             String messageToSend = console.readLine();
             while (!messageToSend.equals("")) {
+                if (messageToSend.equals(LOAD_OLDER_MESSAGES)) {
+                    loadOlderMessages(chatId);
+                    messageToSend = console.readLine();
+                    continue;
+                }
+
                 Date date = new Date();
                 ChatMessage chatMessage = new ChatMessage(chatId, date, getClientId(), messageToSend.getBytes(), TEXT_MESSAGE);
                 chats.get(chatId).addChatMessage(chatMessage);
@@ -360,6 +708,117 @@ public class Client extends User {
         }
     }
 
+    /**
+     * Asks for the page of messages before the first message loaded of a chat
+     *
+     * @param chatId chat id
+     */
+    public void loadOlderMessages(BigInteger chatId) {
+        Chat chat = chats.get(chatId);
+
+        if (chat.getHistoryOffset() == 0) {
+            System.out.println("No older messages");
+            return;
+        }
+
+        Message message = new Message(GET_CHAT_HISTORY, getClientId(), RESPONSIBLE, chatId.toString(),
+                Integer.toString(chat.getHistoryOffset()), Integer.toString(HISTORY_PAGE_SIZE), Integer.toString(BEFORE));
+        connection.sendMessage(message);
+    }
+
+    /**
+     * Adds a page of older messages received from the server to its chat and prints it
+     *
+     * @param message CHAT_HISTORY message
+     */
+    public void addHistoryPage(Message message) {
+        String[] body = message.getBody().split(" ");
+        Chat chat = chats.get(new BigInteger(body[0]));
+        int from = Integer.parseInt(body[1]);
+        @SuppressWarnings("unchecked") //CHAT_HISTORY messages always carry a page of chat messages
+        ArrayList<ChatMessage> page = (ArrayList<ChatMessage>) message.getObject();
+
+        if (chat == null)
+            return;
+
+        //older messages expired on the server
+        if (from >= chat.getHistoryOffset()) {
+            chat.setHistoryOffset(0);
+            System.out.println("No older messages");
+            return;
+        }
+
+        //only the messages before the ones already loaded
+        page = new ArrayList<>(page.subList(0, Math.min(page.size(), chat.getHistoryOffset() - from)));
+        chat.addOlderMessages(from, page);
+
+        System.out.println("\n Older messages: \n");
+        for (ChatMessage chatMessage : page) {
+            if (chatMessage.getType().equals(TEXT_MESSAGE))
+                System.out.println(new String(chatMessage.getContent()));
+            else System.out.println("Received new file with name : " + chatMessage.getFilename());
+        }
+    }
+
+    /**
+     * Asks the server for the first page of the messages of the chats of the user matching some words
+     */
+    public void searchMessages() {
+        Console console = System.console();
+
+        System.out.println("Search: ");
+        String query = console.readLine();
+        if (query.trim().isEmpty()) {
+            signInMenu();
+            return;
+        }
+
+        actualState = SEARCHING;
+        Message message = new Message(SEARCH, getClientId(), RESPONSIBLE, "0", Integer.toString(SEARCH_PAGE_SIZE), query.trim());
+        connection.sendMessage(message);
+    }
+
+    /**
+     * Prints a page of search results, enter asks for the next page
+     *
+     * @param message SEARCH_RESULTS message
+     */
+    public void printSearchResults(Message message) {
+        String[] body = message.getBody().split(" ", 3);
+        int offset = Integer.parseInt(body[0]);
+        int total = Integer.parseInt(body[1]);
+        @SuppressWarnings("unchecked") //SEARCH_RESULTS messages always carry the chat messages found
+        ArrayList<ChatMessage> page = (ArrayList<ChatMessage>) message.getObject();
+
+        if (total == 0) {
+            System.out.println("No messages found");
+            signInMenu();
+            return;
+        }
+
+        System.out.println("\n Results " + (offset + 1) + "-" + (offset + page.size()) + " of " + total + ": \n");
+        for (ChatMessage chatMessage : page) {
+            Chat chat = chats.get(chatMessage.getChatId());
+            String chatName = chat == null ? chatMessage.getChatId().toString() : chat.getChatName();
+            System.out.println("[" + chatName + "] " + chatMessage.getCreationDate() + ": " + new String(chatMessage.getContent()));
+        }
+
+        if (offset + page.size() >= total) {
+            signInMenu();
+            return;
+        }
+
+        System.out.println("\n Press enter for more results, anything else to go back");
+        if (!System.console().readLine().equals("")) {
+            signInMenu();
+            return;
+        }
+
+        Message next = new Message(SEARCH, getClientId(), RESPONSIBLE, Integer.toString(offset + page.size()),
+                Integer.toString(SEARCH_PAGE_SIZE), body[2]);
+        connection.sendMessage(next);
+    }
+
     public void printChatPendingMessages(BigInteger chatId) {
         Iterator<ChatMessage> iter = chats.get(chatId).getChatPendingMessages().iterator();
         while (iter.hasNext()) {
@@ -582,7 +1041,7 @@ public class Client extends User {
                 signInMenu();
                 break;
             case WAITING_SIGNUP:
-                if (message.getMessageType().equals(CLIENT_ERROR)) {
+                if (!message.getMessageType().equals(CLIENT_SUCCESS)) {
                     printError(body[0]);
                     mainMenu();
                 } else {
@@ -593,7 +1052,7 @@ public class Client extends User {
                 }
                 break;
             case WAITING_SIGNIN:
-                if (message.getMessageType().equals(CLIENT_ERROR)) {
+                if (!message.getMessageType().equals(CLIENT_SUCCESS)) {
                     printError(body[0]);
                     mainMenu();
                 } else {
@@ -606,6 +1065,11 @@ public class Client extends User {
                 }
                 break;
             case WAITING_CREATE_CHAT:
+                if (!message.getMessageType().equals(CLIENT_SUCCESS)) {
+                    printError(body[0]);
+                    signInMenu();
+                    break;
+                }
                 System.out.println("Creating chat " + body[0] + " ... Loading ...");
                 openChat(new BigInteger(body[0]));
                 break;
@@ -631,8 +1095,13 @@ public class Client extends User {
             case HOLDING:
                 signInMenu();
                 break;
+            case CHATTING:
+                if (!message.getMessageType().equals(CLIENT_SUCCESS))
+                    printError(body[0]);
+                break;
             case WAITING_SIGNOUT:
                 actualState = HOLDING;
+                closeReplicaConnection();
                 connection.stopTasks();
                 connection.closeConnection();
                 connection = null;
@@ -672,6 +1141,12 @@ public class Client extends User {
             case USER_NOT_EXISTS:
                 System.out.println("\nUser not found so not added to chat ..");
                 break;
+            case ERROR_LOADING_HISTORY:
+                System.out.println("\nCould not load older messages of the chat ..");
+                break;
+            case CHANGE_NOT_STORED:
+                System.out.println("\nServer could not store the change, try again later ..");
+                break;
             default:
                 break;
         }
@@ -706,6 +1181,18 @@ public class Client extends User {
         return chats.get(chatId);
     }
 
+    /**
+     * Applies the changes of a chat since the last sequence of the loaded copy
+     *
+     * @param delta chat with the changes
+     */
+    public void applyChatDelta(Chat delta) {
+        Chat chat = chats.get(delta.getIdChat());
+        if (chat == null)
+            chats.put(delta.getIdChat(), delta);
+        else chat.applyDelta(delta);
+    }
+
     public void printClientChats() {
         chats.forEach((k, v) -> System.out.println("Chat : " + k));
     }
@@ -717,15 +1204,21 @@ public class Client extends User {
     public void askForChat(BigInteger chatId) {
         Message message = new Message(GET_CHAT, getClientId(), RESPONSIBLE, chatId.toString());
         actualState = Task.RECEIVING_CHAT;
-        connection.sendMessage(message);
+        sendRead(message, READ_YOUR_WRITES);
     }
 
     public void askForClientChats() {
 
         System.out.println("Loading your chats ... ");
-        Message message = new Message(GET_ALL_CHATS, getClientId(), RESPONSIBLE);
+
+        //only the changes after the sequence of each chat already loaded are sent back
+        StringBuilder known = new StringBuilder();
+        for (Chat chat : chats.values())
+            known.append(chat.getIdChat()).append(":").append(chat.getSequence()).append(" ");
+
+        Message message = new Message(GET_ALL_CHATS, getClientId(), RESPONSIBLE, known.toString().trim());
         actualState = Task.GET_CHATS;
-        connection.sendMessage(message);
+        sendRead(message, READ_BOUNDED_STALENESS);
     }
 
     public void askForPendingChats() {
@@ -734,29 +1227,33 @@ public class Client extends User {
         connection.sendMessage(message);
     }
 
-    public void storeFile(ChatMessage chatMessage) {
+    /**
+     * Writes a chunk of a file being downloaded at its offset, the file stays open until all its chunks were written
+     *
+     * @param message DOWNLOADING_FILE message, body Offset Size
+     */
+    public void storeFile(Message message) {
+        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        String[] body = message.getBody().split(" ");
+        long offset = Long.parseLong(body[0]);
+        long size = Long.parseLong(body[1]);
+
+        File file = new File("data/client/" + getClientId().intValue() + "/" + chatMessage.getFilename());
+        file.getParentFile().mkdirs();
 
-        File yourFile = new File("data/client/" + getClientId().intValue() + "/" + chatMessage.getFilename());
-        System.out.println(yourFile.getPath());
-        OutputStream outputStream = null;
+        try {
+            fileSessions.write(file, offset, chatMessage.getContent());
 
-        if (!yourFile.exists()) {
-            yourFile.getParentFile().mkdirs(); // Will create parent directories if not exists
-            try {
-                yourFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
+            long received = downloads.merge(file, (long) chatMessage.getContentLength(), Long::sum);
+            if (received >= size) {
+                downloads.remove(file);
+                fileSessions.close(file, size);
+                System.out.println("Downloaded " + file.getPath());
             }
-        }
-        try {
-            outputStream = new FileOutputStream(yourFile, true);
-            System.out.println(chatMessage.getContent().length);
-            outputStream.write(chatMessage.getContent());
         } catch (IOException e) {
             e.printStackTrace();
+            System.out.println("Failed to write " + file.getPath());
         }
-
-        System.out.println("Receiving ........ ");
     }
 
     public void updateConnection(String newServerIp, int newServerPort) {
@@ -766,6 +1263,7 @@ public class Client extends User {
 
         connection.stopTasks();
         connection.closeConnection();
+        closeTransferConnections();
 
         connection = new ClientConnection(serverIp, serverPort, this);
         try {
@@ -777,7 +1275,103 @@ public class Client extends User {
         threadPool.submit(connection);
         Message connectToServer = new Message(USER_UPDATED_CONNECTION, this.getClientId(), RESPONSIBLE);
         connection.sendMessage(connectToServer);
+        resumeUploads();
+    }
+
+    /**
+     * Sends a read request to the replica node if there is one, otherwise to the primary
+     *
+     * @param message     GET_CHAT or GET_ALL_CHATS request
+     * @param consistency READ_BOUNDED_STALENESS or READ_YOUR_WRITES
+     */
+    public void sendRead(Message message, String consistency) {
+        message.setReadConsistency(consistency);
+        message.setVersion(lastWriteVersion);
+
+        if (replicaConnection != null)
+            replicaConnection.sendMessage(message);
+        else connection.sendMessage(message);
+    }
 
+    public void updateLastWriteVersion(long version) {
+        if (version > lastWriteVersion)
+            lastWriteVersion = version;
+    }
+
+    public void openReplicaConnection(String replicaIp, int replicaPort) {
+
+        if (replicaIp.equals(serverIp) && replicaPort == serverPort)
+            return;
+
+        closeReplicaConnection();
+
+        ClientConnection newReplicaConnection = new ClientConnection(replicaIp, replicaPort, this, true);
+        try {
+            newReplicaConnection.connect();
+        } catch (IOException e) {
+            System.out.println("\nError connecting to replica, reading from primary");
+            return;
+        }
+        threadPool.submit(newReplicaConnection);
+        replicaConnection = newReplicaConnection;
+    }
+
+    public void closeReplicaConnection() {
+        if (replicaConnection == null)
+            return;
+
+        replicaConnection.stopTasks();
+        replicaConnection.closeConnection();
+        replicaConnection = null;
+    }
+
+    /**
+     * Replica is not reachable anymore, sends the read to the primary
+     *
+     * @param message read that failed
+     */
+    public void dropReplicaConnection(Message message) {
+        replicaConnection = null;
+        message.setReadConsistency(READ_PRIMARY);
+        connection.sendMessage(message);
+    }
+
+    /**
+     * @param index index of the extra connection
+     * @return extra connection to the server to send a range of an upload on, the main connection if it can not be opened
+     */
+    private synchronized ClientConnection getTransferConnection(int index) {
+        while (transferConnections.size() <= index) {
+            ClientConnection transferConnection = new ClientConnection(serverIp, serverPort, this);
+            transferConnection.setTransfer(true);
+            try {
+                transferConnection.connect();
+            } catch (IOException e) {
+                System.out.println("\nError opening transfer connection, sending on the main one");
+                return connection;
+            }
+            transferPool.submit(transferConnection);
+            transferConnections.add(transferConnection);
+        }
+        return transferConnections.get(index);
+    }
+
+    /**
+     * Transfer connection failed, its ranges are resumed once their acks time out
+     */
+    public synchronized void dropTransferConnection(ClientConnection transferConnection) {
+        if (transferConnections.remove(transferConnection)) {
+            transferConnection.stopTasks();
+            transferConnection.closeConnection();
+        }
+    }
+
+    private synchronized void closeTransferConnections() {
+        for (ClientConnection transferConnection : transferConnections) {
+            transferConnection.stopTasks();
+            transferConnection.closeConnection();
+        }
+        transferConnections.clear();
     }
 
     public void recoverConnection() {
@@ -797,6 +1391,7 @@ public class Client extends User {
 
         recoverServerPort = 0;
         recoverServerIp = null;
+        closeTransferConnections();
 
         connection = new ClientConnection(serverIp, serverPort, this);
         try {
@@ -814,6 +1409,7 @@ public class Client extends User {
         } catch (InterruptedException e) {
             // e.printStackTrace();
         }
+        resumeUploads();
 
         threadPool.submit(connection);
 
@@ -824,9 +1420,68 @@ public class Client extends User {
         connection.sendMessage(message);
     }
 
+    /**
+     * File being uploaded, the server chooses its id and chunk size
+     */
+    private static class FileUpload {
+        private File file;
+        private ChatMessage chatMessage;
+        private long size;
+        private String uploadId;
+        private int chunkSize;
+        private String digest;
+        private BitSet acked = new BitSet();
+        private boolean completing;
+
+        /**
+         * Offsets the ranges sent on each connection start at
+         */
+        private long[] starts = new long[1];
+
+        /**
+         * Chunks of each range that may still be sent without being acknowledged
+         */
+        private Semaphore[] credits = {new Semaphore(0)};
+        private ChunkSizer[] sizers = {new ChunkSizer(FILE_CHUNK_SIZE, FILE_CHUNK_SIZE)};
+
+        private long start = System.nanoTime();
+        private AtomicLong cpu = new AtomicLong();
+        private AtomicLong payloadBytes = new AtomicLong();
+        private AtomicLong wireBytes = new AtomicLong();
+        private AtomicLong chunksSent = new AtomicLong();
+
+        private FileUpload(File file, ChatMessage chatMessage) {
+            this.file = file;
+            this.chatMessage = chatMessage;
+            this.size = file.length();
+        }
+
+        private String key() {
+            return chatMessage.getChatId() + "/" + chatMessage.getFilename();
+        }
+
+        private int chunk(long offset) {
+            return (int) ((offset + chunkSize - 1) / chunkSize);
+        }
+
+        private int chunks() {
+            return chunk(size);
+        }
+
+        /**
+         * @return index of the range of a chunk
+         */
+        private int range(long offset) {
+            int range = 0;
+            while (range + 1 < starts.length && starts[range + 1] <= offset)
+                range++;
+            return range;
+        }
+    }
+
     public enum Task {
         HOLDING, WAITING_SIGNIN, WAITING_SIGNUP, SIGNED_IN, CREATING_CHAT, WAITING_CREATE_CHAT,
-        WAITING_SIGNOUT, WAITING_FOR_CHAT, RECEIVING_CHAT, CHATTING, GET_CHATS, DOWNLOADING_FILE
+        WAITING_SIGNOUT, WAITING_FOR_CHAT, RECEIVING_CHAT, CHATTING, GET_CHATS, DOWNLOADING_FILE, SEARCHING
     }
 }
 
@@ -24,6 +24,8 @@ public class Message implements Serializable {
     private PublicKey publicKey;
     private Object object;
     private String chatId;
+    private String readConsistency;
+    private long version = -1;
 
     /**
      * Message Constructor
@@ -270,4 +272,20 @@ public class Message implements Serializable {
     public void setChatId(String chatId) {
         this.chatId = chatId;
     }
-}
\ No newline at end of file
+
+    public String getReadConsistency() {
+        return readConsistency;
+    }
+
+    public void setReadConsistency(String readConsistency) {
+        this.readConsistency = readConsistency;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+}
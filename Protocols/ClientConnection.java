@@ -14,6 +14,12 @@ public class ClientConnection extends Connection implements Runnable {
 
     private Client client;
     private Boolean listen;
+    private boolean replica;
+
+    /**
+     * True if this connection is only used to send the chunks of a range of an upload
+     */
+    private boolean transfer;
 
     public ClientConnection(String ip, int port, Client client) {
         super(ip, port);
@@ -21,6 +27,14 @@ public class ClientConnection extends Connection implements Runnable {
         this.client = client;
     }
 
+    /**
+     * @param replica true if this connection is only used to read from the node holding the client backup
+     */
+    public ClientConnection(String ip, int port, Client client, boolean replica) {
+        this(ip, port, client);
+        this.replica = replica;
+    }
+
     /**
      * Connects to a certain ip and port
      */
@@ -40,8 +54,33 @@ public class ClientConnection extends Connection implements Runnable {
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("\nError sending message...");
-            client.recoverConnection();
+            if (transfer)
+                client.dropTransferConnection(this);
+            else if (replica)
+                client.dropReplicaConnection(message);
+            else client.recoverConnection();
+        }
+    }
+
+    /**
+     * Sends a file chunk after the messages waiting to be sent
+     *
+     * @param message message with the chunk
+     * @return bytes written for the message, 0 if it failed
+     */
+    public long sendBulk(Message message) {
+        try {
+            return super.sendBulk(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("\nError sending file chunk...");
+            if (transfer)
+                client.dropTransferConnection(this);
+            else if (replica)
+                client.dropReplicaConnection(message);
+            else client.recoverConnection();
         }
+        return 0;
     }
 
     /**
@@ -77,6 +116,7 @@ public class ClientConnection extends Connection implements Runnable {
         switch (message.getMessageType()) {
             case CLIENT_SUCCESS:
             case CLIENT_ERROR:
+                client.updateLastWriteVersion(message.getVersion());
                 client.verifyState(message);
                 break;
             case NEW_CHAT_INVITATION:
@@ -90,6 +130,7 @@ public class ClientConnection extends Connection implements Runnable {
                 //TODO: Message Type
 
                 ChatMessage chatMessage = (ChatMessage) message.getObject();
+                client.getChat(chatMessage.getChatId()).advanceSequence(chatMessage.getSequence());
                 if (chatMessage.getType().equals(IMAGE_MESSAGE))
                     System.out.println("Received a new file\n");
                 else if (chatMessage.getType().equals(TEXT_MESSAGE))
@@ -107,17 +148,49 @@ public class ClientConnection extends Connection implements Runnable {
                 }
                 break;
             case DOWNLOADING_FILE:
-                client.storeFile((ChatMessage) message.getObject());
+                client.storeFile(message);
+                break;
+            case CHAT_HISTORY:
+                client.addHistoryPage(message);
+                break;
+            case UPLOAD_READY:
+                client.continueUpload(message);
+                break;
+            case UPLOAD_ACK:
+                client.ackUploadChunk(message);
+                break;
+            case UPLOAD_CHUNK_FAILED:
+                client.resendUploadChunk(message);
+                break;
+            case UPLOAD_DONE:
+            case UPLOAD_FAILED:
+                client.endUpload(message);
+                break;
+            case SEARCH_RESULTS:
+                client.printSearchResults(message);
+                break;
+            case CHAT_DELTA:
+                client.applyChatDelta((Chat) message.getObject());
                 break;
             case SERVER_UPDATE_CONNECTION:
                 body = message.getBody().split(" ");
                 client.updateConnection(body[0], Integer.parseInt(body[1]));
                 break;
+            case REPLICA_ADDRESS:
+                body = message.getBody().split(" ");
+                client.openReplicaConnection(body[0], Integer.parseInt(body[1]));
+                break;
             case SERVER_SUCCESS:
-            case SERVER_ERROR:
                 body = message.getBody().split(" ");
                 client.printError(body[0]);
                 break;
+            case SERVER_ERROR:
+                body = message.getBody().split(" ");
+                //a request that was not stored is answered like a failed one
+                if (body[0].equals(CHANGE_NOT_STORED))
+                    client.verifyState(message);
+                else client.printError(body[0]);
+                break;
             case ADDED_PUB_KEYS:
                 client.getChat(new BigInteger(message.getChatId())).getUsersPubKeys().put(message.getReceiver(), message.getPublicKey());
                 break;
@@ -126,6 +199,10 @@ public class ClientConnection extends Connection implements Runnable {
         }
     }
 
+    public void setTransfer(boolean transfer) {
+        this.transfer = transfer;
+    }
+
     public void endThread() {
         this.listen = false;
     }
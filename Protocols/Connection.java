@@ -1,30 +1,59 @@
 package Protocols;
 
 import Messages.Message;
+import Utilities.LatencyRecorder;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import static Utilities.Constants.FILE_STREAM_BUFFER_SIZE;
 import static Utilities.Constants.MAX_NUMBER_OF_THREADS;
+import static Utilities.Constants.TRANSFER_STATS_INTERVAL;
 
 /**
- * Handles connections
+ * Handles connections. Messages are written one at a time, chat messages sent with sendMessage go before
+ * the file chunks sent with sendBulk, a chunk is only written when no message is waiting, so a transfer
+ * delays a message by one chunk at most
  */
 public class Connection {
 
+    private static final int LATENCY_SAMPLES = 1024;
+
     protected SSLSocket sslSocket;
     protected BufferedReader in;
     protected ObjectInputStream inputStream;
     protected ObjectOutputStream outputStream;
 
+    /**
+     * Bytes written by the object stream
+     */
+    private CountingOutputStream countingStream;
+
     protected String ip;
     protected int port;
 
     protected ExecutorService service = Executors.newFixedThreadPool(MAX_NUMBER_OF_THREADS);
 
+    private ReentrantLock writeLock = new ReentrantLock();
+    private Condition messagesSent = writeLock.newCondition();
+    private AtomicInteger pendingMessages = new AtomicInteger();
+
+    private LatencyRecorder messageLatencies = new LatencyRecorder(LATENCY_SAMPLES);
+    private long bulkMessages;
+    private long lastBulkMessages;
+    private long lastStatsTime = System.currentTimeMillis();
+
     public Connection(String ip, int port) {
 
         this.ip = ip;
@@ -40,7 +69,7 @@ public class Connection {
         this.sslSocket = socket;
         try {
             in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-            outputStream = new ObjectOutputStream(sslSocket.getOutputStream());
+            outputStream = new ObjectOutputStream(countingStream = new CountingOutputStream(sslSocket.getOutputStream()));
             inputStream = new ObjectInputStream(sslSocket.getInputStream());
         } catch (IOException e) {
             e.printStackTrace();
@@ -55,12 +84,12 @@ public class Connection {
         SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
         sslSocket = (SSLSocket) sslSocketFactory.createSocket(ip, port);
         sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
-        outputStream = new ObjectOutputStream(sslSocket.getOutputStream());
+        outputStream = new ObjectOutputStream(countingStream = new CountingOutputStream(sslSocket.getOutputStream()));
         inputStream = new ObjectInputStream(sslSocket.getInputStream());
     }
 
     /**
-     * Sends a message
+     * Sends a message, before the file chunks waiting to be sent
      *
      * @param message message to be sent
      */
@@ -68,8 +97,80 @@ public class Connection {
 
         if (message == null)
             throw new IOException();
+
+        long start = System.nanoTime();
+        pendingMessages.incrementAndGet();
+        writeLock.lock();
+        try {
+            write(message);
+        } finally {
+            if (pendingMessages.decrementAndGet() == 0)
+                messagesSent.signalAll();
+            writeLock.unlock();
+        }
+
+        recordMessage(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a file chunk once no message is waiting to be sent
+     *
+     * @param message message with the chunk
+     * @return bytes written for the message
+     */
+    public long sendBulk(Message message) throws IOException {
+
+        if (message == null)
+            throw new IOException();
+
+        writeLock.lock();
+        try {
+            while (pendingMessages.get() > 0)
+                messagesSent.await();
+            long before = countingStream.count;
+            write(message);
+            bulkMessages++;
+            return countingStream.count - before;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(Message message) throws IOException {
         outputStream.writeObject(message);
+        //messages are not kept referenced by the stream, file chunks would never be collected
+        outputStream.reset();
+    }
 
+    /**
+     * Records how long a message waited and was written, the latencies are printed while chunks are sent
+     */
+    private void recordMessage(long latency) {
+        messageLatencies.record(latency);
+
+        long now = System.currentTimeMillis();
+        synchronized (messageLatencies) {
+            if (now - lastStatsTime < TRANSFER_STATS_INTERVAL)
+                return;
+            lastStatsTime = now;
+
+            long chunks;
+            writeLock.lock();
+            try {
+                chunks = bulkMessages - lastBulkMessages;
+                lastBulkMessages = bulkMessages;
+            } finally {
+                writeLock.unlock();
+            }
+            if (chunks > 0)
+                System.out.println("Connection - messages: " + messageLatencies.getCount()
+                        + " p50: " + messageLatencies.percentile(0.50) / 1000 + "us"
+                        + " p99: " + messageLatencies.percentile(0.99) / 1000 + "us"
+                        + " chunks: " + chunks);
+        }
     }
 
     /**
@@ -83,6 +184,75 @@ public class Connection {
 
     }
 
+    /**
+     * Sends a header message followed by the raw bytes of a file, the bytes are moved with transferTo
+     * into the socket and are never wrapped in messages. Only used on connections opened for one transfer
+     *
+     * @param header message describing the file
+     * @param file   file
+     * @param size   bytes of the file sent
+     */
+    public void sendFile(Message header, FileChannel file, long size) throws IOException {
+        sendFile(header, file, 0, size);
+    }
+
+    /**
+     * Sends a header message followed by the raw bytes of a range of a file
+     *
+     * @param header   message describing the range
+     * @param file     file
+     * @param position offset of the range
+     * @param size     bytes of the range
+     */
+    public void sendFile(Message header, FileChannel file, long position, long size) throws IOException {
+        outputStream.writeObject(header);
+        outputStream.flush();
+
+        //TLS sockets have no channel, the buffer keeps the records large
+        OutputStream out = new BufferedOutputStream(sslSocket.getOutputStream(), FILE_STREAM_BUFFER_SIZE);
+        WritableByteChannel target = Channels.newChannel(out);
+
+        long end = position + size;
+        while (position < end)
+            position += file.transferTo(position, end - position, target);
+        out.flush();
+    }
+
+    /**
+     * Receives the raw bytes of a file sent with sendFile, after its header message
+     *
+     * @param file file
+     * @param size bytes of the file
+     */
+    public void receiveFile(FileChannel file, long size) throws IOException {
+        receiveFile(file, 0, size);
+    }
+
+    /**
+     * Receives the raw bytes of a range of a file at its offset, other ranges may be written at the same time
+     * on the same channel by other connections. The bytes are written with positional writes, transferFrom
+     * writes nothing when the range starts past the end the file has so far
+     *
+     * @param file     file
+     * @param position offset of the range
+     * @param size     bytes of the range
+     */
+    public void receiveFile(FileChannel file, long position, long size) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(sslSocket.getInputStream());
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_STREAM_BUFFER_SIZE);
+
+        long end = position + size;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            if (source.read(buffer) == -1)
+                throw new EOFException();
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += file.write(buffer, position);
+        }
+    }
+
     /**
      * Close the connection
      */
@@ -106,4 +276,25 @@ public class Connection {
     public int getPort() {
         return port;
     }
+
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
\ No newline at end of file
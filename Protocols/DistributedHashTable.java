@@ -329,6 +329,33 @@ public class DistributedHashTable implements Serializable {
         return fingerTable;
     }
 
+    /**
+     * Returns the closest distinct nodes after this one in the ring, ordered by distance
+     *
+     * @param count maximum number of nodes
+     * @return successor list
+     */
+    public ArrayList<Node> getSuccessors(int count) {
+
+        ArrayList<Node> successors = new ArrayList<Node>();
+
+        for (Node node : fingerTable) {
+            if (node.getNodeId() != server.getNodeId() && !successors.contains(node))
+                successors.add(node);
+        }
+
+        successors.sort((a, b) -> Long.compare(ringDistance(a), ringDistance(b)));
+
+        while (successors.size() > count)
+            successors.remove(successors.size() - 1);
+
+        return successors;
+    }
+
+    private long ringDistance(Node node) {
+        return Math.floorMod(node.getNodeId() - server.getNodeId(), MAX_NUMBER_OF_NODES);
+    }
+
     public Node getSuccessor() {
 
         Node successor = null;
@@ -49,6 +49,22 @@ public class ServerConnection extends Connection implements Runnable {
         }
     }
 
+    /**
+     * Sends a file chunk after the messages waiting to be sent
+     *
+     * @param message message with the chunk
+     * @return bytes written for the message, 0 if it failed
+     */
+    public long sendBulk(Message message) {
+        try {
+            return super.sendBulk(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("\nError sending file chunk...");
+        }
+        return 0;
+    }
+
     /**
      * Receives a message
      *
@@ -89,6 +105,8 @@ public class ServerConnection extends Connection implements Runnable {
                 server.isResponsible(this, message);
                 break;
             case GET_CHAT:
+            case GET_CHAT_HISTORY:
+            case SEARCH:
                 server.isResponsible(this, message);
                 break;
             case GET_ALL_CHATS:
@@ -106,10 +124,20 @@ public class ServerConnection extends Connection implements Runnable {
                     server.redirect(this, message);
                 }
                 break;
-            case NEW_MESSAGE_TO_PARTICIPANT:
             case NEW_MESSAGE:
                 server.isResponsible(this, message);
                 break;
+            case NEW_MESSAGE_BATCH:
+                sendMessage(server.linkAck(message, server.deliverBatch(message)));
+                break;
+            case CHAT_APPEND:
+                sendMessage(server.linkAck(message, server.receiveChatAppend(message)));
+                break;
+            case OWN_CHAT:
+            case CHAT_READ:
+            case CHAT_SEARCH:
+                server.isResponsible(this, message);
+                break;
             case NEWNODE:
                 body = message.getBody().split(" ");
                 server.newNode(body);
@@ -131,15 +159,27 @@ public class ServerConnection extends Connection implements Runnable {
                 closeConnection();
                 break;
             case BACKUP_USER:
+            case BACKUP_USERS:
+            case BACKUP_CHAT_MESSAGE:
+            case BACKUP_CHAT:
+            case BACKUP_READ_CURSORS:
                 sendMessage(server.backupInfo(message));
                 closeConnection();
                 break;
+            case CHAIN_UPDATE:
+                sendMessage(server.chainUpdate(message));
+                closeConnection();
+                break;
+            case CHAIN_HOP:
+                sendMessage(server.linkAck(message, server.chainHop(message)));
+                break;
             case ADD_USER:
                 sendMessage(server.addUser((User) message.getObject()));
                 break;
             case USER_UPDATED_CONNECTION:
                 System.out.println("\nEntrei\n");
                 server.saveConnection(this, message.getSenderId());
+                server.sendReplicaAddress(this, message.getSenderId());
                 break;
             case SERVER_SUCCESS:
                 body = message.getBody().split(" ");
@@ -150,10 +190,12 @@ public class ServerConnection extends Connection implements Runnable {
                 System.out.println("Server " + body[0] + " is down.");
                 server.handleNodeFailure(Integer.parseInt(body[0]), message);
                 break;
-            case FILE_TRANSACTION:
-                server.isResponsible(this, message);
+            case BLOB_CHUNK:
+                sendMessage(server.linkAck(message, server.receiveBlobChunk(message)));
                 break;
-            case STORE_FILE_ON_PARTICIPANT:
+            case UPLOAD_START:
+            case UPLOAD_CHUNK:
+            case UPLOAD_COMPLETE:
                 server.isResponsible(this, message);
                 break;
             case STORE_FILE_MESSAGE:
@@ -162,6 +204,9 @@ public class ServerConnection extends Connection implements Runnable {
             case DOWNLOAD_FILE:
                 server.isResponsible(this, message);
                 break;
+            case DOWNLOAD_STREAM:
+                server.streamFile(this, message);
+                break;
             case PUBLIC_KEY:
                 server.isResponsible(this, message);
                 break;
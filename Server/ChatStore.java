@@ -0,0 +1,1176 @@
+package Server;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Chat.RetentionPolicy;
+import Storage.HistoryStore;
+import Storage.LogRecord;
+import Storage.PayloadArena;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static Utilities.Constants.HISTORY_PAGE_SIZE;
+import static Utilities.Constants.HOT_MESSAGES_PER_CHAT;
+import static Utilities.Constants.IMAGE_MESSAGE;
+
+/**
+ * Chats of a node keyed by chat id, every user of the node holds a reference to the same Chat
+ * so a message is stored once no matter how many participants the node has.
+ * What each user has already received is kept as a read cursor in the User.
+ * <p>
+ * Only the last messages of each chat are kept in memory (hot tier), every message is also appended to a
+ * HistoryStore (cold tier) and older messages are read from it when asked. The memory used by the messages
+ * of all chats is bounded, the chats used least recently are spilled first. Spilling syncs the cold tier, so it
+ * runs on a background thread and request threads only mark the chats they added messages to.
+ * The content of the messages in memory is moved to an off-heap arena.
+ * Messages past the retention policy of their chat are dropped from both tiers.
+ * Chats promoted from another store on a node failure are handed over without copying their history.
+ * <p>
+ * The messages of a chat are kept by the node responsible for the chat id, the other nodes with participants in it
+ * keep a reference: the chat without messages, following its number of messages and sequence number as messages
+ * are delivered. Messages of a reference are read from the node holding the chat.
+ */
+public class ChatStore {
+
+    private static final int RECENT_KEYS = 64;
+    private static final int MESSAGE_OVERHEAD = 128;
+
+    private ConcurrentHashMap<BigInteger, Chat> chats = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<BigInteger, ChatState> states = new ConcurrentHashMap<>();
+
+    private HistoryStore cold;
+
+    /**
+     * Cold tier of the store chats are promoted from, the history of a promoted chat before its handover
+     * stays there and is read from there
+     */
+    private HistoryStore origin;
+    private PayloadArena arena;
+    private long hotBudget;
+    private AtomicLong hotBytes = new AtomicLong();
+
+    /**
+     * Reads the messages of the chats kept as references
+     */
+    private volatile HistorySource remote;
+
+    /**
+     * Chat ids in access order, guarded by itself
+     */
+    private LinkedHashMap<BigInteger, Boolean> recentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Chats with messages added since the tiering thread last ran
+     */
+    private Set<BigInteger> toTrim = ConcurrentHashMap.newKeySet();
+    private AtomicBoolean tieringScheduled = new AtomicBoolean();
+    private ExecutorService tiering = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-store-tiering");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param cold      cold tier, if null every message stays in memory
+     * @param arena     off-heap arena for the content of the messages in memory, if null it stays on the heap
+     * @param hotBudget bytes of messages kept in memory by all the chats of the store
+     */
+    public ChatStore(HistoryStore cold, PayloadArena arena, long hotBudget) {
+        this(cold, arena, hotBudget, null);
+    }
+
+    /**
+     * @param origin store chats are promoted from, null if there is none
+     */
+    public ChatStore(HistoryStore cold, PayloadArena arena, long hotBudget, ChatStore origin) {
+        this.cold = cold;
+        this.arena = arena;
+        this.hotBudget = hotBudget;
+        this.origin = origin == null ? null : origin.cold;
+    }
+
+    public Chat register(Chat chat) {
+        return register(chat, null);
+    }
+
+    /**
+     * Returns the chat kept by the store for the id of the given chat. A chat new to the store comes with its
+     * history from its offset on, which is written to the cold tier. If the store already has the chat the
+     * participants, public keys and messages missing from it are copied over.
+     * A chat promoted from the origin store is handed over without its messages, its history up to the
+     * handover is read from the cold tier of the origin
+     *
+     * @param chat   chat received from a client, another node or another store
+     * @param source store holding the chat, null if the chat has all its messages in memory
+     * @return chat kept by the store
+     */
+    public Chat register(Chat chat, ChatStore source) {
+        Chat stored = chats.get(chat.getIdChat());
+        if (stored == chat)
+            return chat;
+
+        ArrayList<ChatMessage> history = new ArrayList<>(chat.getChatMessages());
+        if (source != null && chat.isReference()) {
+            chat = source.reference(chat);
+            history = new ArrayList<>();
+        } else if (source != null) {
+            //the chat stays in the source store, this store gets its own copy
+            int handover = 0;
+            if (cold != null && origin != null && source.cold == origin && !source.state(chat.getIdChat()).pinned) {
+                handover = source.size(chat);
+                history = new ArrayList<>();
+            } else history = source.messages(chat, 0, source.size(chat));
+            chat = chat.withMessages(handover, new ArrayList<>(), new ArrayList<>(chat.getChatPendingMessages()));
+            chat.setHandover(handover);
+        }
+
+        stored = chats.putIfAbsent(chat.getIdChat(), chat);
+        if (stored == chat)
+            return chat;
+
+        if (stored == null) {
+            ChatState state = state(chat.getIdChat());
+            synchronized (chat) {
+                if (chat.isReference()) {
+                    chat.setHistoryOffset(chat.getHistoryOffset() + chat.getChatMessages().size());
+                    chat.getChatMessages().clear();
+                    return chat;
+                }
+                chat.getChatMessages().clear();
+                if (cold != null)
+                    cold.startAt(chat.getIdChat(), chat.getHistoryOffset());
+                else chat.setHistoryOffset(0);
+                for (ChatMessage message : history)
+                    add(chat, state, message);
+            }
+            touch(chat.getIdChat());
+            scheduleTiering(chat);
+            return chat;
+        }
+
+        ChatState state = state(stored.getIdChat());
+        synchronized (stored) {
+            int members = stored.getParticipants().size() + stored.getUsersPubKeys().size();
+            stored.getParticipants().addAll(chat.getParticipants());
+            stored.getUsersPubKeys().putAll(chat.getUsersPubKeys());
+            if (stored.getParticipants().size() + stored.getUsersPubKeys().size() != members)
+                stored.membershipChanged();
+
+            if (stored.isReference() && !chat.isReference()) {
+                hold(stored, state, chat, history);
+            } else if (stored.isReference()) {
+                stored.setHistoryOffset(Math.max(stored.getHistoryOffset(), chat.getHistoryOffset() + chat.getChatMessages().size()));
+                stored.advanceSequence(chat.getSequence());
+            } else if (!chat.isReference()) {
+                //messages up to the last one spilled are already in the cold tier
+                HashSet<String> known = new HashSet<>();
+                for (ChatMessage message : stored.getChatMessages())
+                    known.add(LogRecord.messageKey(message));
+                for (ChatMessage message : history) {
+                    if (time(message) > state.spilledUntil && known.add(LogRecord.messageKey(message))) {
+                        add(stored, state, message);
+                        stored.advanceSequence(message.getSequence());
+                    }
+                }
+            }
+        }
+        scheduleTiering(stored);
+
+        return stored;
+    }
+
+    /**
+     * Turns a reference into a chat kept by this store, with the history of the chat received from the node
+     * or store that kept it. The caller holds the chat lock
+     *
+     * @param stored  reference of the store
+     * @param chat    chat kept by another node or store
+     * @param history messages of the chat from its history offset on
+     */
+    private void hold(Chat stored, ChatState state, Chat chat, ArrayList<ChatMessage> history) {
+        //the blobs of the files followed stay referenced by the messages now held
+        state.followed.clear();
+        stored.setReference(false);
+        stored.setHandover(chat.getHandover());
+        stored.setHistoryOffset(chat.getHistoryOffset());
+        if (cold != null)
+            cold.startAt(stored.getIdChat(), stored.getHistoryOffset());
+        else stored.setHistoryOffset(0);
+
+        for (ChatMessage message : history) {
+            add(stored, state, message);
+            stored.advanceSequence(message.getSequence());
+        }
+        stored.advanceSequence(chat.getSequence());
+    }
+
+    /**
+     * Turns a chat kept by this store into a reference once it was handed over to the node now responsible for it,
+     * unless messages were appended since it was sent
+     *
+     * @param chat chat of the store
+     * @param size number of messages of the chat that was handed over
+     * @return true if the chat is now a reference
+     */
+    public boolean release(Chat chat, int size) {
+        synchronized (chat) {
+            if (chat.isReference() || chat.getHistoryOffset() + chat.getChatMessages().size() != size)
+                return false;
+
+            long bytes = 0;
+            for (ChatMessage message : chat.getChatMessages())
+                bytes += size(message);
+            chat.getChatMessages().clear();
+            hotBytes.addAndGet(-bytes);
+
+            chat.setHistoryOffset(size);
+            chat.setHandover(0);
+            chat.setReference(true);
+            if (cold != null)
+                cold.startAt(chat.getIdChat(), size);
+        }
+        return true;
+    }
+
+    public void adopt(User user) {
+        adopt(user, null);
+    }
+
+    /**
+     * Replaces the chats of a user received from another node or store by the chats of this store
+     *
+     * @param user   user
+     * @param source store holding the chats of the user, null if they have all their messages in memory
+     */
+    public void adopt(User user, ChatStore source) {
+        for (Map.Entry<BigInteger, Chat> entry : user.getChats().entrySet())
+            entry.setValue(register(entry.getValue(), source));
+        for (Map.Entry<BigInteger, Chat> entry : user.getPendingRequests().entrySet())
+            entry.setValue(register(entry.getValue(), source));
+    }
+
+    /**
+     * Takes the chats of a user restored from a snapshot and the chat log, the cold tier is brought
+     * in line with them: messages missing from it are appended and messages past them are dropped
+     *
+     * @param user user restored
+     */
+    public void recover(User user) {
+        for (Map.Entry<BigInteger, Chat> entry : user.getChats().entrySet())
+            entry.setValue(recover(entry.getValue()));
+        for (Map.Entry<BigInteger, Chat> entry : user.getPendingRequests().entrySet())
+            entry.setValue(recover(entry.getValue()));
+        evict();
+    }
+
+    /**
+     * Takes a chat restored from a snapshot and the chat log, used for the chats kept by the node for no user of it
+     *
+     * @param chat chat restored
+     * @return chat kept by the store
+     */
+    public Chat recover(Chat chat) {
+        Chat stored = chats.putIfAbsent(chat.getIdChat(), chat);
+        if (stored != null)
+            return stored;
+
+        ChatState state = state(chat.getIdChat());
+        synchronized (chat) {
+            if (chat.isReference()) {
+                chat.setHistoryOffset(chat.getHistoryOffset() + chat.getChatMessages().size());
+                chat.getChatMessages().clear();
+                return chat;
+            }
+
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            int offset = chat.getHistoryOffset();
+
+            if (cold != null) {
+                //nothing was appended since the chat was handed over
+                if (chat.getHandover() > 0 && cold.count(chat.getIdChat()) == 0)
+                    cold.startAt(chat.getIdChat(), chat.getHandover());
+
+                int onDisk = cold.count(chat.getIdChat());
+                if (onDisk < offset) {
+                    System.out.println("Cold tier of chat " + chat.getIdChat() + " lost " + (offset - onDisk) + " messages");
+                    chat.setHistoryOffset(onDisk);
+                    offset = onDisk;
+                }
+                if (onDisk > offset + hot.size())
+                    cold.truncate(chat.getIdChat(), offset + hot.size());
+
+                try {
+                    for (int i = Math.max(0, onDisk - offset); i < hot.size(); i++)
+                        cold.append(hot.get(i));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Failed to write cold tier of chat " + chat.getIdChat() + ", keeping it in memory");
+                    state.pinned = true;
+                }
+            }
+
+            for (ChatMessage message : hot) {
+                if (arena != null)
+                    message.moveOffHeap(arena);
+                state.recentKeys.add(LogRecord.messageKey(message));
+                if (state.recentKeys.size() > RECENT_KEYS)
+                    state.recentKeys.remove(state.recentKeys.iterator().next());
+                hotBytes.addAndGet(size(message));
+            }
+        }
+        touch(chat.getIdChat());
+        trim(chat);
+
+        return chat;
+    }
+
+    public Chat get(BigInteger chatId) {
+        return chats.get(chatId);
+    }
+
+    public Collection<Chat> getChats() {
+        return chats.values();
+    }
+
+    /**
+     * Appends a message to its chat and gives it the next sequence number of the chat,
+     * a message delivered to several participants of this node is appended once.
+     * The message is logged before it is added, messages of a chat logged at the same time are added
+     * in the order of their sequence numbers once they are all logged
+     *
+     * @param chatMessage message
+     * @param log         called with the message and its sequence number, false if the message must not be added
+     * @return number of messages of the chat after the append, 0 if the message was already there or the chat is unknown,
+     * -1 if it was not logged
+     */
+    public int append(ChatMessage chatMessage, Predicate<ChatMessage> log) {
+        Chat chat = chats.get(chatMessage.getChatId());
+        if (chat == null)
+            return 0;
+
+        ChatState state = state(chat.getIdChat());
+        String key = LogRecord.messageKey(chatMessage);
+        long sequence;
+
+        synchronized (chat) {
+            if (!state.recentKeys.add(key))
+                return 0;
+            if (state.recentKeys.size() > RECENT_KEYS)
+                state.recentKeys.remove(state.recentKeys.iterator().next());
+
+            sequence = chat.nextSequence();
+            chatMessage.setSequence(sequence);
+            state.logging.addLast(sequence);
+        }
+
+        boolean logged = log.test(chatMessage);
+        int size;
+        boolean interrupted = false;
+
+        synchronized (chat) {
+            while (state.logging.peekFirst() != sequence) {
+                try {
+                    chat.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            state.logging.removeFirst();
+            chat.notifyAll();
+
+            if (logged) {
+                add(chat, state, chatMessage);
+                size = chat.getHistoryOffset() + chat.getChatMessages().size();
+            } else {
+                state.recentKeys.remove(key);
+                size = -1;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (logged) {
+            touch(chat.getIdChat());
+            scheduleTiering(chat);
+        }
+
+        return size;
+    }
+
+    /**
+     * Waits until the messages being logged when it is called are added or dropped, a message logged before the call
+     * may wait for an earlier one of its chat to be logged before it is added
+     */
+    public void awaitLogging() {
+        boolean interrupted = false;
+        for (Chat chat : chats.values()) {
+            ChatState state = state(chat.getIdChat());
+            synchronized (chat) {
+                Long last = state.logging.peekLast();
+                while (last != null && !state.logging.isEmpty() && state.logging.peekFirst() <= last) {
+                    try {
+                        chat.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Appends a message replicated by the primary, keeping the sequence number given by the primary
+     *
+     * @param chatMessage message
+     * @return number of messages of the chat after the append, 0 if the message was already there or the chat is unknown
+     */
+    public int appendReplica(ChatMessage chatMessage) {
+        Chat chat = chats.get(chatMessage.getChatId());
+        if (chat == null)
+            return 0;
+
+        ChatState state = state(chat.getIdChat());
+        int size;
+
+        synchronized (chat) {
+            if (!state.recentKeys.add(LogRecord.messageKey(chatMessage)))
+                return 0;
+            if (state.recentKeys.size() > RECENT_KEYS)
+                state.recentKeys.remove(state.recentKeys.iterator().next());
+
+            chat.advanceSequence(chatMessage.getSequence());
+            add(chat, state, chatMessage);
+            size = chat.getHistoryOffset() + chat.getChatMessages().size();
+        }
+
+        touch(chat.getIdChat());
+        scheduleTiering(chat);
+
+        return size;
+    }
+
+    /**
+     * Moves a reference past a message appended by the node holding the chat. File messages are kept until the
+     * retention policy of the chat drops them, so the blobs of this node can be released
+     *
+     * @param chatMessage message
+     * @param position    number of messages of the chat after the message
+     * @param retain      called once for a file message before it is kept, to add the reference to its blob
+     * @return true if the message was not followed before, false if it was or the chat is not a reference
+     */
+    public boolean follow(ChatMessage chatMessage, int position, Consumer<ChatMessage> retain) {
+        Chat chat = chats.get(chatMessage.getChatId());
+        if (chat == null || !chat.isReference())
+            return false;
+
+        ChatState state = state(chat.getIdChat());
+        synchronized (chat) {
+            if (!state.recentKeys.add(LogRecord.messageKey(chatMessage)))
+                return false;
+            if (state.recentKeys.size() > RECENT_KEYS)
+                state.recentKeys.remove(state.recentKeys.iterator().next());
+
+            chat.advanceSequence(chatMessage.getSequence());
+            chat.setHistoryOffset(Math.max(chat.getHistoryOffset(), position));
+            if (IMAGE_MESSAGE.equals(chatMessage.getType())) {
+                retain.accept(chatMessage);
+                state.followed.addLast(new Followed(chatMessage, position));
+            }
+        }
+
+        touch(chat.getIdChat());
+        return true;
+    }
+
+    /**
+     * Moves a reference to the number of messages and sequence number replicated by the primary
+     *
+     * @param chatId   chat id
+     * @param size     number of messages of the chat
+     * @param sequence sequence number of the chat
+     */
+    public void advance(BigInteger chatId, int size, long sequence) {
+        Chat chat = chats.get(chatId);
+        if (chat == null || !chat.isReference())
+            return;
+
+        synchronized (chat) {
+            chat.setHistoryOffset(Math.max(chat.getHistoryOffset(), size));
+        }
+        chat.advanceSequence(sequence);
+    }
+
+    /**
+     * Adds a message to both tiers, the caller holds the chat lock
+     */
+    private void add(Chat chat, ChatState state, ChatMessage chatMessage) {
+        if (cold != null && !state.pinned) {
+            try {
+                cold.append(chatMessage);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to write cold tier of chat " + chat.getIdChat() + ", keeping it in memory");
+                state.pinned = true;
+            }
+        }
+
+        if (arena != null)
+            chatMessage.moveOffHeap(arena);
+        chat.addChatMessage(chatMessage);
+        hotBytes.addAndGet(size(chatMessage));
+    }
+
+    /**
+     * Marks a chat with new messages to be trimmed by the tiering thread
+     */
+    private void scheduleTiering(Chat chat) {
+        toTrim.add(chat.getIdChat());
+        //past twice the budget the request thread spills too, memory stays bounded if the disk falls behind
+        if (hotBytes.get() > 2 * hotBudget)
+            evict();
+        if (tieringScheduled.compareAndSet(false, true))
+            tiering.execute(this::tier);
+    }
+
+    /**
+     * Trims the chats marked since the last run and spills the chats used least recently over the budget
+     */
+    private void tier() {
+        tieringScheduled.set(false);
+        for (BigInteger chatId : new ArrayList<>(toTrim)) {
+            toTrim.remove(chatId);
+            Chat chat = chats.get(chatId);
+            if (chat != null)
+                trim(chat);
+        }
+        evict();
+    }
+
+    /**
+     * Spills the oldest messages of a chat with too many messages in memory, down to half of the limit
+     * so the cold tier is synced once for many messages
+     */
+    private void trim(Chat chat) {
+        int hot;
+        synchronized (chat) {
+            hot = chat.getChatMessages().size();
+        }
+        if (hot > HOT_MESSAGES_PER_CHAT)
+            spill(chat, hot - HOT_MESSAGES_PER_CHAT / 2);
+    }
+
+    /**
+     * Spills the chats used least recently until the messages in memory fit in the budget
+     */
+    private void evict() {
+        if (hotBytes.get() <= hotBudget)
+            return;
+
+        ArrayList<BigInteger> order;
+        synchronized (recentlyUsed) {
+            order = new ArrayList<>(recentlyUsed.keySet());
+        }
+
+        for (BigInteger chatId : order) {
+            if (hotBytes.get() <= hotBudget)
+                return;
+            Chat chat = chats.get(chatId);
+            if (chat != null)
+                spill(chat, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Drops the oldest messages of a chat from memory once they are on disk
+     *
+     * @param chat  chat of the store
+     * @param count maximum number of messages spilled
+     */
+    private void spill(Chat chat, int count) {
+        ChatState state = state(chat.getIdChat());
+        if (cold == null || state.pinned || chat.isReference())
+            return;
+
+        cold.force();
+
+        synchronized (chat) {
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            count = Math.min(count, hot.size());
+            if (count == 0)
+                return;
+
+            long bytes = 0;
+            for (int i = 0; i < count; i++)
+                bytes += size(hot.get(i));
+            state.spilledUntil = Math.max(state.spilledUntil, time(hot.get(count - 1)));
+
+            chat.dropOldestMessages(count);
+            hotBytes.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * @param chat chat of the store
+     * @param from position of the first message
+     * @param to   position after the last message
+     * @return copy of the messages of the chat between the two positions, older messages are read from the cold tier
+     */
+    public ArrayList<ChatMessage> messages(Chat chat, int from, int to) {
+        if (chat.isReference())
+            return readRemote(chat, from, to);
+
+        ArrayList<ChatMessage> hotPart;
+        int offset;
+
+        synchronized (chat) {
+            offset = chat.getHistoryOffset();
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            to = Math.min(to, offset + hot.size());
+            from = Math.max(0, Math.min(from, to));
+            hotPart = to > offset ? new ArrayList<>(hot.subList(Math.max(from, offset) - offset, to - offset)) : new ArrayList<>();
+        }
+        touch(chat.getIdChat());
+
+        if (from >= offset)
+            return hotPart;
+
+        ArrayList<ChatMessage> page;
+        try {
+            page = readCold(chat, from, Math.min(to, offset));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read cold tier of chat " + chat.getIdChat());
+            page = new ArrayList<>();
+        }
+        page.addAll(hotPart);
+        return page;
+    }
+
+    private ArrayList<ChatMessage> readRemote(Chat chat, int from, int to) {
+        HistorySource source = remote;
+        to = Math.min(to, size(chat));
+        from = Math.max(0, Math.min(from, to));
+        if (source == null || from == to)
+            return new ArrayList<>();
+
+        try {
+            return source.read(chat, from, to);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read chat " + chat.getIdChat() + " from the node holding it");
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Reads messages from the cold tier, the ones before the handover of a promoted chat from the origin
+     */
+    private ArrayList<ChatMessage> readCold(Chat chat, int from, int to) throws IOException {
+        int handover = origin == null ? 0 : chat.getHandover();
+        if (from >= handover)
+            return cold.read(chat.getIdChat(), from, to - from);
+
+        ArrayList<ChatMessage> page = origin.read(chat.getIdChat(), from, Math.min(to, handover) - from);
+        if (to > handover)
+            page.addAll(cold.read(chat.getIdChat(), handover, to - handover));
+        return page;
+    }
+
+    /**
+     * Searches of the cold tier go on in the origin when they end at the handover of a promoted chat
+     */
+    private int firstCreatedAfter(Chat chat, long time) {
+        int position = cold.firstCreatedAfter(chat.getIdChat(), time);
+        if (origin != null && chat.getHandover() > 0 && position <= chat.getHandover())
+            position = Math.min(chat.getHandover(), origin.firstCreatedAfter(chat.getIdChat(), time));
+        return position;
+    }
+
+    private int firstAfterSequence(Chat chat, long sequence) {
+        int position = cold.firstAfterSequence(chat.getIdChat(), sequence);
+        if (origin != null && chat.getHandover() > 0 && position <= chat.getHandover())
+            position = Math.min(chat.getHandover(), origin.firstAfterSequence(chat.getIdChat(), sequence));
+        return position;
+    }
+
+    private int firstWithin(Chat chat, long maxBytes) {
+        int position = cold.firstWithin(chat.getIdChat(), maxBytes);
+        if (origin != null && chat.getHandover() > 0 && position <= chat.getHandover())
+            position = Math.min(chat.getHandover(), origin.firstWithin(chat.getIdChat(), maxBytes - cold.bytes(chat.getIdChat())));
+        return position;
+    }
+
+    /**
+     * @param chat chat of the store
+     * @return number of messages of the chat
+     */
+    public int size(Chat chat) {
+        synchronized (chat) {
+            return chat.getHistoryOffset() + chat.getChatMessages().size();
+        }
+    }
+
+    /**
+     * @param chat chat of the store
+     * @return position of the first message kept of the chat
+     */
+    public int first(Chat chat) {
+        synchronized (chat) {
+            if (chat.isReference())
+                return 0;
+            if (cold == null)
+                return chat.getHistoryOffset();
+            int first = cold.first(chat.getIdChat());
+            if (origin != null && chat.getHandover() > 0)
+                first = Math.min(first, Math.min(origin.first(chat.getIdChat()), chat.getHandover()));
+            return Math.min(first, chat.getHistoryOffset());
+        }
+    }
+
+    /**
+     * Drops the messages of every chat past its retention policy, from the cold tier and from memory.
+     * Replicas of a chat apply the same policy since it travels with the chat
+     *
+     * @return number of messages dropped
+     */
+    public int applyRetention() {
+        return applyRetention(null);
+    }
+
+    /**
+     * @param onDrop called with each file message dropped, null if they are not needed
+     * @return number of messages dropped
+     */
+    public int applyRetention(Consumer<ChatMessage> onDrop) {
+        long now = System.currentTimeMillis();
+        int dropped = 0;
+
+        for (Chat chat : chats.values()) {
+            RetentionPolicy policy = chat.getRetention();
+            if (policy == null || policy.isUnlimited())
+                continue;
+            if (chat.isReference())
+                dropped += releaseFollowed(chat, policy, now, onDrop);
+            else dropped += applyRetention(chat, policy, now, onDrop);
+        }
+
+        return dropped;
+    }
+
+    private int applyRetention(Chat chat, RetentionPolicy policy, long now, Consumer<ChatMessage> onDrop) {
+        boolean onDisk = cold != null && !state(chat.getIdChat()).pinned;
+        ArrayList<ChatMessage> droppedFiles = new ArrayList<>();
+        int first;
+        int keepFrom;
+
+        synchronized (chat) {
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            int offset = chat.getHistoryOffset();
+            first = first(chat);
+            keepFrom = first;
+
+            if (policy.getMaxCount() > 0)
+                keepFrom = (int) Math.max(keepFrom, offset + hot.size() - policy.getMaxCount());
+
+            if (policy.getMaxAge() > 0) {
+                long oldest = now - policy.getMaxAge();
+                if (onDisk) {
+                    keepFrom = Math.max(keepFrom, firstCreatedAfter(chat, oldest));
+                } else {
+                    int i = 0;
+                    while (i < hot.size() && time(hot.get(i)) < oldest)
+                        i++;
+                    keepFrom = Math.max(keepFrom, offset + i);
+                }
+            }
+
+            if (policy.getMaxBytes() > 0) {
+                if (onDisk) {
+                    keepFrom = Math.max(keepFrom, firstWithin(chat, policy.getMaxBytes()));
+                } else {
+                    long bytes = 0;
+                    int i = hot.size();
+                    while (i > 0 && bytes + Math.max(0, hot.get(i - 1).getContentLength()) <= policy.getMaxBytes())
+                        bytes += Math.max(0, hot.get(--i).getContentLength());
+                    keepFrom = Math.max(keepFrom, offset + i);
+                }
+            }
+
+            if (keepFrom <= first)
+                return 0;
+        }
+
+        //read in pages without holding the chat, appends only add messages after keepFrom
+        if (onDrop != null) {
+            for (int from = first; from < keepFrom; from += HISTORY_PAGE_SIZE) {
+                for (ChatMessage message : messages(chat, from, Math.min(keepFrom, from + HISTORY_PAGE_SIZE))) {
+                    if (IMAGE_MESSAGE.equals(message.getType()))
+                        droppedFiles.add(message);
+                }
+            }
+        }
+
+        synchronized (chat) {
+            //dropped by another call meanwhile, which released their files
+            if (first(chat) != first)
+                return 0;
+
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            int offset = chat.getHistoryOffset();
+
+            if (cold != null)
+                cold.dropBefore(chat.getIdChat(), keepFrom);
+            if (origin != null && chat.getHandover() > 0) {
+                origin.dropBefore(chat.getIdChat(), Math.min(keepFrom, chat.getHandover()));
+                if (keepFrom >= chat.getHandover())
+                    chat.setHandover(0);
+            }
+
+            int count = Math.min(hot.size(), keepFrom - offset);
+            if (count > 0) {
+                long bytes = 0;
+                for (int i = 0; i < count; i++)
+                    bytes += size(hot.get(i));
+                chat.dropOldestMessages(count);
+                hotBytes.addAndGet(-bytes);
+            }
+        }
+
+        for (ChatMessage message : droppedFiles)
+            onDrop.accept(message);
+
+        return keepFrom - first;
+    }
+
+    /**
+     * Drops the file messages followed by a reference past the age and count limits of the retention policy,
+     * the size limit is applied by the node holding the chat only
+     *
+     * @return number of file messages dropped
+     */
+    private int releaseFollowed(Chat chat, RetentionPolicy policy, long now, Consumer<ChatMessage> onDrop) {
+        ChatState state = state(chat.getIdChat());
+        ArrayList<ChatMessage> droppedFiles = new ArrayList<>();
+
+        synchronized (chat) {
+            int size = chat.getHistoryOffset();
+            while (!state.followed.isEmpty()) {
+                Followed file = state.followed.peekFirst();
+                boolean tooMany = policy.getMaxCount() > 0 && file.position <= size - policy.getMaxCount();
+                boolean tooOld = policy.getMaxAge() > 0 && time(file.message) < now - policy.getMaxAge();
+                if (!tooMany && !tooOld)
+                    break;
+                droppedFiles.add(state.followed.removeFirst().message);
+            }
+        }
+
+        if (onDrop != null)
+            for (ChatMessage message : droppedFiles)
+                onDrop.accept(message);
+
+        return droppedFiles.size();
+    }
+
+    /**
+     * Rewrites the segments of the cold tier with many dropped messages
+     *
+     * @return bytes of disk reclaimed
+     */
+    public long compact() {
+        return cold == null ? 0 : cold.compact();
+    }
+
+    /**
+     * Binary search on the sequence numbers of the messages in memory, or on the index of the cold tier
+     *
+     * @param chat     chat of the store
+     * @param sequence sequence number known by a client
+     * @return position of the first message with a later sequence number, -1 if it is not in memory and there is no cold tier
+     */
+    public int positionAfter(Chat chat, long sequence) {
+        if (chat.isReference())
+            return -1;
+
+        synchronized (chat) {
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            int offset = chat.getHistoryOffset();
+
+            if (offset == 0 || (!hot.isEmpty() && hot.get(0).getSequence() <= sequence)) {
+                int low = 0;
+                int high = hot.size();
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (hot.get(middle).getSequence() > sequence)
+                        high = middle;
+                    else low = middle + 1;
+                }
+                return offset + low;
+            }
+
+            if (cold == null || state(chat.getIdChat()).pinned)
+                return -1;
+            return Math.max(first(chat), Math.min(firstAfterSequence(chat, sequence), offset + hot.size()));
+        }
+    }
+
+    /**
+     * @param chat chat of the store
+     * @param time creation time
+     * @return position of the first message of the chat created at or after the time
+     */
+    public int positionAt(Chat chat, long time) {
+        synchronized (chat) {
+            if (chat.isReference())
+                return chat.getHistoryOffset();
+
+            ArrayList<ChatMessage> hot = chat.getChatMessages();
+            int offset = chat.getHistoryOffset();
+
+            if (offset > 0 && cold != null && !state(chat.getIdChat()).pinned && (hot.isEmpty() || time(hot.get(0)) >= time))
+                return Math.max(first(chat), Math.min(firstCreatedAfter(chat, time), offset + hot.size()));
+
+            int i = 0;
+            while (i < hot.size() && time(hot.get(i)) < time)
+                i++;
+            return offset + i;
+        }
+    }
+
+    /**
+     * Copy of a user to be sent to the backup of its node, its chats carry the last page of their history.
+     * The position of the page goes as the history offset of the chat, the backup keeps the messages from
+     * there on and gets the later ones as they are replicated
+     *
+     * @param user user of the store
+     * @return user copy
+     */
+    public User export(User user) {
+        return export(user, false);
+    }
+
+    /**
+     * @param user         user of the store
+     * @param wholeHistory true if the chats carry their whole history, when the user moves to another node
+     * @return user copy
+     */
+    public User export(User user, boolean wholeHistory) {
+        User copy = new User(user.getEmail(), user.getPassword(), user.getPrivateKey(), user.getPublicKey());
+        copy.setVersion(user.getVersion());
+        copy.getReadCursors().putAll(user.getReadCursors());
+
+        for (Chat chat : user.getChats().values())
+            copy.addChat(export(chat, wholeHistory));
+        for (Chat chat : user.getPendingRequests().values())
+            copy.addPendingChat(export(chat, wholeHistory));
+
+        return copy;
+    }
+
+    /**
+     * Copy of a user moving to another node, its chats go as references since the chats it holds are
+     * handed over on their own to the node responsible for them
+     *
+     * @param user user of the store
+     * @return user copy
+     */
+    public User exportMembership(User user) {
+        User copy = new User(user.getEmail(), user.getPassword(), user.getPrivateKey(), user.getPublicKey());
+        copy.setVersion(user.getVersion());
+        copy.getReadCursors().putAll(user.getReadCursors());
+
+        for (Chat chat : user.getChats().values())
+            copy.addChat(reference(chat));
+        for (Chat chat : user.getPendingRequests().values())
+            copy.addPendingChat(reference(chat));
+
+        return copy;
+    }
+
+    /**
+     * @param chat chat of the store
+     * @return copy of the chat with the last page of its history
+     */
+    public Chat export(Chat chat) {
+        return export(chat, false);
+    }
+
+    /**
+     * Copy of a chat that shares nothing with it, so it can be serialized while requests change the chat.
+     * A reference is copied as a reference
+     *
+     * @param chat         chat of the store
+     * @param wholeHistory true if the copy carries the whole history of the chat
+     * @return chat copy
+     */
+    public Chat export(Chat chat, boolean wholeHistory) {
+        if (chat.isReference())
+            return reference(chat);
+
+        int size = size(chat);
+        int from = wholeHistory ? first(chat) : Math.max(first(chat), size - HISTORY_PAGE_SIZE);
+        ArrayList<ChatMessage> page = messages(chat, from, size);
+
+        synchronized (chat) {
+            return chat.withMessages(from, page, new ArrayList<>(chat.getChatPendingMessages()));
+        }
+    }
+
+    /**
+     * @param chat chat of the store
+     * @return copy of the chat without messages that follows the chat kept by another node
+     */
+    private Chat reference(Chat chat) {
+        synchronized (chat) {
+            Chat copy = chat.withMessages(chat.getHistoryOffset() + chat.getChatMessages().size(), new ArrayList<>(), new ArrayList<>(chat.getChatPendingMessages()));
+            copy.setReference(true);
+            return copy;
+        }
+    }
+
+    /**
+     * Chat as seen by a user, the messages after the user read cursor are sent as pending
+     *
+     * @param user   user
+     * @param chat   chat of the store
+     * @param page   last messages of the chat
+     * @param offset position of the first message of the page
+     * @return copy of the chat to be sent to the user
+     */
+    public static Chat view(User user, Chat chat, ArrayList<ChatMessage> page, int offset) {
+        int cursor = Math.max(0, Math.min(user.getReadCursor(chat.getIdChat()) - offset, page.size()));
+        return chat.withMessages(offset, new ArrayList<>(page.subList(0, cursor)), new ArrayList<>(page.subList(cursor, page.size())));
+    }
+
+    /**
+     * Changes of a chat after a sequence number known by a user
+     *
+     * @param user     user
+     * @param chat     chat of the store
+     * @param sequence sequence number known by the user
+     * @param from     position of the first message after the sequence number
+     * @param page     messages after the sequence number
+     * @return copy of the chat with the new messages, the participants and public keys are only sent if they changed
+     */
+    public static Chat delta(User user, Chat chat, long sequence, int from, ArrayList<ChatMessage> page) {
+        Chat delta = view(user, chat, page, from);
+        if (chat.getMembershipSequence() <= sequence) {
+            delta.getParticipants().clear();
+            delta.getUsersPubKeys().clear();
+        }
+        return delta;
+    }
+
+    /**
+     * Last page of a chat as seen by a user, without moving its read cursor
+     *
+     * @param user user
+     * @param chat chat of the store
+     * @return copy of the chat to be sent to the user
+     */
+    public Chat view(User user, Chat chat) {
+        int size = size(chat);
+        int offset = Math.max(0, size - HISTORY_PAGE_SIZE);
+        return view(user, chat, messages(chat, offset, size), offset);
+    }
+
+    public void setRemote(HistorySource remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * @return bytes of messages held in memory
+     */
+    public long getHotBytes() {
+        return hotBytes.get();
+    }
+
+    private void touch(BigInteger chatId) {
+        synchronized (recentlyUsed) {
+            recentlyUsed.put(chatId, Boolean.TRUE);
+        }
+    }
+
+    private ChatState state(BigInteger chatId) {
+        return states.computeIfAbsent(chatId, k -> new ChatState());
+    }
+
+    private static long time(ChatMessage chatMessage) {
+        return chatMessage.getCreationDate() == null ? 0 : chatMessage.getCreationDate().getTime();
+    }
+
+    private static long size(ChatMessage chatMessage) {
+        return MESSAGE_OVERHEAD + Math.max(0, chatMessage.getContentLength());
+    }
+
+    /**
+     * Bookkeeping of a chat, guarded by the chat
+     */
+    private static class ChatState {
+        private LinkedHashSet<String> recentKeys = new LinkedHashSet<>();
+
+        /**
+         * Sequence numbers of the messages being logged, in order
+         */
+        private ArrayDeque<Long> logging = new ArrayDeque<>();
+
+        /**
+         * Creation time of the newest message spilled to the cold tier
+         */
+        private long spilledUntil = Long.MIN_VALUE;
+
+        /**
+         * True if the cold tier failed for this chat, its messages then stay in memory
+         */
+        private boolean pinned;
+
+        /**
+         * File messages followed by a reference, oldest first
+         */
+        private ArrayDeque<Followed> followed = new ArrayDeque<>();
+    }
+
+    /**
+     * File message followed by a reference and the number of messages of the chat after it
+     */
+    private static class Followed {
+        private ChatMessage message;
+        private int position;
+
+        private Followed(ChatMessage message, int position) {
+            this.message = message;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Reads the messages of chats kept by other nodes
+     */
+    public interface HistorySource {
+
+        /**
+         * @param chat reference
+         * @param from position of the first message
+         * @param to   position after the last message
+         * @return messages of the chat between the two positions kept by the node holding it
+         */
+        ArrayList<ChatMessage> read(Chat chat, int from, int to) throws IOException;
+    }
+}
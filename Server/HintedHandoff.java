@@ -0,0 +1,503 @@
+package Server;
+
+import Messages.Message;
+import Protocols.ServerConnection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.HINT_REPLAY_INTERVAL;
+
+/**
+ * Keeps the backup updates that could not be delivered to the successor, one queue per intended replica,
+ * replayed in order to that replica once it is reachable. The queue of a replica that is no longer the successor
+ * is replayed to the node that took its place.
+ * Hints are written to disk by a background thread, the hints of a round are synced together, so hints taken
+ * just before a crash can be lost. A hint is marked as replayed on disk once its replica answers, so a crash does
+ * not send it again, appends of chat messages on a backup are only deduplicated among the last ones of the chat
+ */
+public class HintedHandoff {
+
+    /**
+     * Replica id used for updates made while this node had no successor
+     */
+    public static final int NO_REPLICA = -1;
+
+    private Server server;
+    private String hintsPath;
+
+    /**
+     * Key is the id of the node that should have received the updates
+     */
+    private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Hint>> hints;
+    private AtomicInteger backlog = new AtomicInteger();
+    private AtomicLong sequence;
+    private AtomicLong replayed;
+    private long lastReplayed;
+    private long lastRateTime;
+    private volatile double drainRate;
+    private ScheduledExecutorService replayService = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Hints not on disk yet and replicas whose file is written again, handled by the writer
+     */
+    private ConcurrentLinkedQueue<Stored> toStore = new ConcurrentLinkedQueue<>();
+    private Set<Integer> toRewrite = ConcurrentHashMap.newKeySet();
+    private AtomicBoolean writeScheduled = new AtomicBoolean();
+    private ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hinted-handoff-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Sequence numbers of the hints replayed that may still be in the file of a replica, and lowest sequence number
+     * in the file of each replica, a mark is dropped once no file can have its hint
+     */
+    private Set<Long> replayedHints = ConcurrentHashMap.newKeySet();
+    private ConcurrentHashMap<Integer, Long> firstOnDisk = new ConcurrentHashMap<>();
+    private FileOutputStream replayedLog;
+
+    public HintedHandoff(Server server, String hintsPath) {
+        this.server = server;
+        this.hintsPath = hintsPath;
+        this.hints = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+        this.replayed = new AtomicLong();
+        this.lastRateTime = System.currentTimeMillis();
+        loadHints();
+    }
+
+    /**
+     * Starts replaying the stored hints periodically
+     */
+    public void start() {
+        replayService.scheduleWithFixedDelay(this::replayHints, HINT_REPLAY_INTERVAL, HINT_REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores an update that could not be sent to a replica, it is written to disk in the background
+     *
+     * @param replicaId id of the intended replica or NO_REPLICA
+     * @param message   update to be replayed
+     */
+    public void addHint(int replicaId, Message message) {
+        Hint hint = new Hint(0, message);
+
+        //the queue is only removed once empty under the same lock, so a hint is never added to a removed queue
+        hints.compute(replicaId, (id, queue) -> {
+            if (queue == null)
+                queue = new ConcurrentLinkedQueue<>();
+            hint.sequence = sequence.incrementAndGet();
+            queue.add(hint);
+            toStore.add(new Stored(replicaId, hint));
+            return queue;
+        });
+        backlog.incrementAndGet();
+        scheduleWrite();
+
+        System.out.println("Stored hint for replica " + replicaId + ", backlog: " + getBacklog());
+    }
+
+    public boolean hasHints() {
+        return backlog.get() > 0;
+    }
+
+    /**
+     * @return number of updates waiting to be replayed
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * @return hints replayed per second since the last replay round
+     */
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * Sends the hints of the successor, oldest first, to it. Hints kept for a node that is no longer
+     * the successor, or taken while there was none, are given to the successor first
+     */
+    private void replayHints() {
+        try {
+            Node successor = server.getDht().getSuccessor();
+            if (successor != null) {
+                retarget(successor.getNodeId());
+
+                ConcurrentLinkedQueue<Hint> queue = hints.get(successor.getNodeId());
+                boolean sent = false;
+                Hint hint;
+                while (queue != null && (hint = queue.peek()) != null) {
+                    if (!sendHint(successor, hint.message)) {
+                        server.serverDown(successor);
+                        break;
+                    }
+                    markReplayed(hint.sequence);
+
+                    queue.poll();
+                    backlog.decrementAndGet();
+                    replayed.incrementAndGet();
+                    sent = true;
+                }
+
+                if (sent)
+                    persistQueue(successor.getNodeId());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        updateDrainRate();
+    }
+
+    /**
+     * Moves the hints of other replicas in front of the newer hints of a replica, in the order they were taken
+     *
+     * @param replicaId id of the replica
+     */
+    private void retarget(int replicaId) {
+        for (Integer otherId : new ArrayList<>(hints.keySet())) {
+            if (otherId == replicaId)
+                continue;
+
+            ArrayList<Hint> moved = new ArrayList<>();
+            hints.computeIfPresent(otherId, (id, queue) -> {
+                moved.addAll(queue);
+                return null;
+            });
+            if (moved.isEmpty())
+                continue;
+
+            hints.compute(replicaId, (id, queue) -> {
+                if (queue != null)
+                    moved.addAll(queue);
+                moved.sort(Comparator.comparingLong(hint -> hint.sequence));
+                return new ConcurrentLinkedQueue<>(moved);
+            });
+            System.out.println("Moved " + moved.size() + " hints of replica " + otherId + " to replica " + replicaId);
+
+            toRewrite.add(otherId);
+            toRewrite.add(replicaId);
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Sends a hint on a connection opened for it
+     *
+     * @return true once the node answered
+     */
+    private boolean sendHint(Node node, Message message) {
+        ServerConnection handler = new ServerConnection(node.getNodeIp(), node.getNodePort(), server);
+
+        try {
+            handler.connect();
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            handler.sendMessage(message);
+            handler.receiveMessage();
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Function sendHint: Failed to receive message");
+            return false;
+        } finally {
+            handler.closeConnection();
+        }
+    }
+
+    /**
+     * Writes what is left of a queue after a replay round, the hints replayed in the round are already marked so
+     * a crash before it is written does not send them again
+     */
+    private void persistQueue(int replicaId) {
+        hints.computeIfPresent(replicaId, (id, queue) -> queue.isEmpty() ? null : queue);
+        toRewrite.add(replicaId);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true))
+            writer.execute(this::write);
+    }
+
+    /**
+     * Writes the files of the replicas replayed since the last round again and appends the new hints
+     * of the others, each file is synced once per round
+     */
+    private void write() {
+        writeScheduled.set(false);
+
+        HashSet<Integer> rewrite = new HashSet<>();
+        for (Integer replicaId : new ArrayList<>(toRewrite)) {
+            toRewrite.remove(replicaId);
+            rewrite.add(replicaId);
+        }
+
+        //the hints of a replica written again are already in its queue
+        HashMap<Integer, ArrayList<Hint>> appends = new HashMap<>();
+        Stored stored;
+        while ((stored = toStore.poll()) != null)
+            if (!rewrite.contains(stored.replicaId))
+                appends.computeIfAbsent(stored.replicaId, id -> new ArrayList<>()).add(stored.hint);
+
+        for (Integer replicaId : rewrite) {
+            try {
+                rewriteOnDisk(replicaId, hints.get(replicaId));
+            } catch (IOException e) {
+                System.out.println("Failed to update hints of replica " + replicaId + " on disk");
+            }
+        }
+
+        for (Integer replicaId : appends.keySet()) {
+            try {
+                appendToDisk(replicaId, appends.get(replicaId));
+            } catch (IOException e) {
+                System.out.println("Failed to store hints on disk, keeping them only in memory");
+            }
+        }
+
+        compactReplayed();
+    }
+
+    /**
+     * Syncs the sequence number of a hint its replica answered before the hint leaves its queue, a crash between
+     * the answer and the sync sends that hint once more
+     */
+    private synchronized void markReplayed(long hintSequence) {
+        try {
+            if (replayedLog == null)
+                replayedLog = new FileOutputStream(replayedFile(), true);
+            replayedLog.write(ByteBuffer.allocate(Long.BYTES).putLong(hintSequence).array());
+            replayedLog.getFD().sync();
+            replayedHints.add(hintSequence);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to mark hint " + hintSequence + " as replayed, a crash may send it again");
+        }
+    }
+
+    /**
+     * Writes the marks again without those of hints older than every hint on disk
+     */
+    private synchronized void compactReplayed() {
+        long first = firstOnDisk.values().stream().min(Long::compare).orElse(Long.MAX_VALUE);
+        if (!replayedHints.removeIf(hintSequence -> hintSequence < first))
+            return;
+
+        File file = replayedFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            if (replayedLog != null) {
+                replayedLog.close();
+                replayedLog = null;
+            }
+
+            try (FileOutputStream fileStream = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+                for (long hintSequence : replayedHints)
+                    out.writeLong(hintSequence);
+                out.flush();
+                fileStream.getFD().sync();
+            }
+
+            if (!temp.renameTo(file))
+                throw new IOException("Could not replace " + file.getPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to compact the replayed hints");
+        }
+    }
+
+    private void updateDrainRate() {
+        long now = System.currentTimeMillis();
+        long total = replayed.get();
+
+        if (now > lastRateTime)
+            drainRate = (total - lastReplayed) * 1000.0 / (now - lastRateTime);
+
+        lastReplayed = total;
+        lastRateTime = now;
+
+        if (hasHints() || drainRate > 0)
+            System.out.println("Hinted handoff - backlog: " + getBacklog() + " drain rate: " + drainRate + " hints/s");
+    }
+
+    private File hintsFile(int replicaId) {
+        return new File(hintsPath + "/" + replicaId);
+    }
+
+    private File replayedFile() {
+        return new File(hintsPath + "/replayed");
+    }
+
+    /**
+     * Record format: [sequence][length][serialized message]
+     */
+    private void appendToDisk(int replicaId, ArrayList<Hint> toAppend) throws IOException {
+        try (FileOutputStream fileStream = new FileOutputStream(hintsFile(replicaId), true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            for (Hint hint : toAppend)
+                writeHint(out, hint);
+            out.flush();
+            fileStream.getFD().sync();
+        }
+
+        for (Hint hint : toAppend)
+            firstOnDisk.merge(replicaId, hint.sequence, Math::min);
+    }
+
+    private void rewriteOnDisk(int replicaId, ConcurrentLinkedQueue<Hint> queue) throws IOException {
+        File file = hintsFile(replicaId);
+
+        if (queue == null || queue.isEmpty()) {
+            file.delete();
+            firstOnDisk.remove(replicaId);
+            return;
+        }
+
+        long first = Long.MAX_VALUE;
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            for (Hint hint : queue) {
+                writeHint(out, hint);
+                first = Math.min(first, hint.sequence);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        }
+
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file.getPath());
+        firstOnDisk.put(replicaId, first);
+    }
+
+    private void writeHint(DataOutputStream out, Hint hint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objectStream = new ObjectOutputStream(bytes);
+        objectStream.writeObject(hint.message);
+        objectStream.close();
+
+        out.writeLong(hint.sequence);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Loads hints left on disk by a previous run of this node
+     */
+    private void loadHints() {
+        File[] files = new File(hintsPath).listFiles();
+        if (files == null)
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(replayedFile())))) {
+            while (true)
+                replayedHints.add(in.readLong());
+        } catch (FileNotFoundException e) {
+            //no hint was replayed since the marks were last dropped
+        } catch (EOFException e) {
+            //end of file, a truncated last mark is dropped
+        } catch (IOException e) {
+            System.out.println("Failed to load the replayed hints");
+        }
+        for (long hintSequence : replayedHints)
+            if (hintSequence > sequence.get())
+                sequence.set(hintSequence);
+
+        //a hint moved to another replica is in both files if the node stopped before the first one was written again
+        HashSet<Long> loaded = new HashSet<>();
+        for (File file : files) {
+            int replicaId;
+            try {
+                replicaId = Integer.parseInt(file.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            ConcurrentLinkedQueue<Hint> queue = new ConcurrentLinkedQueue<>();
+            boolean skipped = false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    long hintSequence = in.readLong();
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    Message message = (Message) new ObjectInputStream(new ByteArrayInputStream(content)).readObject();
+                    firstOnDisk.merge(replicaId, hintSequence, Math::min);
+                    //new hints never take the sequence number of a replayed one
+                    if (hintSequence > sequence.get())
+                        sequence.set(hintSequence);
+                    //a hint appended while its file was written again is on disk twice
+                    if (!loaded.add(hintSequence) || replayedHints.contains(hintSequence)) {
+                        skipped = true;
+                        continue;
+                    }
+                    queue.add(new Hint(hintSequence, message));
+                }
+            } catch (EOFException e) {
+                //end of file, a truncated last record is dropped
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("Failed to load hints from " + file.getPath());
+            }
+
+            if (!queue.isEmpty()) {
+                hints.put(replicaId, queue);
+                backlog.addAndGet(queue.size());
+            }
+            //written again without the hints replayed, then their marks can be dropped
+            if (skipped)
+                toRewrite.add(replicaId);
+        }
+        if (!toRewrite.isEmpty())
+            scheduleWrite();
+
+        System.out.println("Loaded " + getBacklog() + " hints from disk");
+    }
+
+    /**
+     * Hint waiting to be appended to the file of its replica
+     */
+    private static class Stored {
+        private int replicaId;
+        private Hint hint;
+
+        private Stored(int replicaId, Hint hint) {
+            this.replicaId = replicaId;
+            this.hint = hint;
+        }
+    }
+
+    private static class Hint {
+        private long sequence;
+        private Message message;
+
+        private Hint(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+}
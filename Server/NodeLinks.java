@@ -0,0 +1,222 @@
+package Server;
+
+import Messages.Message;
+import Protocols.ServerConnection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.LINK_ACK;
+import static Utilities.Constants.LINK_WINDOW;
+
+/**
+ * Persistent connections to other nodes, one per node, kept open between transfers.
+ * Each message sent on a link is numbered and the node on the other end acks it with LINK_ACK once it handled it.
+ * At most LINK_WINDOW messages of a link wait for their ack, the messages not acked when a link fails are sent
+ * once more on a new link and fail after that
+ */
+public class NodeLinks {
+
+    private Server server;
+    private ConcurrentHashMap<Integer, Link> links = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the acks of each link
+     */
+    private ExecutorService readers = Executors.newCachedThreadPool();
+
+    private AtomicLong sequence = new AtomicLong();
+    private AtomicLong opened = new AtomicLong();
+    private AtomicLong sent = new AtomicLong();
+    private AtomicLong resent = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+
+    public NodeLinks(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Sends a message on the link to a node, after the messages sent before on the link.
+     * The number of the message is put before its body
+     *
+     * @param node    node
+     * @param message message
+     * @return completed with true once the node handled the message, with false if it could not pass it on
+     * and exceptionally if the link failed twice
+     */
+    public CompletableFuture<Boolean> send(Node node, Message message) throws IOException {
+        Pending pending = new Pending(node, message, sequence.incrementAndGet());
+        message.setBody(pending.sequence + " " + message.getBody());
+        write(pending);
+        return pending.acked;
+    }
+
+    /**
+     * Writes a message on the link to its node, a link that fails is opened again once
+     */
+    private void write(Pending pending) throws IOException {
+        while (pending.attempts++ < 2) {
+            Link link = get(pending.node);
+
+            try {
+                link.window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            link.unacked.put(pending.sequence, pending);
+
+            //a link that failed meanwhile sends its messages again, unless this one was taken back first
+            if (link.closed) {
+                if (link.unacked.remove(pending.sequence) == null)
+                    return;
+                link.window.release();
+                pending.attempts--;
+                continue;
+            }
+
+            long written = link.connection.sendBulk(pending.message);
+            if (written > 0) {
+                sent.incrementAndGet();
+                bytes.addAndGet(written);
+                return;
+            }
+
+            if (link.unacked.remove(pending.sequence) == null)
+                return;
+            link.window.release();
+            fail(link);
+        }
+        throw new IOException("Link to node " + pending.node.getNodeId() + " failed");
+    }
+
+    private Link get(Node node) throws IOException {
+        Link link = links.get(node.getNodeId());
+        if (link != null)
+            return link;
+
+        synchronized (this) {
+            link = links.get(node.getNodeId());
+            if (link == null) {
+                ServerConnection connection = new ServerConnection(node.getNodeIp(), node.getNodePort(), server);
+                connection.connect();
+                link = new Link(node.getNodeId(), connection);
+                links.put(node.getNodeId(), link);
+                opened.incrementAndGet();
+
+                Link reader = link;
+                readers.execute(() -> read(reader));
+            }
+        }
+        return link;
+    }
+
+    /**
+     * Completes the messages of a link as their acks arrive, until the link fails
+     *
+     * @param link link
+     */
+    private void read(Link link) {
+        try {
+            while (true) {
+                Message message = link.connection.receiveMessage();
+                if (!message.getMessageType().equals(LINK_ACK))
+                    continue;
+
+                String[] body = message.getBody().split(" ");
+                Pending pending = link.unacked.remove(Long.parseLong(body[0]));
+                if (pending != null) {
+                    link.window.release();
+                    pending.acked.complete(Boolean.parseBoolean(body[1]));
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            fail(link);
+        }
+    }
+
+    /**
+     * Closes a link and sends the messages it had not acked again on a new one
+     */
+    private void fail(Link link) {
+        link.closed = true;
+        if (links.remove(link.nodeId, link))
+            link.connection.closeConnection();
+
+        for (Long key : link.unacked.keySet()) {
+            Pending pending = link.unacked.remove(key);
+            if (pending == null)
+                continue;
+            link.window.release();
+
+            resent.incrementAndGet();
+            readers.execute(() -> {
+                try {
+                    write(pending);
+                } catch (IOException e) {
+                    pending.acked.completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the link to a node that is down
+     */
+    public void close(int nodeId) {
+        Link link = links.get(nodeId);
+        if (link != null)
+            fail(link);
+    }
+
+    /**
+     * @return number of links opened since the start
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public void printStats() {
+        System.out.println("Node links - open: " + links.size()
+                + " opened: " + opened.get()
+                + " messages: " + sent.get()
+                + " resent: " + resent.get()
+                + " sent: " + bytes.get() / 1024 + " KB");
+    }
+
+    private static class Link {
+        private int nodeId;
+        private ServerConnection connection;
+        private ConcurrentHashMap<Long, Pending> unacked = new ConcurrentHashMap<>();
+        private Semaphore window = new Semaphore(LINK_WINDOW);
+        private volatile boolean closed;
+
+        private Link(int nodeId, ServerConnection connection) {
+            this.nodeId = nodeId;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Message sent on a link and not acked yet
+     */
+    private static class Pending {
+        private Node node;
+        private Message message;
+        private long sequence;
+        private int attempts;
+        private CompletableFuture<Boolean> acked = new CompletableFuture<>();
+
+        private Pending(Node node, Message message, long sequence) {
+            this.node = node;
+            this.message = message;
+            this.sequence = sequence;
+        }
+    }
+}
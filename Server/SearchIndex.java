@@ -0,0 +1,430 @@
+package Server;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Utilities.LatencyRecorder;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static Utilities.Constants.SEARCH_INDEX_BATCH;
+import static Utilities.Constants.SEARCH_STATS_INTERVAL;
+import static Utilities.Constants.TEXT_MESSAGE;
+
+/**
+ * Inverted index over the text messages of the chats of a node, partitioned by chat.
+ * A partition maps each term to the positions of the messages of its chat containing it,
+ * so a query only touches the partitions of the chats of the user searching.
+ * Partitions are brought up to date from the chat store when a message is appended and before a query,
+ * which also covers history received with a chat from another node or restored on restart.
+ * Chats kept as references are searched on the node holding them
+ */
+public class SearchIndex {
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int LATENCY_SAMPLES = 4096;
+
+    private ChatStore store;
+    private ConcurrentHashMap<BigInteger, Partition> partitions = new ConcurrentHashMap<>();
+    private volatile RemoteSearch remote;
+
+    private long indexedMessages;
+    private long indexTime;
+    private LatencyRecorder queryLatencies = new LatencyRecorder(LATENCY_SAMPLES);
+    private long lastStatsTime = System.currentTimeMillis();
+
+    public SearchIndex(ChatStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Indexes every chat of the store, used on start
+     */
+    public void build() {
+        long start = System.currentTimeMillis();
+        long before = getIndexedMessages();
+
+        for (Chat chat : store.getChats())
+            update(chat);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        long indexed = getIndexedMessages() - before;
+        System.out.println("Search index built " + indexed + " messages of " + partitions.size() + " chats in "
+                + elapsed + " ms (" + indexed * 1000 / elapsed + " messages/s)");
+    }
+
+    /**
+     * Indexes the messages of a chat appended since the last update
+     *
+     * @param chat chat of the store
+     */
+    public void update(Chat chat) {
+        if (chat.isReference())
+            return;
+
+        Partition partition = partitions.computeIfAbsent(chat.getIdChat(), k -> new Partition());
+        long start = System.nanoTime();
+        int indexed = 0;
+
+        synchronized (partition) {
+            int first = store.first(chat);
+            int size = store.size(chat);
+
+            //messages dropped by the retention policy of the chat
+            if (first - partition.first > (partition.indexed - partition.first) / 4)
+                partition.dropBefore(first);
+
+            int from = Math.max(partition.indexed, first);
+            while (from < size) {
+                ArrayList<ChatMessage> page = store.messages(chat, from, Math.min(size, from + SEARCH_INDEX_BATCH));
+                if (page.isEmpty())
+                    break;
+                for (ChatMessage message : page) {
+                    if (TEXT_MESSAGE.equals(message.getType()) && message.getContent() != null)
+                        partition.add(terms(new String(message.getContent())), from);
+                    from++;
+                    indexed++;
+                }
+            }
+            partition.indexed = Math.max(partition.indexed, from);
+        }
+
+        if (indexed > 0) {
+            synchronized (this) {
+                indexedMessages += indexed;
+                indexTime += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Ranks the text messages of the chats of a user by tf-idf, each chat is searched on its own partition
+     * and the best hits of every partition are merged
+     *
+     * @param user   user searching
+     * @param query  words searched
+     * @param offset number of hits skipped
+     * @param count  maximum number of hits returned
+     * @return page of hits, best first
+     */
+    public Results search(User user, String query, int offset, int count) {
+        long start = System.nanoTime();
+        LinkedHashSet<String> terms = terms(query);
+        PriorityQueue<Hit> best = queue();
+        int total = 0;
+
+        for (Chat chat : user.getChats().values()) {
+            if (chat.isReference()) {
+                total += searchRemote(chat, query, offset + count, best);
+                continue;
+            }
+
+            HashMap<Integer, Double> scores = score(chat, terms);
+            total += scores.size();
+            for (Map.Entry<Integer, Double> entry : scores.entrySet())
+                keep(best, new Hit(chat, entry.getKey(), entry.getValue(), null), offset + count);
+        }
+
+        ArrayList<Hit> ranked = rank(best);
+        ArrayList<ChatMessage> page = new ArrayList<>();
+        for (int i = offset; i < ranked.size(); i++) {
+            Hit hit = ranked.get(i);
+            if (hit.message != null)
+                page.add(hit.message);
+            else page.addAll(store.messages(hit.chat, hit.position, hit.position + 1));
+        }
+
+        recordQuery(System.nanoTime() - start);
+        return new Results(page, total);
+    }
+
+    /**
+     * Ranks the text messages of one chat held by this node, used by the nodes keeping it as a reference
+     *
+     * @param chat  chat of the store
+     * @param query words searched
+     * @param count maximum number of hits returned
+     * @return best hits of the chat with their positions and scores, best first
+     */
+    public Results searchChat(Chat chat, String query, int count) {
+        HashMap<Integer, Double> scores = score(chat, terms(query));
+        PriorityQueue<Hit> best = queue();
+        for (Map.Entry<Integer, Double> entry : scores.entrySet())
+            keep(best, new Hit(chat, entry.getKey(), entry.getValue(), null), count);
+
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        ArrayList<Integer> positions = new ArrayList<>();
+        ArrayList<Double> hitScores = new ArrayList<>();
+        for (Hit hit : rank(best)) {
+            ArrayList<ChatMessage> message = store.messages(chat, hit.position, hit.position + 1);
+            if (message.isEmpty())
+                continue;
+            messages.add(message.get(0));
+            positions.add(hit.position);
+            hitScores.add(hit.score);
+        }
+        return new Results(messages, scores.size(), positions, hitScores);
+    }
+
+    /**
+     * @return score of each message of a chat matching any of the terms, by position
+     */
+    private HashMap<Integer, Double> score(Chat chat, LinkedHashSet<String> terms) {
+        update(chat);
+        Partition partition = partitions.get(chat.getIdChat());
+        int first = store.first(chat);
+
+        HashMap<Integer, Double> scores = new HashMap<>();
+        synchronized (partition) {
+            double messages = Math.max(1, partition.indexed - partition.first);
+            for (String term : terms) {
+                Postings postings = partition.postings.get(term);
+                if (postings == null)
+                    continue;
+                double idf = Math.log(1 + messages / postings.size);
+                for (int i = 0; i < postings.size; i++) {
+                    if (postings.positions[i] >= first)
+                        scores.merge(postings.positions[i], (1 + Math.log(postings.frequencies[i])) * idf, Double::sum);
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Adds the best hits of a chat kept by another node
+     *
+     * @return number of messages of the chat matching the query
+     */
+    private int searchRemote(Chat chat, String query, int count, PriorityQueue<Hit> best) {
+        RemoteSearch source = remote;
+        if (source == null)
+            return 0;
+
+        Results results = source.search(chat, query, count);
+        if (results == null)
+            return 0;
+
+        for (int i = 0; i < results.messages.size(); i++)
+            keep(best, new Hit(chat, results.positions.get(i), results.scores.get(i), results.messages.get(i)), count);
+        return results.total;
+    }
+
+    /**
+     * @return queue of hits with the worst first
+     */
+    private static PriorityQueue<Hit> queue() {
+        return new PriorityQueue<>(Comparator.comparingDouble((Hit hit) -> hit.score).thenComparingInt(hit -> hit.position));
+    }
+
+    private static void keep(PriorityQueue<Hit> best, Hit hit, int count) {
+        best.add(hit);
+        if (best.size() > count)
+            best.poll();
+    }
+
+    /**
+     * @return hits with the best first
+     */
+    private static ArrayList<Hit> rank(PriorityQueue<Hit> best) {
+        ArrayList<Hit> ranked = new ArrayList<>(best);
+        ranked.sort(Comparator.comparingDouble((Hit hit) -> -hit.score).thenComparingInt(hit -> -hit.position));
+        return ranked;
+    }
+
+    public void setRemote(RemoteSearch remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * @return lower case words of a text, without repeats
+     */
+    static LinkedHashSet<String> terms(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() >= MIN_TERM_LENGTH)
+                terms.add(word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word);
+        }
+        return terms;
+    }
+
+    private synchronized void recordQuery(long latency) {
+        queryLatencies.record(latency);
+
+        long now = System.currentTimeMillis();
+        if (now - lastStatsTime >= SEARCH_STATS_INTERVAL) {
+            lastStatsTime = now;
+            printStats();
+        }
+    }
+
+    /**
+     * Prints the indexing throughput and the latency distribution of the last queries
+     */
+    public synchronized void printStats() {
+        System.out.println("Search index - chats: " + partitions.size()
+                + " messages: " + indexedMessages
+                + " indexing: " + indexedMessages * 1000000000L / Math.max(1, indexTime) + " messages/s"
+                + " queries: " + queryLatencies.getCount()
+                + " p50: " + queryLatencies.percentile(0.50) / 1000 + "us"
+                + " p99: " + queryLatencies.percentile(0.99) / 1000 + "us");
+    }
+
+    public synchronized long getIndexedMessages() {
+        return indexedMessages;
+    }
+
+
+    /**
+     * Page of search hits
+     */
+    public static class Results {
+        private ArrayList<ChatMessage> messages;
+        private int total;
+        private ArrayList<Integer> positions;
+        private ArrayList<Double> scores;
+
+        private Results(ArrayList<ChatMessage> messages, int total) {
+            this.messages = messages;
+            this.total = total;
+        }
+
+        /**
+         * @param messages  messages matching, best first
+         * @param total     number of messages matching the query
+         * @param positions position of each message in its chat
+         * @param scores    score of each message
+         */
+        public Results(ArrayList<ChatMessage> messages, int total, ArrayList<Integer> positions, ArrayList<Double> scores) {
+            this.messages = messages;
+            this.total = total;
+            this.positions = positions;
+            this.scores = scores;
+        }
+
+        public ArrayList<ChatMessage> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return number of messages matching the query
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public ArrayList<Integer> getPositions() {
+            return positions;
+        }
+
+        public ArrayList<Double> getScores() {
+            return scores;
+        }
+    }
+
+    /**
+     * Searches the chats kept by other nodes
+     */
+    public interface RemoteSearch {
+
+        /**
+         * @param chat  reference
+         * @param query words searched
+         * @param count maximum number of hits returned
+         * @return best hits of the chat with their positions and scores, null if the node holding it failed
+         */
+        Results search(Chat chat, String query, int count);
+    }
+
+    private static class Hit {
+        private Chat chat;
+        private int position;
+        private double score;
+
+        /**
+         * Message of a hit found by another node, null if it is read from the store
+         */
+        private ChatMessage message;
+
+        private Hit(Chat chat, int position, double score, ChatMessage message) {
+            this.chat = chat;
+            this.position = position;
+            this.score = score;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Index of one chat, guarded by itself
+     */
+    private static class Partition {
+        private HashMap<String, Postings> postings = new HashMap<>();
+
+        /**
+         * Position after the last message indexed
+         */
+        private int indexed;
+
+        /**
+         * Position of the first message still indexed
+         */
+        private int first;
+
+        private void add(LinkedHashSet<String> terms, int position) {
+            for (String term : terms)
+                postings.computeIfAbsent(term, k -> new Postings()).add(position);
+        }
+
+        private void dropBefore(int position) {
+            Iterator<Postings> iterator = postings.values().iterator();
+            while (iterator.hasNext()) {
+                Postings entry = iterator.next();
+                entry.dropBefore(position);
+                if (entry.size == 0)
+                    iterator.remove();
+            }
+            first = position;
+        }
+    }
+
+    /**
+     * Positions of the messages containing a term, in order, and how many times it appears in each
+     */
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        private void add(int position) {
+            if (size > 0 && positions[size - 1] == position) {
+                frequencies[size - 1]++;
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            positions[size] = position;
+            frequencies[size] = 1;
+            size++;
+        }
+
+        private void dropBefore(int position) {
+            int count = 0;
+            while (count < size && positions[count] < position)
+                count++;
+            System.arraycopy(positions, count, positions, 0, size - count);
+            System.arraycopy(frequencies, count, frequencies, 0, size - count);
+            size -= count;
+        }
+    }
+}
@@ -2,26 +2,52 @@ package Server;
 
 import Chat.Chat;
 import Chat.ChatMessage;
+import Chat.RetentionPolicy;
 import Messages.Message;
 import Protocols.DistributedHashTable;
 import Protocols.ServerConnection;
+import Storage.BlobStore;
+import Storage.ChatLog;
+import Storage.FileSessions;
+import Storage.HistoryStore;
+import Storage.LogRecord;
+import Storage.LogReplay;
+import Storage.PayloadArena;
+import Storage.Snapshot;
+import Utilities.ChunkSizer;
+import Utilities.LatencyRecorder;
 
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static Utilities.Constants.*;
 import static Utilities.Utilities.createHash;
+import static Utilities.Utilities.printOverhead;
+import static Utilities.Utilities.printThroughput;
+import static Utilities.Utilities.threadCpuTime;
 
 public class Server extends Node implements Serializable {
 
@@ -37,6 +63,11 @@ public class Server extends Node implements Serializable {
     private ConcurrentHashMap<BigInteger, User> backups;
 
     private DistributedHashTable dht;
+
+    /**
+     * PRIMARY_BACKUP_REPLICATION or CHAIN_REPLICATION
+     */
+    private String replicationMode;
     /**
      * Logged in users
      */
@@ -44,12 +75,90 @@ public class Server extends Node implements Serializable {
     transient private SSLServerSocket sslServerSocket;
     transient private ExecutorService threadPool = Executors.newFixedThreadPool(MAX_NUMBER_OF_REQUESTS);
 
+    /**
+     * Backup updates that could not reach the successor
+     */
+    transient private HintedHandoff hintedHandoff;
+    transient private UploadManager uploadManager;
+
+    /**
+     * Open channels of the files being received
+     */
+    transient private FileSessions fileSessions = new FileSessions(MAX_OPEN_TRANSFER_FILES, TRANSFER_IDLE_TIMEOUT);
+
+    /**
+     * Persistent connections to the other nodes files are replicated on
+     */
+    transient private NodeLinks nodeLinks = new NodeLinks(this);
+
+    /**
+     * Time spent delivering each message to its chat, by size of the chat
+     */
+    transient private LatencyRecorder[] fanOutLatencies = new LatencyRecorder[FAN_OUT_BUCKETS.length + 1];
+
+    /**
+     * Chunks of an upload the client may send before they are acknowledged
+     */
+    private int transferWindow;
+
+    /**
+     * Files of the chats of this node, stored once by digest
+     */
+    transient private BlobStore blobStore;
+
+    /**
+     * Streams promoted users to the new successor after a failure
+     */
+    transient private ExecutorService replicationService = Executors.newSingleThreadExecutor();
+
+    /**
+     * Write-ahead log of chats, memberships and messages of this node users
+     */
+    transient private ChatLog chatLog;
+
+    /**
+     * One chat per chat id for the users of this node and for its backups,
+     * each one spills old messages to its own history store on memory-mapped segments
+     */
+    transient private ChatStore chatStore;
+    transient private ChatStore backupChatStore;
+
+    /**
+     * Inverted index over the text messages of the chats of the users of this node
+     */
+    transient private SearchIndex searchIndex;
+
+    /**
+     * Read cursors of the users of this node and sizes of the chats it keeps as references changed since the last
+     * batch sent to the backup, by U:UserId:ChatId or C:ChatId
+     */
+    transient private ConcurrentHashMap<String, String> cursorUpdates = new ConcurrentHashMap<>();
+    transient private ScheduledExecutorService cursorService = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Time up to which the node with each id sent all its updates to this node, from the watermark of its last
+     * batch of read cursors. Batches are sent even without cursors, as heartbeats of idle nodes
+     */
+    transient private ConcurrentHashMap<Integer, Long> replicatedUntil = new ConcurrentHashMap<>();
+
+    transient private ScheduledExecutorService snapshotService = Executors.newSingleThreadScheduledExecutor();
+    transient private ScheduledExecutorService compactionService = Executors.newSingleThreadScheduledExecutor();
+    transient private File snapshotFile;
+
+    /**
+     * Log sequence at the start of the last snapshot, the next snapshot replays the log from here
+     * so records logged but not yet applied while a snapshot is taken are not lost
+     */
+    transient private long lastSnapshotSequence;
+
     /**
      * @param args ServerId ServerPort KnownServerId KnownServer Port
      */
     public Server(String args[]) {
         super(args[0], Integer.parseInt(args[1]));
         dht = new DistributedHashTable(this);
+        replicationMode = System.getProperty("replication", PRIMARY_BACKUP_REPLICATION);
+        transferWindow = Math.max(1, Integer.getInteger("transferWindow", TRANSFER_WINDOW));
 
         System.out.println("Server ID: " + this.getNodeId());
 
@@ -62,15 +171,149 @@ public class Server extends Node implements Serializable {
         //creating directories
         String usersPath = DATA_DIRECTORY + "/" + nodeId + "/" + USER_DIRECTORY;
         String chatsPath = DATA_DIRECTORY + "/" + nodeId + "/" + CHAT_DIRECTORY;
+        String hintsPath = DATA_DIRECTORY + "/" + nodeId + "/" + HINTS_DIRECTORY;
 
         createDir(DATA_DIRECTORY);
         createDir(DATA_DIRECTORY + "/" + Integer.toString(nodeId));
         createDir(usersPath);
         createDir(chatsPath);
+        createDir(hintsPath);
+
+        hintedHandoff = new HintedHandoff(this, hintsPath);
+        uploadManager = new UploadManager(DATA_DIRECTORY + "/" + nodeId + "/" + UPLOADS_DIRECTORY, fileSessions);
+        for (int i = 0; i < fanOutLatencies.length; i++)
+            fanOutLatencies[i] = new LatencyRecorder(FAN_OUT_SAMPLES);
+
+        try {
+            blobStore = new BlobStore(DATA_DIRECTORY + "/" + nodeId + "/" + BLOBS_DIRECTORY, fileSessions);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to open blob store");
+        }
+        hintedHandoff.start();
+
+        try {
+            chatLog = new ChatLog(chatsPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to open chat log");
+        }
+
+        long hotMessageBytes = Long.getLong("hotMessageBytes", HOT_MESSAGE_BYTES);
+        PayloadArena payloadArena = new PayloadArena(Long.getLong("offHeapPayloadBytes", OFF_HEAP_PAYLOAD_BYTES));
+        backupChatStore = new ChatStore(openHistoryStore(chatsPath + "/" + BACKUP_HISTORY_DIRECTORY), payloadArena, hotMessageBytes);
+        //promoted backups keep their history in the backup store
+        chatStore = new ChatStore(openHistoryStore(chatsPath + "/" + HISTORY_DIRECTORY), payloadArena, hotMessageBytes, backupChatStore);
 
         users = new ConcurrentHashMap<>();
         loggedInUsers = new ConcurrentHashMap<>();
         backups = new ConcurrentHashMap<BigInteger, User>();
+
+        snapshotFile = new File(usersPath + "/" + SNAPSHOT_FILE);
+        recoverState();
+        searchIndex = new SearchIndex(chatStore);
+        //chats kept as references are read and searched on the node holding them
+        chatStore.setRemote(this::readFromOwner);
+        backupChatStore.setRemote(this::readFromOwner);
+        searchIndex.setRemote(this::searchAtOwner);
+        compactionService.execute(searchIndex::build);
+        cursorService.scheduleWithFixedDelay(this::replicateReadCursors, READ_CURSOR_REPLICATION_INTERVAL, READ_CURSOR_REPLICATION_INTERVAL, TimeUnit.MILLISECONDS);
+        snapshotService.scheduleWithFixedDelay(this::takeSnapshot, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+        compactionService.scheduleWithFixedDelay(this::compactHistory, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the last snapshot and replays the chat log written after it
+     */
+    private void recoverState() {
+        long start = System.currentTimeMillis();
+        long replayFrom = 0;
+        Collection<Chat> heldChats = new ArrayList<>();
+        Collection<Chat> backupChats = new ArrayList<>();
+
+        Snapshot snapshot = Snapshot.read(snapshotFile);
+        if (snapshot != null) {
+            users.putAll(snapshot.getUsers());
+            backups.putAll(snapshot.getBackups());
+            heldChats = snapshot.getChats();
+            backupChats = snapshot.getBackupChats();
+            replayFrom = snapshot.getLogSequence();
+        }
+
+        LogReplay replay = new LogReplay(users, heldChats);
+        long replayed = 0;
+        if (chatLog != null) {
+            try {
+                replayed = chatLog.replay(replayFrom, replay);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to replay chat log");
+            }
+            lastSnapshotSequence = chatLog.getDurableSequence();
+        }
+
+        for (User user : users.values())
+            chatStore.recover(user);
+        //chats held for participants of other nodes only
+        for (Chat chat : replay.getChats())
+            chatStore.recover(chat);
+        for (User backup : backups.values())
+            backupChatStore.recover(backup);
+        for (Chat chat : backupChats)
+            backupChatStore.recover(chat);
+
+        System.out.println("Recovered " + users.size() + " users, " + backups.size() + " backups and "
+                + replayed + " log records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Drops the messages past the retention policy of their chats and rewrites the history segments
+     * left with many dropped messages, for the users of this node and for its backups
+     */
+    private void compactHistory() {
+        long start = System.currentTimeMillis();
+
+        int dropped = chatStore.applyRetention(this::releaseFile) + backupChatStore.applyRetention();
+        long reclaimed = chatStore.compact() + backupChatStore.compact();
+        if (blobStore != null)
+            reclaimed += blobStore.collect();
+        int expired = uploadManager.expire();
+        if (expired > 0)
+            System.out.println("Dropped " + expired + " idle uploads");
+
+        if (dropped > 0 || reclaimed > 0)
+            System.out.println("Compaction dropped " + dropped + " expired messages and reclaimed " + reclaimed / 1024
+                    + " KB in " + (System.currentTimeMillis() - start) + " ms");
+        if (blobStore != null)
+            blobStore.printStats();
+        fileSessions.printStats();
+        nodeLinks.printStats();
+        printFanOutStats();
+    }
+
+    /**
+     * Writes a snapshot of users and backups in the background, request threads keep running meanwhile
+     */
+    private void takeSnapshot() {
+        if (chatLog == null)
+            return;
+
+        long start = System.currentTimeMillis();
+        long sequence = chatLog.getDurableSequence();
+        //messages logged up to sequence are in the chats before the next snapshot is written
+        chatStore.awaitLogging();
+
+        try {
+            Snapshot.write(snapshotFile, lastSnapshotSequence, users, backups, chatStore.getChats(), backupChatStore.getChats());
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failed to write snapshot");
+            return;
+        }
+
+        chatLog.deleteSegmentsBefore(lastSnapshotSequence);
+        lastSnapshotSequence = sequence;
+        System.out.println("Snapshot written in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     /**
@@ -179,18 +422,75 @@ public class Server extends Node implements Serializable {
     }
 
     /**
-     * Copies all backup data from failed node to its server data
-     * and backups the new data to successor
+     * Promotes all backup data from failed node to its server data at once
+     * and streams the promoted users to the successor in the background.
+     * Users are moved one at a time from the backups, so backups updated meanwhile are not lost
      */
     public void beginNodeFailureProtocol() {
 
-        for (ConcurrentHashMap.Entry<BigInteger, User> entry : backups.entrySet()) {
-            users.put(entry.getKey(), entry.getValue());
+        HashMap<BigInteger, User> promoted = new HashMap<>();
+        for (BigInteger userId : new ArrayList<>(backups.keySet())) {
+            //on a chain this node also holds copies of users from nodes further behind
+            if (replicationMode.equals(CHAIN_REPLICATION) && dht.nodeLookUp(Integer.remainderUnsigned(userId.intValue(), 128)).getNodeId() != nodeId)
+                continue;
+            User user = backups.remove(userId);
+            if (user != null)
+                promoted.put(userId, user);
+        }
+
+        //chats held by the failed node that this node is now responsible for
+        ArrayList<Chat> promotedChats = new ArrayList<>();
+        for (Chat chat : backupChatStore.getChats()) {
+            Chat stored = chatStore.get(chat.getIdChat());
+            if (chat.isReference() || !ownsChat(chat.getIdChat()) || (stored != null && !stored.isReference()))
+                continue;
+            Chat held = chatStore.register(chat, backupChatStore);
+            if (log(LogRecord.chatCreated(held)))
+                promotedChats.add(held);
+        }
+
+        for (User user : promoted.values()) {
+            chatStore.adopt(user, backupChatStore);
+            users.put(user.getUserId(), user);
+        }
+
+        System.out.println("Promoted " + promoted.size() + " backups and " + promotedChats.size() + " chats to server data");
+
+        replicationService.submit(() -> {
+            streamToBackup(new ArrayList<User>(promoted.values()));
+            for (Chat chat : promotedChats)
+                replicateChat(chat);
+        });
+    }
+
+    /**
+     * Sends users to the successor in batches, limited to MAX_REPLICATION_RATE users per second
+     *
+     * @param toReplicate users to be backed up
+     */
+    public void streamToBackup(ArrayList<User> toReplicate) {
+
+        long batchInterval = 1000L * BACKUP_BATCH_SIZE / MAX_REPLICATION_RATE;
+
+        for (int i = 0; i < toReplicate.size(); i += BACKUP_BATCH_SIZE) {
+            long start = System.currentTimeMillis();
 
-            sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, entry.getValue()));
+            ArrayList<User> batch = new ArrayList<User>();
+            for (User user : toReplicate.subList(i, Math.min(i + BACKUP_BATCH_SIZE, toReplicate.size())))
+                batch.add(chatStore.export(user, true));
+            sendInfoToBackup(new Message(BACKUP_USERS, BigInteger.valueOf(nodeId), RESPONSIBLE, batch));
+
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed < batchInterval) {
+                try {
+                    Thread.sleep(batchInterval - elapsed);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
         }
-        backups.clear();
-        System.out.println("Copied all backups to server data");
+
+        System.out.println("Replicated " + toReplicate.size() + " promoted users to successor");
     }
 
 
@@ -233,13 +533,15 @@ public class Server extends Node implements Serializable {
         if (successor.getNodeId() == this.getNodeId()) {
             sendFingerTableToPredecessor(newNode);
             notifyNodeOfItsPredecessor(newNode, previousPredecessor);
-            sendInfoToPredecessor(newNode, users, ADD_USER);
-            sendInfoToPredecessor(newNode, backups, BACKUP_USER);
+            sendInfoToPredecessor(newNode, users, chatStore, ADD_USER);
+            sendInfoToPredecessor(newNode, backups, backupChatStore, BACKUP_USER);
+            handOverChats(newNode);
         } else if (newNode.getNodeId() > dht.getPredecessor().getNodeId()) {
             sendFingerTableToPredecessor(newNode);
             notifyNodeOfItsPredecessor(newNode, dht.getPredecessor());
-            sendInfoToPredecessor(newNode, users, ADD_USER);
-            sendInfoToPredecessor(newNode, backups, BACKUP_USER);
+            sendInfoToPredecessor(newNode, users, chatStore, ADD_USER);
+            sendInfoToPredecessor(newNode, backups, backupChatStore, BACKUP_USER);
+            handOverChats(newNode);
         } else {
             joinNetwork(newNode, successor);
             System.out.println("Redirecting.");
@@ -247,6 +549,45 @@ public class Server extends Node implements Serializable {
     }
 
 
+    /**
+     * Hands the chats the new node is responsible for over to it, this node keeps them as references.
+     * A chat that got new messages while it was sent is sent again
+     *
+     * @param node new node
+     */
+    private void handOverChats(Node node) {
+        int handedOver = 0;
+
+        for (Chat chat : chatStore.getChats()) {
+            if (chat.isReference() || !isOfANewServer(Integer.remainderUnsigned(chat.getIdChat().intValue(), 128), node))
+                continue;
+
+            for (int attempt = 0; attempt < CHAT_HANDOVER_ATTEMPTS; attempt++) {
+                int size = chatStore.size(chat);
+                Message answer;
+                try {
+                    answer = request(node, new Message(OWN_CHAT, BigInteger.valueOf(nodeId), RESPONSIBLE, chatStore.export(chat, true), chat.getIdChat()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Failed to hand chats over to node " + node.getNodeId());
+                    return;
+                }
+
+                if (answer == null || !answer.getMessageType().equals(CLIENT_SUCCESS)) {
+                    System.out.println("Node " + node.getNodeId() + " did not take chat " + chat.getIdChat());
+                    break;
+                }
+                if (chatStore.release(chat, size)) {
+                    log(LogRecord.chatCreated(chat));
+                    handedOver++;
+                    break;
+                }
+            }
+        }
+
+        System.out.println("Handed " + handedOver + " chats over to node " + node.getNodeId());
+    }
+
     public void sendFingerTableToPredecessor(Node newNode) {
 
         dht.setPredecessor(newNode);
@@ -323,10 +664,12 @@ public class Server extends Node implements Serializable {
             message = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, EMAIL_ALREADY_USED);
         } else {
             User newUser = new User(email, new BigInteger(password), privateKey, publicKey);
+            if (!log(LogRecord.userCreated(newUser)))
+                return changeNotStored();
             users.put(user_email, newUser);
             message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE);
             System.out.println("Account created with success!");
-            sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, newUser));
+            replicateUser(newUser);
         }
 
         return message;
@@ -343,6 +686,7 @@ public class Server extends Node implements Serializable {
 
         BigInteger userId = createHash(newUser.getEmail());
 
+        chatStore.adopt(newUser);
         users.put(userId, newUser);
         return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, USER_ADDED);
     }
@@ -376,6 +720,210 @@ public class Server extends Node implements Serializable {
         return response;
     }
 
+    /**
+     * Appends a record to the chat log before the change is applied in memory
+     *
+     * @param record record to be logged
+     * @return true if the record is on disk, false if the change must not be applied
+     */
+    private boolean log(LogRecord record) {
+        if (chatLog == null)
+            return true;
+
+        try {
+            chatLog.append(record);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write chat log");
+            return false;
+        }
+    }
+
+    /**
+     * @return answer to a request whose change could not be logged
+     */
+    private Message changeNotStored() {
+        return new Message(SERVER_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, CHANGE_NOT_STORED);
+    }
+
+    /**
+     * @param chatId chat id
+     * @return true if this node is responsible for the chat id and holds the messages of the chat
+     */
+    private boolean ownsChat(BigInteger chatId) {
+        return dht.nodeLookUp(Integer.remainderUnsigned(chatId.intValue(), 128)).getNodeId() == nodeId;
+    }
+
+    /**
+     * Sends a request to a node and waits for its answer
+     *
+     * @param node    node
+     * @param message request
+     * @return answer, null if it was not received
+     * @throws IOException if the node could not be reached
+     */
+    private Message request(Node node, Message message) throws IOException {
+        ServerConnection handler = new ServerConnection(node.getNodeIp(), node.getNodePort(), this);
+        handler.connect();
+        handler.sendMessage(message);
+
+        try {
+            return handler.receiveMessage();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Function request: Failed to receive message");
+            return null;
+        } finally {
+            handler.closeConnection();
+        }
+    }
+
+    /**
+     * Sends a request to the node holding a chat, through the nodes on the way to it
+     *
+     * @param message request, its receiver is set to the chat id
+     * @param chatId  chat id
+     * @return answer, null if it was not received or this node is responsible for the chat
+     */
+    private Message askOwner(Message message, BigInteger chatId) {
+        if (ownsChat(chatId))
+            return null;
+
+        int id = Integer.remainderUnsigned(chatId.intValue(), 128);
+        message.setReceiver(chatId);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Node n = nextHop(id);
+            message.setResponsible(isNextHopResponsible(id) ? RESPONSIBLE : NOT_RESPONSIBLE);
+            try {
+                return request(n, message);
+            } catch (IOException e) {
+                System.out.println("Node " + n.getNodeId() + " unreachable");
+                serverDown(n);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the messages of a chat this node is responsible for, from the node that created it or from the
+     * node that held it before this node joined. A chat already held gets the messages it misses
+     *
+     * @param chat chat with its whole history
+     * @return message of success
+     */
+    public Message ownChat(Chat chat) {
+        Chat stored = chatStore.get(chat.getIdChat());
+        boolean handedOver = stored == null || stored.isReference();
+
+        chat.setReference(false);
+        if (handedOver && !log(LogRecord.chatCreated(chat)))
+            return changeNotStored();
+        Chat held = chatStore.register(chat);
+
+        if (handedOver) {
+            replicateChat(held);
+            searchIndex.update(held);
+            //the history received is only in the history store until the next snapshot
+            if (chatStore.size(held) > 0)
+                snapshotService.execute(this::takeSnapshot);
+        }
+
+        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, held.getIdChat().toString());
+    }
+
+    /**
+     * Replicates a chat held by this node to the successor, or down the chain
+     *
+     * @param chat chat held by this node
+     */
+    private void replicateChat(Chat chat) {
+        Chat copy = chatStore.export(chat, true);
+
+        if (!replicationMode.equals(CHAIN_REPLICATION)) {
+            sendInfoToBackup(new Message(BACKUP_CHAT, BigInteger.valueOf(nodeId), RESPONSIBLE, copy));
+            return;
+        }
+
+        ArrayList<Node> chain = dht.getSuccessors(CHAIN_LENGTH - 1);
+        if (!chain.isEmpty())
+            chain.remove(0);
+
+        Message message = new Message(CHAIN_UPDATE, BigInteger.valueOf(nodeId), RESPONSIBLE, copy);
+        message.setBody(encodeChain(chain));
+        sendInfoToBackup(message);
+    }
+
+    /**
+     * Sends the read cursors moved since the last batch to the backup, together with the sizes of the chats
+     * kept as references, so a promoted backup does not deliver again messages already read.
+     * Every batch starts with a watermark, the updates sent before it were all acked by the backup
+     */
+    private void replicateReadCursors() {
+        long watermark = System.currentTimeMillis();
+        ArrayList<String> entries = new ArrayList<>();
+        entries.add("W:" + watermark);
+        for (String key : new ArrayList<>(cursorUpdates.keySet())) {
+            String value = cursorUpdates.remove(key);
+            if (value != null)
+                entries.add(key + ":" + value);
+        }
+        //a heartbeat is not stored as a hint, the hints before it would make it late anyway
+        if (entries.size() == 1 && (dht.getSuccessor() == null || hintedHandoff.hasHints()))
+            return;
+
+        Object batch = String.join(",", entries);
+        if (!replicationMode.equals(CHAIN_REPLICATION)) {
+            sendInfoToBackup(new Message(BACKUP_READ_CURSORS, BigInteger.valueOf(nodeId), RESPONSIBLE, batch));
+            return;
+        }
+
+        ArrayList<Node> chain = dht.getSuccessors(CHAIN_LENGTH - 1);
+        if (!chain.isEmpty())
+            chain.remove(0);
+
+        Message message = new Message(CHAIN_UPDATE, BigInteger.valueOf(nodeId), RESPONSIBLE, batch);
+        message.setBody(encodeChain(chain));
+        sendInfoToBackup(message);
+    }
+
+    /**
+     * Applies a batch of read cursors to the backups of this node
+     *
+     * @param batch  W:Watermark, U:UserId:ChatId:Cursor and C:ChatId:Size:Sequence entries separated by commas
+     * @param sender id of the node that sent the batch, the head of the chain on a chain
+     */
+    private void applyReadCursors(String batch, BigInteger sender) {
+        for (String entry : batch.split(",")) {
+            String[] info = entry.split(":");
+            if (info[0].equals("W")) {
+                replicatedUntil.merge(sender.intValue(), Long.parseLong(info[1]), Math::max);
+            } else if (info[0].equals("U")) {
+                User user = backups.get(new BigInteger(info[1]));
+                if (user != null)
+                    user.advanceReadCursor(new BigInteger(info[2]), Integer.parseInt(info[3]));
+            } else if (info[0].equals("C")) {
+                backupChatStore.advance(new BigInteger(info[1]), Integer.parseInt(info[2]), Long.parseLong(info[3]));
+            }
+        }
+    }
+
+    /**
+     * Opens the cold tier of a chat store
+     *
+     * @param path directory of the history segments
+     * @return history store, null if it failed to open and messages are kept in memory
+     */
+    private HistoryStore openHistoryStore(String path) {
+        try {
+            return new HistoryStore(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to open history store " + path);
+            return null;
+        }
+    }
+
     /**
      * Create a directory
      *
@@ -398,23 +946,44 @@ public class Server extends Node implements Serializable {
      */
     public Message createChat(ServerConnection connection, BigInteger senderId, Chat chat) {
 
+        //the policy of the creator node goes with the chat to the nodes of the other participants
+        if (chat.getRetention() == null)
+            chat.setRetention(RetentionPolicy.defaults());
+
+        //the messages are kept by the node responsible for the chat id, the others follow it
+        chat.setReference(!ownsChat(chat.getIdChat()));
+        if (chat.isReference()) {
+            Message owned = askOwner(new Message(OWN_CHAT, BigInteger.valueOf(nodeId), NOT_RESPONSIBLE, chat.withMessages(0, new ArrayList<>(), new ArrayList<>())), chat.getIdChat());
+            if (owned == null || !owned.getMessageType().equals(CLIENT_SUCCESS))
+                return new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_CREATING_CHAT);
+        }
+
+        if (!log(LogRecord.chatCreated(chat)))
+            return changeNotStored();
+        chat = chatStore.register(chat);
+
         for (String participantEmail : chat.getParticipants()) {
             System.out.println(participantEmail);
 
-            BigInteger participantHash = createHash(participantEmail);
+            BigInteger participantHash = chat.getParticipantId(participantEmail);
 
             //if this server is responsible for this participant send client a message
             if (users.get(participantHash) != null) {
                 if (chat.getCreatorEmail().equals(participantEmail)) {
+                    ServerConnection serverConnection = loggedInUsers.get(participantHash);
+                    if (!log(LogRecord.membership(chat.getIdChat(), participantHash, false))) {
+                        if (serverConnection != null)
+                            serverConnection.sendMessage(changeNotStored());
+                        continue;
+                    }
                     users.get(participantHash).addChat(chat);
                     Message response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), CREATED_CHAT_WITH_SUCCESS);
-                    ServerConnection serverConnection = loggedInUsers.get(participantHash);
                     if (serverConnection != null)
                         serverConnection.sendMessage(response);
-                    sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(participantHash)));
+                    replicateUser(users.get(participantHash));
                 } else inviteUserToChat(chat, participantHash);
             } else {
-                Message message = new Message(CREATE_CHAT_BY_INVITATION, senderId, NOT_RESPONSIBLE, chat, participantHash);
+                Message message = new Message(CREATE_CHAT_BY_INVITATION, senderId, NOT_RESPONSIBLE, chatStore.export(chat), participantHash);
                 Runnable task = () -> {
                     redirect(connection, message);
                 };
@@ -422,7 +991,10 @@ public class Server extends Node implements Serializable {
             }
         }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_INVITATIONS);
+        Message response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_INVITATIONS);
+        if (users.get(senderId) != null)
+            response.setVersion(users.get(senderId).getVersion());
+        return response;
 
     }
 
@@ -430,6 +1002,17 @@ public class Server extends Node implements Serializable {
 
         printLoggedInUsers();
 
+        if (users.get(clientId) != null) {
+            if (chatStore.get(chat.getIdChat()) != chat)
+                chat.setReference(!ownsChat(chat.getIdChat()));
+            //the chat is logged once per node, by createChat or by the first invitation that reaches the node
+            if (chatStore.get(chat.getIdChat()) == null && !log(LogRecord.chatCreated(chat)))
+                return changeNotStored();
+            if (!log(LogRecord.membership(chat.getIdChat(), clientId, loggedInUsers.get(clientId) == null)))
+                return changeNotStored();
+            chat = chatStore.register(chat);
+        }
+
         if (loggedInUsers.get(clientId) == null) {
             System.out.println("Added to pending chats");
             System.out.println("Chat name " + chat.getChatName());
@@ -439,69 +1022,400 @@ public class Server extends Node implements Serializable {
         } else {
             users.get(clientId).addChat(chat);
             System.out.println("Sending invitation to logged in user");
-            Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, chat, clientId);
+            Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, userView(users.get(clientId), chat), clientId);
             ServerConnection userConnection = loggedInUsers.get(clientId);
             userConnection.sendMessage(response);
         }
 
-        sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(clientId)));
+        replicateUser(users.get(clientId));
 
         return new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_INVITATIONS);
     }
 
 
+    /**
+     * Sends a message of a user of this node to the node holding its chat, which delivers it to the participants
+     */
     public Message sendMessage(ServerConnection connection, ChatMessage chatMessage, BigInteger clientId, BigInteger senderId) {
 
         Chat chat = users.get(clientId).getChat(chatMessage.getChatId());
 
         printLoggedInUsers();
 
+        String result;
+        if (chat.isReference())
+            result = appendAtOwner(chatMessage, true) ? SENT_MESSAGE : MESSAGE_NOT_SENT;
+        else result = publish(chatMessage, clientId);
+
+        Message response;
+        if (result.equals(CHANGE_NOT_STORED))
+            return changeNotStored();
+        else if (result.equals(SENT_MESSAGE))
+            response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_MESSAGE);
+        else response = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, MESSAGE_NOT_SENT);
+        response.setVersion(users.get(clientId).getVersion());
+        return response;
+
+    }
+
+    /**
+     * Appends a message to a chat held by this node and delivers it to the participants, the participants of
+     * this node get it directly and the others in one batch per node on the way to them
+     *
+     * @param chatMessage message
+     * @param clientId    user that sent the message, of this node or of the node that sent it here
+     * @return SENT_MESSAGE, MESSAGE_NOT_SENT if a node did not ack its batch or CHANGE_NOT_STORED
+     */
+    private String publish(ChatMessage chatMessage, BigInteger clientId) {
+        Chat chat = chatStore.get(chatMessage.getChatId());
+        if (chat == null)
+            return MESSAGE_NOT_SENT;
+
+        long start = System.nanoTime();
+        int position = appendMessage(chatMessage, clientId);
+        if (position < 0)
+            return CHANGE_NOT_STORED;
+
+        //a message sent again after a failed ack is passed on again, nodes that already have it drop it
+        boolean appended = position > 0;
+        if (!appended)
+            position = chatStore.size(chat);
+
+        ArrayList<BigInteger> remoteParticipants = new ArrayList<>();
         for (String participantEmail : chat.getParticipants()) {
+            BigInteger participantHash = chat.getParticipantId(participantEmail);
+            if (users.get(participantHash) == null)
+                remoteParticipants.add(participantHash);
+            else if (appended)
+                deliverToUser(chatMessage, participantHash, position);
+        }
 
-            BigInteger participantHash = createHash(participantEmail);
+        boolean delivered = remoteParticipants.isEmpty() || sendBatches(chatMessage, position, remoteParticipants, true);
+        recordFanOut(chat.getParticipants().size(), System.nanoTime() - start);
+        return delivered ? SENT_MESSAGE : MESSAGE_NOT_SENT;
+    }
 
-            if (users.get(participantHash) != null) {
+    /**
+     * Sends a message on a link to the node holding its chat, through the nodes on the way to it
+     *
+     * @param chatMessage message
+     * @param retry       true to send it again on the link of the next node if the link failed
+     * @return true if the node holding the chat appended it and passed it on to every participant
+     */
+    private boolean appendAtOwner(ChatMessage chatMessage, boolean retry) {
+        int id = Integer.remainderUnsigned(chatMessage.getChatId().intValue(), 128);
+        Node n = nextHop(id);
+
+        Message append = new Message(CHAT_APPEND, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, chatMessage.getChatId());
+        append.setBody(chatMessage.getChatId() + ":" + (isNextHopResponsible(id) ? "R" : "N"));
+
+        try {
+            return nodeLinks.send(n, append).get(2 * LINK_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (TimeoutException e) {
+            System.out.println("Message not acked by node " + n.getNodeId());
+            return false;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            System.out.println("Failed to send message to node " + n.getNodeId());
+            if (!retry)
+                return false;
+            serverDown(n);
+            return appendAtOwner(chatMessage, false);
+        }
+    }
+
+    /**
+     * Appends a message received on a link if this node holds its chat, or sends it on to the node holding it
+     *
+     * @param message CHAT_APPEND message
+     * @return true if the node holding the chat appended it and passed it on to every participant
+     */
+    public boolean receiveChatAppend(Message message) {
+        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        String[] target = message.getBody().split(" ")[1].split(":");
+
+        if (target[1].equals("N"))
+            return appendAtOwner(chatMessage, true);
+
+        Chat chat = chatStore.get(chatMessage.getChatId());
+        if (chat == null || chat.isReference()) {
+            System.out.println("Chat " + chatMessage.getChatId() + " is not held by this node");
+            return false;
+        }
+        return publish(chatMessage, chatMessage.getUserId()).equals(SENT_MESSAGE);
+    }
+
+    /**
+     * Sends a message once to each node on the way to participants of other nodes, on its link,
+     * and waits until every node acked it. The batches are all sent before the acks are awaited
+     *
+     * @param chatMessage  message
+     * @param position     number of messages of the chat after the message
+     * @param participants participants of other nodes
+     * @param retry        true to plan again the batch of a node whose link failed
+     * @return true if every node acked its batch and passed it on
+     */
+    private boolean sendBatches(ChatMessage chatMessage, int position, Collection<BigInteger> participants, boolean retry) {
+        HashMap<Integer, Node> hops = new HashMap<>();
+        HashMap<Integer, ArrayList<BigInteger>> groups = new HashMap<>();
+        HashMap<Integer, CompletableFuture<Boolean>> acks = new HashMap<>();
+
+        for (Map.Entry<Integer, String> hop : groupByNextHop(participants, hops, groups).entrySet()) {
+            Message batch = new Message(NEW_MESSAGE_BATCH, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, BigInteger.valueOf(hop.getKey()));
+            batch.setBody(position + " " + hop.getValue());
+
+            CompletableFuture<Boolean> ack;
+            try {
+                ack = nodeLinks.send(hops.get(hop.getKey()), batch);
+            } catch (IOException e) {
+                ack = new CompletableFuture<>();
+                ack.completeExceptionally(e);
+            }
+            acks.put(hop.getKey(), ack);
+        }
 
-                if (!chatMessage.getUserId().toString().equals(participantHash.toString())) {
-                    sendMessageToUser(chatMessage, participantHash);
-                } else {
-                    users.get(participantHash).getChat(chatMessage.getChatId()).addChatMessage(chatMessage);
-                    sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(participantHash)));
+        boolean delivered = true;
+        for (Map.Entry<Integer, CompletableFuture<Boolean>> ack : acks.entrySet()) {
+            Node node = hops.get(ack.getKey());
+            try {
+                delivered &= ack.getValue().get(LINK_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (TimeoutException e) {
+                System.out.println("Message batch not acked by node " + node.getNodeId());
+                delivered = false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                System.out.println("Failed to send message batch to node " + node.getNodeId());
+                if (!retry) {
+                    delivered = false;
+                    continue;
                 }
-            } else {
-                Message message = new Message(NEW_MESSAGE_TO_PARTICIPANT, senderId, NOT_RESPONSIBLE, chatMessage, participantHash);
-                Runnable task = () -> {
-                    redirect(connection, message);
-                };
-                threadPool.submit(task);
+                serverDown(node);
+                delivered &= sendBatches(chatMessage, position, groups.get(node.getNodeId()), false);
             }
         }
+        return delivered;
+    }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_MESSAGE);
+    /**
+     * Delivers a message received in a batch to the participants of this node and sends it on
+     * to the nodes of the others. The message is followed once by the chat of this node
+     *
+     * @param message NEW_MESSAGE_BATCH message
+     * @return true if the nodes of the others acked it
+     */
+    public boolean deliverBatch(Message message) {
+        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        String[] body = message.getBody().split(" ", 3);
+        int position = Integer.parseInt(body[1]);
+        ArrayList<BigInteger> local = new ArrayList<>();
+        ArrayList<BigInteger> forward = new ArrayList<>();
+
+        for (String target : body[2].split(",")) {
+            String[] participant = target.split(":");
+            BigInteger participantHash = new BigInteger(participant[0]);
+            if (!participant[1].equals("R"))
+                forward.add(participantHash);
+            else if (users.containsKey(participantHash))
+                local.add(participantHash);
+            else System.out.println("Participant " + Integer.remainderUnsigned(participantHash.intValue(), 128) + " is not on this node");
+        }
 
+        boolean stored = true;
+        if (!local.isEmpty()) {
+            int received = receiveMessage(chatMessage, position, local.get(0));
+            stored = received >= 0;
+            if (received > 0)
+                for (BigInteger participantHash : local)
+                    deliverToUser(chatMessage, participantHash, received);
+        }
+
+        return (forward.isEmpty() || sendBatches(chatMessage, position, forward, true)) && stored;
     }
 
-    public Message sendMessageToUser(ChatMessage chatMessage, BigInteger clientId) {
+    /**
+     * Moves the chat of a message delivered by the node holding it past the message, chats still holding their
+     * messages on this node get the message appended
+     *
+     * @param chatMessage message
+     * @param position    number of messages of the chat after the message
+     * @param clientId    participant of this node that received the message
+     * @return number of messages of the chat after the message, 0 if it was already received and -1 if it could
+     * not be logged
+     */
+    private int receiveMessage(ChatMessage chatMessage, int position, BigInteger clientId) {
+        Chat chat = chatStore.get(chatMessage.getChatId());
+        if (chat == null)
+            return 0;
+        if (!chat.isReference())
+            return appendMessage(chatMessage, clientId);
+
+        //the participants of this node download the file from the blob of this node, it is retained once
+        //for the message whatever the number of participants it is delivered to
+        if (!chatStore.follow(chatMessage, position, followed -> {
+            if (isBlobReference(followed))
+                blobStore.retain(new String(followed.getContent()));
+        }))
+            return 0;
+        cursorUpdates.put("C:" + chat.getIdChat(), position + ":" + chat.getSequence());
+        return position;
+    }
 
-        if (loggedInUsers.get(clientId) == null) {
+    /**
+     * @param message   message received on a link
+     * @param delivered true if the message was passed on to every participant
+     * @return LINK_ACK message for it
+     */
+    public Message linkAck(Message message, boolean delivered) {
+        return new Message(LINK_ACK, BigInteger.valueOf(nodeId), RESPONSIBLE, message.getBody().split(" ", 2)[0], Boolean.toString(delivered));
+    }
+
+    private void recordFanOut(int participants, long latency) {
+        int bucket = 0;
+        while (bucket < FAN_OUT_BUCKETS.length && participants > FAN_OUT_BUCKETS[bucket])
+            bucket++;
+        fanOutLatencies[bucket].record(latency);
+    }
+
+    /**
+     * Prints the time spent sending a message to the participants of its chat, by size of the chat
+     */
+    private void printFanOutStats() {
+        for (int i = 0; i < fanOutLatencies.length; i++) {
+            if (fanOutLatencies[i].getCount() == 0)
+                continue;
+            String size = i < FAN_OUT_BUCKETS.length ? "up to " + FAN_OUT_BUCKETS[i] : "over " + FAN_OUT_BUCKETS[i - 1];
+            System.out.println("Fan-out " + size + " participants - messages: " + fanOutLatencies[i].getCount()
+                    + " p50: " + fanOutLatencies[i].percentile(0.50) / 1000 + "us"
+                    + " p99: " + fanOutLatencies[i].percentile(0.99) / 1000 + "us");
+        }
+    }
+
+    /**
+     * Passes a message appended to its chat to a participant of this node, the author only has its read cursor
+     * moved and a participant that is not logged in gets the messages after its read cursor as pending
+     *
+     * @param chatMessage message
+     * @param clientId    participant of this node
+     * @param position    number of messages of the chat after the message
+     */
+    private void deliverToUser(ChatMessage chatMessage, BigInteger clientId, int position) {
+
+        User user = users.get(clientId);
+        if (user == null || user.getChat(chatMessage.getChatId()) == null)
+            return;
+
+        ServerConnection userConnection = loggedInUsers.get(clientId);
+        if (chatMessage.getUserId().equals(clientId)) {
+            advanceReadCursor(user, chatMessage.getChatId(), position);
+        } else if (userConnection == null) {
             System.out.println("Added to pending messages");
-            if (users.get(clientId) != null) {
-                if (users.get(clientId).getChats().get(chatMessage.getChatId()) != null)
-                    users.get(clientId).getChat(chatMessage.getChatId()).addPendingChatMessage(chatMessage);
-            }
         } else {
             System.out.println("Sending message to logged in user");
-            users.get(clientId).getChat(chatMessage.getChatId()).addChatMessage(chatMessage);
-            Message response = new Message(NEW_MESSAGE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, clientId);
-            ServerConnection userConnection = loggedInUsers.get(clientId);
-            userConnection.sendMessage(response);
+            advanceReadCursor(user, chatMessage.getChatId(), position);
+            userConnection.sendMessage(new Message(NEW_MESSAGE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, clientId));
         }
+    }
+
+    /**
+     * Logs a message and appends it to the chat store once for all the participants of this node,
+     * then replicates only the message
+     *
+     * @param chatMessage message
+     * @param clientId    user the message is logged for
+     * @return number of messages of the chat after the message, 0 if it was already appended and -1 if it
+     * could not be logged
+     */
+    private int appendMessage(ChatMessage chatMessage, BigInteger clientId) {
+        int position = chatStore.append(chatMessage, logged -> {
+            if (!log(LogRecord.chatMessage(logged, clientId)))
+                return false;
+            //the reference is added before the message, a crash may leave an extra reference but never a missing one
+            if (isBlobReference(logged))
+                blobStore.retain(new String(logged.getContent()));
+            return true;
+        });
+
+        if (position > 0) {
+            replicateChatMessage(chatMessage, users.get(clientId));
+            searchIndex.update(chatStore.get(chatMessage.getChatId()));
+        }
+        return position;
+    }
+
+    /**
+     * Moves the read cursor of a user of this node, the move is sent to the backup in the next batch
+     *
+     * @param user   user of this node
+     * @param chatId chat id
+     * @param cursor number of messages read
+     */
+    private void advanceReadCursor(User user, BigInteger chatId, int cursor) {
+        user.advanceReadCursor(chatId, cursor);
+        cursorUpdates.put("U:" + user.getUserId() + ":" + chatId, Integer.toString(user.getReadCursors().get(chatId)));
+    }
 
-        sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(clientId)));
+    /**
+     * @return true if the message is a file message holding the digest of a blob
+     */
+    private boolean isBlobReference(ChatMessage chatMessage) {
+        return blobStore != null && IMAGE_MESSAGE.equals(chatMessage.getType()) && chatMessage.getContentLength() > 0;
+    }
 
-        return new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, TEXT_MESSAGE);
+    /**
+     * Removes the reference of a file message dropped by the retention policy of its chat
+     */
+    private void releaseFile(ChatMessage chatMessage) {
+        if (isBlobReference(chatMessage))
+            blobStore.release(new String(chatMessage.getContent()));
     }
 
+    /**
+     * Finds the blob of the last file with a name sent to a chat of a user
+     *
+     * @param clientId user asking for the file
+     * @param path     UserId/ChatId/Filename, the user id has to be the one of the user asking
+     * @return blob of the file, null if there is none
+     */
+    private File findFile(BigInteger clientId, String path) {
+        String[] parts = path.split("/", 3);
+        User user = users.get(clientId);
+        if (parts.length < 3 || blobStore == null || user == null || !parts[0].equals(Integer.toString(clientId.intValue())))
+            return null;
+
+        Chat chat = null;
+        for (Chat candidate : user.getChats().values()) {
+            if (Integer.toString(candidate.getIdChat().intValue()).equals(parts[1])) {
+                chat = candidate;
+                break;
+            }
+        }
+        if (chat == null)
+            return null;
+
+        int first = chatStore.first(chat);
+        for (int to = chatStore.size(chat); to > first; to -= HISTORY_PAGE_SIZE) {
+            ArrayList<ChatMessage> page = chatStore.messages(chat, Math.max(first, to - HISTORY_PAGE_SIZE), to);
+            if (page.isEmpty())
+                break;
+            for (int i = page.size() - 1; i >= 0; i--) {
+                ChatMessage chatMessage = page.get(i);
+                if (isBlobReference(chatMessage) && parts[2].equals(chatMessage.getFilename())) {
+                    File blob = blobStore.get(new String(chatMessage.getContent()));
+                    return blob.exists() ? blob : null;
+                }
+            }
+        }
+
+        //files stored in the directories of the participants before the blob store
+        File legacy = new File(DATA_DIRECTORY + "/" + nodeId + "/" + path);
+        return !path.contains("..") && legacy.isFile() ? legacy : null;
+    }
 
     /**
      * Returns chat to client
@@ -515,48 +1429,298 @@ public class Server extends Node implements Serializable {
         System.out.println(chatId);
         System.out.println(new BigInteger(chatId));
 
-        Chat chat = users.get(clientId).getChat(new BigInteger(chatId));
+        User user = users.get(clientId);
+        Chat chat = user.getChat(new BigInteger(chatId));
 
         if (chat == null)
             System.out.println("Null Chat");
+        else chat = userView(user, chat);
 
         Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat);
         return message;
     }
 
+    /**
+     * Last page of a chat as seen by a user of this node, the read cursor of the user moves to the end of the chat.
+     * Older messages are fetched with GET_CHAT_HISTORY
+     *
+     * @param user user
+     * @param chat chat of the store
+     * @return copy of the chat with the messages after the read cursor as pending
+     */
+    private Chat userView(User user, Chat chat) {
+        int size = chatStore.size(chat);
+        int offset = Math.max(0, size - HISTORY_PAGE_SIZE);
 
-    public Message getAllChats(BigInteger clientId) {
+        Chat view = ChatStore.view(user, chat, chatStore.messages(chat, offset, size), offset);
+        advanceReadCursor(user, chat.getIdChat(), size);
+        return view;
+    }
 
-        for (ConcurrentHashMap.Entry<BigInteger, Chat> entry : users.get(clientId).getChats().entrySet()) {
-            Chat chat = entry.getValue();
+    /**
+     * Returns a page of the history of a chat
+     *
+     * @param body     ChatId Cursor PageSize BEFORE|AFTER, BEFORE returns the messages before the cursor
+     *                 and AFTER the messages from the cursor on. A cursor @Time is the position of the first
+     *                 message created at or after the time, in milliseconds
+     * @param clientId client id
+     * @return CHAT_HISTORY message with the page
+     */
+    public Message getChatHistory(String[] body, BigInteger clientId) {
 
-            if (loggedInUsers.get(clientId) != null) {
-                Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat);
-                ServerConnection userConnection = loggedInUsers.get(clientId);
-                userConnection.sendMessage(message);
+        User user = users.get(clientId);
+        Chat chat = user.getChat(new BigInteger(body[0]));
+
+        if (chat == null) {
+            System.out.println("Null Chat");
+            return new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_LOADING_HISTORY);
+        }
+
+        Message response;
+        if (chat.isReference()) {
+            Message page = askOwner(new Message(CHAT_READ, BigInteger.valueOf(nodeId), NOT_RESPONSIBLE, body), chat.getIdChat());
+            if (page == null || !page.getMessageType().equals(CHAT_HISTORY))
+                return new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_LOADING_HISTORY);
+            response = new Message(CHAT_HISTORY, BigInteger.valueOf(nodeId), RESPONSIBLE, page.getObject());
+            response.setBody(page.getBody());
+        } else response = historyPage(chat, body);
+
+        if (Integer.parseInt(body[3]) != BEFORE) {
+            @SuppressWarnings("unchecked") //CHAT_HISTORY messages always carry a page of chat messages
+            ArrayList<ChatMessage> messages = (ArrayList<ChatMessage>) response.getObject();
+            advanceReadCursor(user, chat.getIdChat(), Integer.parseInt(response.getBody().split(" ")[1]) + messages.size());
+        }
+        return response;
+    }
+
+    /**
+     * @param chat chat held by this node
+     * @param body ChatId Cursor PageSize BEFORE|AFTER
+     * @return CHAT_HISTORY message with the page
+     */
+    private Message historyPage(Chat chat, String[] body) {
+        int size = chatStore.size(chat);
+        int first = chatStore.first(chat);
+        int position = body[1].startsWith("@") ? chatStore.positionAt(chat, Long.parseLong(body[1].substring(1))) : Integer.parseInt(body[1]);
+        int cursor = Math.max(first, Math.min(position, size));
+        int pageSize = Math.max(1, Math.min(Integer.parseInt(body[2]), MAX_HISTORY_PAGE_SIZE));
+
+        //messages before the first one kept expired
+        int from;
+        int to;
+        if (Integer.parseInt(body[3]) == BEFORE) {
+            from = Math.max(first, cursor - pageSize);
+            to = cursor;
+        } else {
+            from = cursor;
+            to = Math.min(size, cursor + pageSize);
+        }
+
+        Message response = new Message(CHAT_HISTORY, BigInteger.valueOf(nodeId), RESPONSIBLE, chatStore.messages(chat, from, to));
+        response.setBody(chat.getIdChat() + " " + from + " " + size);
+        return response;
+    }
+
+    /**
+     * Returns a page of the history of a chat held by this node to a node keeping it as a reference
+     *
+     * @param body ChatId Cursor PageSize BEFORE|AFTER
+     * @return CHAT_HISTORY message with the page, CLIENT_ERROR if this node does not hold the chat
+     */
+    public Message readChat(String[] body) {
+        Chat chat = chatStore.get(new BigInteger(body[0]));
+        if (chat == null || chat.isReference())
+            return new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_LOADING_HISTORY);
+        return historyPage(chat, body);
+    }
+
+    /**
+     * Reads messages of a chat kept as a reference from the node holding it, a page at a time
+     *
+     * @param chat reference
+     * @param from position of the first message
+     * @param to   position after the last message
+     * @return messages between the two positions still kept by the node holding the chat
+     */
+    private ArrayList<ChatMessage> readFromOwner(Chat chat, int from, int to) throws IOException {
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+
+        while (from < to) {
+            int pageSize = Math.min(to - from, MAX_HISTORY_PAGE_SIZE);
+            Message request = new Message(CHAT_READ, BigInteger.valueOf(nodeId), NOT_RESPONSIBLE, chat.getIdChat().toString(), Integer.toString(from), Integer.toString(pageSize), Integer.toString(AFTER));
+            Message response = askOwner(request, chat.getIdChat());
+            if (response == null || !response.getMessageType().equals(CHAT_HISTORY))
+                throw new IOException("Chat " + chat.getIdChat() + " not read from the node holding it");
+
+            @SuppressWarnings("unchecked") //CHAT_HISTORY messages always carry a page of chat messages
+            ArrayList<ChatMessage> page = (ArrayList<ChatMessage>) response.getObject();
+            if (page.isEmpty())
+                break;
+            messages.addAll(page);
+            from = Integer.parseInt(response.getBody().split(" ")[1]) + page.size();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Searches the text messages of the chats of a user, best matches first
+     *
+     * @param body     Offset PageSize Query...
+     * @param clientId client id
+     * @return SEARCH_RESULTS message with the page of matches
+     */
+    public Message searchMessages(String[] body, BigInteger clientId) {
+
+        User user = users.get(clientId);
+        int offset = Math.max(0, Integer.parseInt(body[0]));
+        int pageSize = Math.max(1, Math.min(Integer.parseInt(body[1]), MAX_SEARCH_PAGE_SIZE));
+        String query = String.join(" ", Arrays.copyOfRange(body, 2, body.length));
+
+        SearchIndex.Results results = searchIndex.search(user, query, offset, pageSize);
+
+        Message response = new Message(SEARCH_RESULTS, BigInteger.valueOf(nodeId), RESPONSIBLE, results.getMessages());
+        response.setBody(offset + " " + results.getTotal() + " " + query);
+        return response;
+    }
+
+    /**
+     * Searches a chat held by this node for a node keeping it as a reference
+     *
+     * @param body ChatId Count Query...
+     * @return SEARCH_RESULTS message with the best matches, its body has the number of matches and the
+     * Position:Score of each one
+     */
+    public Message searchChat(String[] body) {
+        Chat chat = chatStore.get(new BigInteger(body[0]));
+        if (chat == null || chat.isReference())
+            return new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_LOADING_HISTORY);
+
+        int count = Math.max(1, Math.min(Integer.parseInt(body[1]), MAX_SEARCH_PAGE_SIZE));
+        SearchIndex.Results results = searchIndex.searchChat(chat, String.join(" ", Arrays.copyOfRange(body, 2, body.length)), count);
+
+        StringBuilder hits = new StringBuilder();
+        for (int i = 0; i < results.getMessages().size(); i++)
+            hits.append(i == 0 ? "" : ",").append(results.getPositions().get(i)).append(":").append(results.getScores().get(i));
+
+        Message response = new Message(SEARCH_RESULTS, BigInteger.valueOf(nodeId), RESPONSIBLE, results.getMessages());
+        response.setBody(results.getTotal() + " " + hits);
+        return response;
+    }
+
+    /**
+     * Searches a chat kept as a reference on the node holding it
+     *
+     * @return best matches of the chat, null if the node holding it did not answer
+     */
+    private SearchIndex.Results searchAtOwner(Chat chat, String query, int count) {
+        Message request = new Message(CHAT_SEARCH, BigInteger.valueOf(nodeId), NOT_RESPONSIBLE, chat.getIdChat().toString(), Integer.toString(count), query);
+        Message response = askOwner(request, chat.getIdChat());
+        if (response == null || !response.getMessageType().equals(SEARCH_RESULTS))
+            return null;
+
+        @SuppressWarnings("unchecked") //SEARCH_RESULTS messages always carry the chat messages found
+        ArrayList<ChatMessage> messages = (ArrayList<ChatMessage>) response.getObject();
+        String[] body = response.getBody().split(" ");
+        ArrayList<Integer> positions = new ArrayList<>();
+        ArrayList<Double> scores = new ArrayList<>();
+        if (body.length > 1) {
+            for (String hit : body[1].split(",")) {
+                String[] info = hit.split(":");
+                positions.add(Integer.parseInt(info[0]));
+                scores.add(Double.parseDouble(info[1]));
             }
         }
 
+        return new SearchIndex.Results(messages, Integer.parseInt(body[0]), positions, scores);
+    }
+
+
+    /**
+     * Sends the chats of a user that changed after the sequence numbers the client already has,
+     * chats the client does not have are sent whole and chats without changes are not sent
+     *
+     * @param body     ChatId:Sequence of each chat the client has
+     * @param clientId client id
+     * @return message of success
+     */
+    public Message getAllChats(String[] body, BigInteger clientId) {
+
+        ServerConnection userConnection = loggedInUsers.get(clientId);
+        if (userConnection != null)
+            sendChats(userConnection, users.get(clientId), chatStore, body, true);
+
         Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_CHATS);
         return message;
     }
 
-    public Message getAllPendingChats(BigInteger clientId) {
+    /**
+     * Sends the chats of a user to its client, the chats the client has a copy of are sent as the messages after it
+     *
+     * @param connection connection to the client
+     * @param user       user, or its backup copy
+     * @param store      store holding the chats of the user, chatStore or backupChatStore
+     * @param body       ChatId:Sequence of each chat the client has a copy of
+     * @param primary    true on the primary, only the primary advances the read cursors of the user
+     */
+    private void sendChats(ServerConnection connection, User user, ChatStore store, String[] body, boolean primary) {
+        HashMap<BigInteger, Long> known = new HashMap<>();
+        for (String mark : body) {
+            if (mark.isEmpty())
+                continue;
+            String[] info = mark.split(":");
+            known.put(new BigInteger(info[0]), Long.parseLong(info[1]));
+        }
+
+        for (ConcurrentHashMap.Entry<BigInteger, Chat> entry : user.getChats().entrySet()) {
+            Chat chat = entry.getValue();
+            Long sequence = known.get(entry.getKey());
+
+            //nothing new since the client copy
+            if (sequence != null && sequence == chat.getSequence())
+                continue;
+
+            Message message;
+            int from = sequence == null ? 0 : store.positionAfter(chat, sequence);
+            int size = store.size(chat);
+
+            //from is -1 if the messages after the client copy are only on disk and not indexed
+            if (sequence == null || sequence > chat.getSequence() || from < 0 || size - from > MAX_HISTORY_PAGE_SIZE) {
+                message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, primary ? userView(user, chat) : store.view(user, chat));
+            } else {
+                message = new Message(CHAT_DELTA, BigInteger.valueOf(nodeId), RESPONSIBLE, ChatStore.delta(user, chat, sequence, from, store.messages(chat, from, size)));
+                if (primary)
+                    advanceReadCursor(user, chat.getIdChat(), size);
+            }
+
+            connection.sendMessage(message);
+        }
+    }
 
+    public Message getAllPendingChats(BigInteger clientId) {
+        boolean stored = true;
 
         for (ConcurrentHashMap.Entry<BigInteger, Chat> entry : users.get(clientId).getPendingRequests().entrySet()) {
             Chat chat = entry.getValue();
 
             if (loggedInUsers.get(clientId) != null) {
+                //a chat that could not be logged stays pending
+                if (!log(LogRecord.membership(chat.getIdChat(), clientId, false))) {
+                    stored = false;
+                    continue;
+                }
                 users.get(clientId).addChat(chat);
                 users.get(clientId).deletePendingRequest(chat.getIdChat());
-                Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, chat, clientId);
+                Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, userView(users.get(clientId), chat), clientId);
                 ServerConnection userConnection = loggedInUsers.get(clientId);
                 userConnection.sendMessage(response);
             }
 
         }
 
+        if (!stored)
+            return changeNotStored();
+
         Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_PENDING_CHATS);
         return message;
     }
@@ -567,11 +1731,14 @@ public class Server extends Node implements Serializable {
         //requiredChatId.intValue() + "/" + filename;
 
         FileInputStream inputStream;
-        String filename = "data/" + Integer.toString(getNodeId()) + "/" + message.getBody();
+        File file = findFile(clientId, message.getBody());
+        String filename = file == null ? message.getBody() : file.getPath();
         System.out.println(filename);
 
         try {
-            inputStream = new FileInputStream(filename);
+            if (file == null)
+                throw new FileNotFoundException(filename);
+            inputStream = new FileInputStream(file);
         } catch (FileNotFoundException e) {
             System.out.println("Could not open file to download.");
             Message response = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_DOWNLOADING_FILE);
@@ -580,13 +1747,20 @@ public class Server extends Node implements Serializable {
 
         String body[] = message.getBody().split("/");
         String requiredChatId = body[1];
+        long start = System.nanoTime();
+        long cpuStart = threadCpuTime();
+        long bytesSent = 0;
+        long wireBytes = 0;
+        int chunks = 0;
+        //chunks grow with the throughput of the connection
+        ChunkSizer sizer = new ChunkSizer(FILE_CHUNK_SIZE, MAX_FILE_CHUNK_SIZE);
 
         try {
 
             int bytesRead;
-            byte[] chunk = new byte[8192];
+            byte[] chunk = new byte[MAX_FILE_CHUNK_SIZE];
 
-            while ((bytesRead = inputStream.read(chunk)) != -1) {
+            while ((bytesRead = readChunk(inputStream, chunk, sizer.next())) > 0) {
 
                 byte[] chunkToSend = new byte[bytesRead];
                 System.arraycopy(chunk, 0, chunkToSend, 0, bytesRead);
@@ -596,85 +1770,398 @@ public class Server extends Node implements Serializable {
                 ChatMessage chatMessageToSend = new ChatMessage(new BigInteger(requiredChatId), date, new BigInteger(body[1]), chunkToSend, IMAGE_MESSAGE, body[2]);
 
                 messageToSend = new Message(DOWNLOADING_FILE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessageToSend, new BigInteger(body[1]));
+                //chunks may be handled out of order by the client
+                messageToSend.setBody(bytesSent + " " + file.length());
 
                 System.out.println("Sending file...........");
 
-                connection.sendMessage(messageToSend);
+                //messages to the client go first
+                wireBytes += connection.sendBulk(messageToSend);
+                bytesSent += bytesRead;
+                chunks++;
+                sizer.record(bytesRead);
 
                   /*  Message response = connection.receiveMessage();
 
-                    if (!response.getMessageType().equals(CLIENT_SUCCESS)) {
-                        System.out.println("ERROR SENDING FILE...");
-                        return;
-                    }*/
+                    if (!response.getMessageType().equals(CLIENT_SUCCESS)) {
+                        System.out.println("ERROR SENDING FILE...");
+                        return;
+                    }*/
+            }
+            inputStream.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        printThroughput("Sent " + filename + " in chunks", bytesSent, System.nanoTime() - start, threadCpuTime() - cpuStart);
+        printOverhead("Sent " + filename + " in chunks", bytesSent, wireBytes, chunks);
+
+        Message response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
+        return response;
+    }
+
+    /**
+     * Reads a chunk, filled unless the file ends
+     *
+     * @return bytes read, 0 at the end of the file
+     */
+    private static int readChunk(InputStream inputStream, byte[] chunk, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int bytesRead = inputStream.read(chunk, read, length - read);
+            if (bytesRead == -1)
+                break;
+            read += bytesRead;
+        }
+        return read;
+    }
+
+    /**
+     * Streams a part of a file of a user on a connection the client opened for it.
+     * A FILE_STREAM header is followed by the raw bytes of the part, moved with transferTo,
+     * instead of one DOWNLOADING_FILE message per chunk. The client downloads the parts on
+     * concurrent connections, files smaller than MIN_TRANSFER_RANGE per part have fewer parts
+     * and the parts past them are empty
+     *
+     * @param connection connection opened for the part, closed at the end
+     * @param message    DOWNLOAD_STREAM message, body Part Parts Path
+     */
+    public void streamFile(ServerConnection connection, Message message) {
+        try {
+            String[] body = message.getBody().split(" ", 3);
+            int part;
+            int parts;
+            try {
+                part = Integer.parseInt(body[0]);
+                parts = Integer.parseInt(body[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                part = -1;
+                parts = 0;
+            }
+
+            //a negative part would reach transferTo as a negative position
+            if (part < 0 || parts < 1 || body.length < 3) {
+                System.out.println("Invalid part of file to download.");
+                connection.sendMessage(new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_DOWNLOADING_FILE));
+                return;
+            }
+
+            String path = body[2];
+            File file = findFile(message.getSenderId(), path);
+            long start = System.nanoTime();
+            long cpuStart = threadCpuTime();
+
+            if (file == null) {
+                System.out.println("Could not open file to download.");
+                connection.sendMessage(new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_DOWNLOADING_FILE));
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                parts = (int) Math.max(1, Math.min(parts, size / MIN_TRANSFER_RANGE));
+                long range = (size + parts - 1) / parts;
+                long offset = Math.min(size, part * range);
+                long length = part < parts ? Math.min(range, size - offset) : 0;
+
+                Message header = new Message(FILE_STREAM, BigInteger.valueOf(nodeId), RESPONSIBLE, Long.toString(size), Long.toString(offset), Long.toString(length), path.split("/", 3)[2]);
+                connection.sendFile(header, channel, offset, length);
+
+                printThroughput("Streamed part " + part + "/" + parts + " of " + file.getPath(), length, System.nanoTime() - start, threadCpuTime() - cpuStart);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to stream file");
+            }
+        } finally {
+            connection.closeConnection();
+        }
+    }
+
+    /**
+     * Starts or resumes an upload of a client
+     *
+     * @param file     message of the file, without content
+     * @param body     Size [UploadId], the id of the upload being resumed
+     * @param clientId client id
+     * @return UPLOAD_READY message with the upload id, the offset the client sends from, its window and chunk sizes
+     */
+    public Message startUpload(ChatMessage file, String[] body, BigInteger clientId) {
+        long size = Long.parseLong(body[0]);
+        String uploadId = body.length > 1 ? body[1] : null;
+
+        UploadManager.Upload upload;
+        try {
+            upload = uploadManager.start(clientId, file, size, uploadId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to start upload");
+            return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, uploadId == null ? "" : uploadId);
+        }
+
+        return uploadReady(upload, file);
+    }
+
+    private Message uploadReady(UploadManager.Upload upload, ChatMessage file) {
+        Message response = new Message(UPLOAD_READY, BigInteger.valueOf(nodeId), RESPONSIBLE, file);
+        //the window in bytes of the stream bounds the chunks
+        long maxChunkSize = Math.max(upload.getChunkSize(), Math.min(upload.getMaxChunkSize(), TRANSFER_WINDOW_BYTES / transferWindow));
+        response.setBody(upload.getId() + " " + upload.firstMissing() + " " + upload.getChunkSize() + " " + transferWindow + " " + maxChunkSize);
+        return response;
+    }
+
+    /**
+     * Writes a chunk of an upload at its offset
+     *
+     * @param chunk    message with the bytes of the chunk
+     * @param body     UploadId Offset Crc
+     * @param clientId client id
+     * @return UPLOAD_ACK if the chunk was written, UPLOAD_CHUNK_FAILED if it has to be sent again
+     */
+    public Message uploadChunk(ChatMessage chunk, String[] body, BigInteger clientId) {
+        UploadManager.Upload upload = uploadManager.get(body[0], clientId);
+        if (upload == null)
+            return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
+
+        boolean written = false;
+        try {
+            written = upload.write(Long.parseLong(body[1]), chunk.getContent(), Long.parseLong(body[2]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write chunk");
+        }
+
+        return new Message(written ? UPLOAD_ACK : UPLOAD_CHUNK_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0], body[1], Integer.toString(chunk.getContentLength()));
+    }
+
+    /**
+     * Finishes an upload once all its chunks were received and its digest matches the one of the client,
+     * the file is then stored for the participants of the chat and its message is sent to the chat
+     *
+     * @param connection connection of the client
+     * @param body       UploadId Digest, SHA-256 of the file in hexadecimal
+     * @param clientId   client id
+     * @return UPLOAD_DONE, UPLOAD_READY with the first missing offset or UPLOAD_FAILED
+     */
+    public Message completeUpload(ServerConnection connection, String[] body, BigInteger clientId) {
+        UploadManager.Upload upload = uploadManager.get(body[0], clientId);
+        if (upload == null)
+            return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
+
+        if (upload.firstMissing() < upload.getSize())
+            return uploadReady(upload, upload.getFile());
+
+        ChatMessage file = upload.getFile();
+        String digest;
+        try {
+            uploadManager.close(upload);
+            digest = upload.digest();
+            if (blobStore == null || !digest.equalsIgnoreCase(body[1])) {
+                System.out.println("Digest of upload " + upload.getId() + " does not match");
+                uploadManager.remove(upload);
+                return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
             }
 
+            blobStore.put(upload.getPart(), digest);
         } catch (IOException e) {
             e.printStackTrace();
+            System.out.println("Failed to store upload");
+            uploadManager.remove(upload);
+            return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
         }
 
-        Message response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
-        return response;
-    }
+        uploadManager.remove(upload);
 
-    public Message loadFileOnParticipants(ServerConnection connection, Message message, BigInteger clientId, BigInteger senderId) {
+        //the participants of other nodes are sent the message only once their nodes have the blob,
+        //a blob left without a message is collected after the grace period
+        if (!sendBlobToNodes(upload, digest)) {
+            System.out.println("Upload " + upload.getId() + " not replicated to every node of the chat");
+            return new Message(UPLOAD_FAILED, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
+        }
 
-        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        //the chat only holds the digest of the file
+        ChatMessage reference = new ChatMessage(file.getChatId(), file.getCreationDate(), clientId, digest.getBytes(), IMAGE_MESSAGE, file.getFilename());
+        sendMessage(connection, reference, clientId, clientId);
+        return new Message(UPLOAD_DONE, BigInteger.valueOf(nodeId), RESPONSIBLE, body[0]);
+    }
 
-        Chat chat = users.get(clientId).getChat(chatMessage.getChatId());
+    /**
+     * Replicates a blob to the nodes of the participants of its chat, the participants of this node share
+     * the blob of this node
+     *
+     * @return true once the nodes of every participant have the blob
+     */
+    private boolean sendBlobToNodes(UploadManager.Upload upload, String digest) {
+        ChatMessage file = upload.getFile();
+        Chat chat = users.get(upload.getClientId()).getChat(file.getChatId());
 
+        ArrayList<BigInteger> participants = new ArrayList<>();
         for (String participantEmail : chat.getParticipants()) {
+            BigInteger participantHash = chat.getParticipantId(participantEmail);
+            if (users.get(participantHash) == null)
+                participants.add(participantHash);
+        }
 
-            System.out.println(1111111);
+        return participants.isEmpty() || replicateBlob(file, digest, upload.getSize(), participants);
+    }
 
-            BigInteger participantHash = createHash(participantEmail);
+    /**
+     * Streams a blob on the persistent link to each next node on the way to the participants, read once and
+     * sent once per link whatever the number of participants behind it. Each chunk names the participants it
+     * is for, a node stores it once for the participants it is responsible for and forwards it on its own
+     * links for the others
+     *
+     * @param file         message of the file
+     * @param digest       SHA-256 of the blob, in hexadecimal
+     * @param size         bytes of the blob
+     * @param participants participants of other nodes
+     * @return true once every node on the way acked every chunk
+     */
+    private boolean replicateBlob(ChatMessage file, String digest, long size, ArrayList<BigInteger> participants) {
+        HashMap<Integer, Node> hops = new HashMap<>();
+        HashMap<Integer, String> targets = groupByNextHop(participants, hops);
+        File blob = blobStore.get(digest);
+        long start = System.nanoTime();
+        long openedBefore = nodeLinks.getOpened();
+        int chunks = 0;
+        ArrayList<CompletableFuture<Boolean>> acks = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            long offset = 0;
+            do {
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(REPLICATION_CHUNK_SIZE, size - offset));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, offset + chunk.position()) == -1)
+                        throw new EOFException();
+                }
 
-            if (users.get(participantHash) != null) {
-                loadingFile(connection, message, participantHash);
-            } else {
+                ChatMessage chatMessage = new ChatMessage(file.getChatId(), file.getCreationDate(), file.getUserId(), chunk.array(), IMAGE_MESSAGE, file.getFilename());
+                for (Map.Entry<Integer, String> hop : targets.entrySet()) {
+                    Message message = new Message(BLOB_CHUNK, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, BigInteger.valueOf(hop.getKey()));
+                    message.setBody(digest + " " + offset + " " + size + " " + hop.getValue());
+                    acks.add(nodeLinks.send(hops.get(hop.getKey()), message));
+                }
+                offset += chunk.capacity();
+                chunks++;
+            } while (offset < size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to replicate blob " + digest);
+            return false;
+        }
 
-                Message messageParticipant = new Message(STORE_FILE_ON_PARTICIPANT, participantHash, NOT_RESPONSIBLE, chatMessage, participantHash);
-                Runnable task = () -> {
-                    redirect(connection, messageParticipant);
-                };
-                threadPool.submit(task);
-            }
+        if (!awaitAcks(acks)) {
+            System.out.println("Failed to replicate blob " + digest + ", not every chunk was acked");
+            return false;
         }
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
+
+        System.out.println("Replicated blob " + digest + " for " + participants.size() + " remote participants on " + targets.size()
+                + " links in " + (System.nanoTime() - start) / 1000000 + " ms, " + (nodeLinks.getOpened() - openedBefore)
+                + " connections opened instead of " + (long) chunks * participants.size() + " with one redirect per chunk");
+        return true;
     }
 
-    public Message loadingFile(ServerConnection connection, Message message, BigInteger clientId) {
+    /**
+     * Waits for the acks of messages sent on links, at most LINK_ACK_TIMEOUT after the last one sent
+     *
+     * @param acks acks of the messages
+     * @return true if every message was acked and passed on
+     */
+    private boolean awaitAcks(ArrayList<CompletableFuture<Boolean>> acks) {
+        long deadline = System.currentTimeMillis() + LINK_ACK_TIMEOUT;
+        boolean delivered = true;
+        for (CompletableFuture<Boolean> ack : acks) {
+            try {
+                delivered &= ack.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+        return delivered;
+    }
 
+    /**
+     * Groups participants by the node messages for them are sent to
+     *
+     * @param participants participants
+     * @param hops         filled with the nodes, by id
+     * @return participants of each node, Participant:R if the node is responsible for it, Participant:N otherwise,
+     * separated by commas
+     */
+    private HashMap<Integer, String> groupByNextHop(Collection<BigInteger> participants, HashMap<Integer, Node> hops) {
+        return groupByNextHop(participants, hops, new HashMap<>());
+    }
 
-        System.out.println("Sender " + message.getSenderId());
-        System.out.println("Receiver  " + message.getReceiver());
+    /**
+     * @param groups filled with the participants of each node
+     */
+    private HashMap<Integer, String> groupByNextHop(Collection<BigInteger> participants, HashMap<Integer, Node> hops, HashMap<Integer, ArrayList<BigInteger>> groups) {
+        HashMap<Integer, String> targets = new HashMap<>();
+        for (BigInteger participant : participants) {
+            int id = Integer.remainderUnsigned(participant.intValue(), 128);
+            Node hop = nextHop(id);
+            hops.put(hop.getNodeId(), hop);
+            groups.computeIfAbsent(hop.getNodeId(), k -> new ArrayList<>()).add(participant);
+            String target = participant + (isNextHopResponsible(id) ? ":R" : ":N");
+            targets.merge(hop.getNodeId(), target, (first, second) -> first + "," + second);
+        }
+        return targets;
+    }
 
+    /**
+     * Handles a chunk of a blob received on a link, stored once if this node is responsible for any of its
+     * participants and forwarded on the links of this node for the others
+     *
+     * @param message BLOB_CHUNK message, body Sequence Digest Offset Size Targets
+     * @return true if the chunk was stored and the next nodes acked it
+     */
+    public boolean receiveBlobChunk(Message message) {
         ChatMessage chatMessage = (ChatMessage) message.getObject();
-        String filename = new String(chatMessage.getFilename());
-        OutputStream outputStream = null;
-        Message newMessage = null;
-
-        File yourFile = new File("data/" + Integer.toString(getNodeId()) + "/" + clientId.intValue() + "/" + chatMessage.getChatId().intValue() + "/" + filename);
-        System.out.println(yourFile.getPath());
+        String[] body = message.getBody().split(" ", 2)[1].split(" ");
+        long offset = Long.parseLong(body[1]);
+        long size = Long.parseLong(body[2]);
+
+        boolean local = false;
+        ArrayList<BigInteger> forward = new ArrayList<>();
+        for (String target : body[3].split(",")) {
+            String[] participant = target.split(":");
+            if (participant[1].equals("R"))
+                local = true;
+            else forward.add(new BigInteger(participant[0]));
+        }
 
-        if (!yourFile.exists()) {
-            yourFile.getParentFile().mkdirs(); // Will create parent directories if not exists
+        boolean stored = true;
+        if (local) {
             try {
-                yourFile.createNewFile();
+                if (blobStore != null)
+                    blobStore.write(body[0], size, offset, chatMessage.getContent());
             } catch (IOException e) {
                 e.printStackTrace();
+                System.out.println("Failed to store chunk of blob " + body[0]);
+                stored = false;
             }
         }
-        try {
-            outputStream = new FileOutputStream(yourFile, true);
-            System.out.println(chatMessage.getContent().length);
-            outputStream.write(chatMessage.getContent());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        Message response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
-        return response;
+        if (forward.isEmpty())
+            return stored;
+
+        HashMap<Integer, Node> hops = new HashMap<>();
+        ArrayList<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        for (Map.Entry<Integer, String> hop : groupByNextHop(forward, hops).entrySet()) {
+            Message next = new Message(BLOB_CHUNK, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, BigInteger.valueOf(hop.getKey()));
+            next.setBody(body[0] + " " + offset + " " + size + " " + hop.getValue());
+            try {
+                acks.add(nodeLinks.send(hops.get(hop.getKey()), next));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to forward chunk of blob " + body[0]);
+                stored = false;
+            }
+        }
+        return awaitAcks(acks) && stored;
     }
 
     public Message storeFileMessage(ServerConnection connection, ChatMessage chatMessage, BigInteger clientId, BigInteger senderId) {
@@ -695,7 +2182,7 @@ public class Server extends Node implements Serializable {
 
         for (String participantEmail : chat.getParticipants()) {
 
-            BigInteger participantHash = createHash(participantEmail);
+            BigInteger participantHash = chat.getParticipantId(participantEmail);
 
             //if this server is responsible for this participant send client a message
             if (users.get(participantHash) != null) {
@@ -716,6 +2203,8 @@ public class Server extends Node implements Serializable {
             }
         }
 
+        chat.membershipChanged();
+
         for (HashMap.Entry<BigInteger, PublicKey> entry : chat.getUsersPubKeys().entrySet()) {
             BigInteger key = entry.getKey();
             PublicKey value = entry.getValue();
@@ -739,7 +2228,7 @@ public class Server extends Node implements Serializable {
 
         for (String participantEmail : chat.getParticipants()) {
 
-            BigInteger participantHash = createHash(participantEmail);
+            BigInteger participantHash = chat.getParticipantId(participantEmail);
 
             //if this server is responsible for this participant send client a message
             if (users.get(participantHash) != null) {
@@ -749,6 +2238,8 @@ public class Server extends Node implements Serializable {
             }
         }
 
+        chat.membershipChanged();
+
         for (HashMap.Entry<BigInteger, PublicKey> entry : chat.getUsersPubKeys().entrySet()) {
             BigInteger key = entry.getKey();
             PublicKey value = entry.getValue();
@@ -795,7 +2286,221 @@ public class Server extends Node implements Serializable {
     }
 
     /**
-     * Replicates info to his successor
+     * Bumps the user version and replicates the user to this node successor
+     *
+     * @param user user that was changed
+     */
+    public void replicateUser(User user) {
+        if (user == null)
+            return;
+        user.incrementVersion();
+        User copy = chatStore.export(user);
+
+        if (!replicationMode.equals(CHAIN_REPLICATION)) {
+            sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, copy));
+            return;
+        }
+
+        //the successor is the first node of the chain, the rest goes in the body
+        ArrayList<Node> chain = dht.getSuccessors(CHAIN_LENGTH - 1);
+        if (!chain.isEmpty())
+            chain.remove(0);
+
+        Message message = new Message(CHAIN_UPDATE, BigInteger.valueOf(nodeId), RESPONSIBLE, copy);
+        message.setBody(encodeChain(chain));
+        sendInfoToBackup(message);
+    }
+
+    /**
+     * Replicates a message appended to a chat instead of every participant that received it
+     *
+     * @param chatMessage message
+     * @param user        participant of this node that received the message, its version is bumped
+     */
+    public void replicateChatMessage(ChatMessage chatMessage, User user) {
+        Message message;
+
+        if (!replicationMode.equals(CHAIN_REPLICATION)) {
+            message = new Message(BACKUP_CHAT_MESSAGE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, user == null ? null : user.getUserId());
+        } else {
+            ArrayList<Node> chain = dht.getSuccessors(CHAIN_LENGTH - 1);
+            if (!chain.isEmpty())
+                chain.remove(0);
+            message = new Message(CHAIN_UPDATE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, user == null ? null : user.getUserId());
+            message.setBody(encodeChain(chain));
+        }
+
+        if (user != null)
+            message.setVersion(user.incrementVersion());
+        sendInfoToBackup(message);
+    }
+
+    /**
+     * Appends a replicated message to the backup copy of its chat
+     *
+     * @param message BACKUP_CHAT_MESSAGE or CHAIN_UPDATE message with a ChatMessage
+     * @return replica of the user that received the message or null
+     */
+    private User backupChatMessage(Message message) {
+        backupChatStore.appendReplica((ChatMessage) message.getObject());
+
+        User user = message.getReceiver() == null ? null : backups.get(message.getReceiver());
+        if (user != null) {
+            user.setVersion(Math.max(user.getVersion(), message.getVersion()));
+            user.setReplicatedAt(System.currentTimeMillis());
+        }
+        return user;
+    }
+
+    /**
+     * Applies an update received from the previous node of a chain and passes it down the chain,
+     * the answer is only sent back after the tail has applied the update
+     *
+     * @param message CHAIN_UPDATE message, sender is the head of the chain
+     * @return message of success
+     */
+    public Message chainUpdate(Message message) {
+        applyChainUpdate(message, message.getBody());
+        return new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+    }
+
+    /**
+     * Applies an update received on the link from the previous node of a chain and passes it down the chain
+     * on the link to the next one, the ack is only sent back after the tail has applied the update
+     *
+     * @param message CHAIN_HOP message, sender is the head of the chain
+     * @return true, a node the rest of the chain is unavailable for acts as the tail
+     */
+    public boolean chainHop(Message message) {
+        String[] body = message.getBody().split(" ", 2);
+        applyChainUpdate(message, body.length > 1 ? body[1] : "");
+        return true;
+    }
+
+    /**
+     * @param message CHAIN_UPDATE or CHAIN_HOP message
+     * @param encoded remaining chain encoded by encodeChain
+     */
+    private void applyChainUpdate(Message message, String encoded) {
+        ArrayList<Node> chain = decodeChain(encoded, message.getSenderId().intValue());
+        User user;
+        Object update = message.getObject();
+
+        if (message.getObject() instanceof ChatMessage) {
+            user = backupChatMessage(message);
+        } else if (message.getObject() instanceof Chat) {
+            user = null;
+            Chat chat = backupChatStore.register((Chat) message.getObject());
+            if (!chain.isEmpty())
+                update = backupChatStore.export(chat, true);
+        } else if (message.getObject() instanceof String) {
+            user = null;
+            applyReadCursors((String) message.getObject(), message.getSenderId());
+        } else {
+            User received = (User) message.getObject();
+            received.setReplicatedAt(System.currentTimeMillis());
+            backupChatStore.adopt(received);
+            //an older copy arriving late leaves the newer one in place, the flags go on the copy that is kept
+            user = backups.merge(received.getUserId(), received, (current, newer) -> newer.getVersion() >= current.getVersion() ? newer : current);
+            if (!chain.isEmpty())
+                update = backupChatStore.export(user);
+        }
+
+        if (user != null)
+            user.setChainTail(chain.isEmpty());
+
+        if (!chain.isEmpty() && !forwardOnChain(message, update, chain)) {
+            System.out.println("Rest of the chain unavailable, acting as tail");
+            if (user != null)
+                user.setChainTail(true);
+        }
+    }
+
+    /**
+     * Sends an update on the link to the first reachable node of the chain and waits for the ack from the tail,
+     * unreachable nodes are skipped. Updates of other requests go on the same link while this one waits
+     *
+     * @param message CHAIN_UPDATE or CHAIN_HOP message
+     * @param update  user or chat message passed on, users carry the last page of their chats
+     * @param chain   remaining nodes of the chain
+     * @return false if no node of the chain acked the update
+     */
+    private boolean forwardOnChain(Message message, Object update, ArrayList<Node> chain) {
+
+        while (!chain.isEmpty()) {
+            Node next = chain.remove(0);
+
+            try {
+                return chainHop(next, message, update, encodeChain(chain));
+            } catch (IOException | ExecutionException e) {
+                System.out.println("Chain node " + next.getNodeId() + " unreachable, skipping");
+                threadPool.submit(() -> serverDown(next));
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends an update on the link to a node of a chain
+     *
+     * @param next    node
+     * @param message CHAIN_UPDATE or CHAIN_HOP message
+     * @param update  update passed on
+     * @param chain   nodes of the chain after the node, encoded by encodeChain
+     * @return true once the tail applied the update, false if it was not acked in time
+     */
+    private boolean chainHop(Node next, Message message, Object update, String chain) throws IOException, ExecutionException {
+        Message hop = new Message(CHAIN_HOP, message.getSenderId(), RESPONSIBLE, update, message.getReceiver());
+        hop.setVersion(message.getVersion());
+        hop.setBody(chain);
+
+        try {
+            return nodeLinks.send(next, hop).get(CHAIN_LENGTH * LINK_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (TimeoutException e) {
+            System.out.println("Chain update not acked by node " + next.getNodeId());
+            return false;
+        }
+    }
+
+    /**
+     * @param chain nodes of a chain
+     * @return chain as NodeId:NodeIp:NodePort separated by spaces
+     */
+    private String encodeChain(ArrayList<Node> chain) {
+        StringBuilder body = new StringBuilder();
+        for (Node node : chain)
+            body.append(node.getNodeId()).append(":").append(node.getNodeIp()).append(":").append(node.getNodePort()).append(" ");
+        return body.toString().trim();
+    }
+
+    /**
+     * @param body   chain encoded by encodeChain
+     * @param headId id of the head of the chain
+     * @return remaining nodes of the chain without this node and the head
+     */
+    private ArrayList<Node> decodeChain(String body, int headId) {
+        ArrayList<Node> chain = new ArrayList<Node>();
+
+        if (body == null || body.isEmpty())
+            return chain;
+
+        for (String encoded : body.split(" ")) {
+            String[] info = encoded.split(":");
+            int id = Integer.parseInt(info[0]);
+            if (id != nodeId && id != headId)
+                chain.add(new Node(info[1], Integer.parseInt(info[2]), id));
+        }
+
+        return chain;
+    }
+
+    /**
+     * Replicates info to his successor, if the successor can't be reached the update is stored
+     * as a hint and replayed later without blocking the request
      *
      * @param message message with all the info to be backed up
      */
@@ -803,7 +2508,27 @@ public class Server extends Node implements Serializable {
         Node successor = dht.getSuccessor();
 
         if (successor == null) {
-            System.out.println("Successor unavailable");
+            System.out.println("Successor unavailable, storing hint");
+            hintedHandoff.addHint(HintedHandoff.NO_REPLICA, message);
+            return;
+        }
+
+        //keeps updates in order while older ones are waiting to be replayed
+        if (hintedHandoff.hasHints()) {
+            hintedHandoff.addHint(successor.getNodeId(), message);
+            return;
+        }
+
+        //updates of a chain go on the link to the successor, one after the other without waiting
+        if (message.getMessageType().equals(CHAIN_UPDATE)) {
+            try {
+                //not acked in time, the hint is replayed once the successor answers again
+                if (!chainHop(successor, message, message.getObject(), message.getBody()))
+                    hintedHandoff.addHint(successor.getNodeId(), message);
+            } catch (IOException | ExecutionException e) {
+                hintedHandoff.addHint(successor.getNodeId(), message);
+                threadPool.submit(() -> serverDown(successor));
+            }
             return;
         }
 
@@ -812,17 +2537,19 @@ public class Server extends Node implements Serializable {
         try {
             handler.connect();
         } catch (IOException e) {
-            serverDown(successor);
-            sendInfoToBackup(message);
+            hintedHandoff.addHint(successor.getNodeId(), message);
+            threadPool.submit(() -> serverDown(successor));
             return;
         }
-        handler.sendMessage(message);
         try {
+            handler.sendMessage(message);
             handler.receiveMessage();
-        } catch (IOException e) {
-            System.out.println("Function sendInfoToBackup: Failed to receive message");
-        } catch (ClassNotFoundException e) {
-            System.out.println("Function sendInfoToBackup: Failed to receive message");
+        } catch (IOException | ClassNotFoundException e) {
+            //the successor may not have the update, a later watermark would make it look fresh without it
+            System.out.println("Function sendInfoToBackup: Failed to receive message, storing hint");
+            hintedHandoff.addHint(successor.getNodeId(), message);
+        } finally {
+            handler.closeConnection();
         }
     }
 
@@ -842,10 +2569,37 @@ public class Server extends Node implements Serializable {
             case BACKUP_USER:
                 user = (User) message.getObject();
                 System.out.println("EHEHEHEHHEHEHE " + user.getUserId());
-                backups.put(user.getUserId(), user);
+                user.setReplicatedAt(System.currentTimeMillis());
+                backupChatStore.adopt(user);
+                //a hint replayed after a newer update was sent directly does not replace it
+                backups.merge(user.getUserId(), user, (current, newer) -> newer.getVersion() >= current.getVersion() ? newer : current);
                 System.out.println("Back up user from server " + message.getSenderId());
                 response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
                 break;
+            case BACKUP_USERS:
+                long now = System.currentTimeMillis();
+                @SuppressWarnings("unchecked") //BACKUP_USERS messages always carry a batch of users
+                ArrayList<User> batch = (ArrayList<User>) message.getObject();
+                for (User backupUser : batch) {
+                    backupUser.setReplicatedAt(now);
+                    backupChatStore.adopt(backupUser);
+                    backups.merge(backupUser.getUserId(), backupUser, (current, newer) -> newer.getVersion() >= current.getVersion() ? newer : current);
+                }
+                System.out.println("Back up users from server " + message.getSenderId());
+                response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+                break;
+            case BACKUP_CHAT_MESSAGE:
+                backupChatMessage(message);
+                response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+                break;
+            case BACKUP_CHAT:
+                backupChatStore.register((Chat) message.getObject());
+                response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+                break;
+            case BACKUP_READ_CURSORS:
+                applyReadCursors((String) message.getObject(), message.getSenderId());
+                response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+                break;
             default:
                 break;
         }
@@ -885,13 +2639,11 @@ public class Server extends Node implements Serializable {
 
         Queue<User> newServerUsers = new LinkedList<User>();
 
-        int newNodeId = node.getNodeId();
-
         container.forEach((userId, user) -> {
 
             int tempUserId = Integer.remainderUnsigned(userId.intValue(), 128);
 
-            if (tempUserId < newNodeId || (tempUserId > nodeId && tempUserId < MAX_NUMBER_OF_NODES)) {
+            if (isOfANewServer(tempUserId, node)) {
                 System.out.println("VOU APAGAR USER!!! " + tempUserId);
                 newServerUsers.add(user);
                 container.remove(userId, user);
@@ -902,7 +2654,16 @@ public class Server extends Node implements Serializable {
         return newServerUsers;
     }
 
-    public void sendInfoToPredecessor(Node node, ConcurrentHashMap<BigInteger, User> container, String type) {
+    /**
+     * @param id   id in the ring
+     * @param node new node, the predecessor of this node
+     * @return true if the new node is responsible for the id from now on
+     */
+    private boolean isOfANewServer(int id, Node node) {
+        return id < node.getNodeId() || (id > nodeId && id < MAX_NUMBER_OF_NODES);
+    }
+
+    public void sendInfoToPredecessor(Node node, ConcurrentHashMap<BigInteger, User> container, ChatStore store, String type) {
 
         Queue<User> predecessorUsers = getUsersOfANewServer(node, container);
 
@@ -914,7 +2675,7 @@ public class Server extends Node implements Serializable {
             handler.connect();
         } catch (IOException e) {
             serverDown(node);
-            sendInfoToPredecessor(node, container, type);
+            sendInfoToPredecessor(node, container, store, type);
             return;
         }
 
@@ -930,8 +2691,8 @@ public class Server extends Node implements Serializable {
                 loggedInUsers.remove(user.getUserId());
             }
 
-            //type = ADD_USER or BACKUP_USER
-            message = new Message(type, BigInteger.valueOf(nodeId), RESPONSIBLE, user);
+            //type = ADD_USER or BACKUP_USER, the chats of a user that moves are handed over on their own
+            message = new Message(type, BigInteger.valueOf(nodeId), RESPONSIBLE, type.equals(ADD_USER) ? store.exportMembership(user) : store.export(user, true));
             handler.sendMessage(message);
             try {
                 handler.receiveMessage();
@@ -947,7 +2708,9 @@ public class Server extends Node implements Serializable {
 
         switch (messageType) {
             case CREATE_CHAT_BY_INVITATION:
-            case NEW_MESSAGE_TO_PARTICIPANT:
+            case OWN_CHAT:
+            case CHAT_READ:
+            case CHAT_SEARCH:
                 return true;
         }
 
@@ -962,6 +2725,11 @@ public class Server extends Node implements Serializable {
 
         System.out.println("REQUEST ID: " + Integer.remainderUnsigned(message.getSenderId().intValue(), 128));
 
+        if (isReplicaRead(message)) {
+            replicaRead(connection, message);
+            return;
+        }
+
         if (isToUseReceiver(message.getMessageType())) {
             if (message.getResponsible().equals(NOT_RESPONSIBLE)) {
                 redirect(connection, message);
@@ -997,8 +2765,14 @@ public class Server extends Node implements Serializable {
             case GET_CHAT:
                 response = getChat(body[0], message.getSenderId());
                 break;
+            case GET_CHAT_HISTORY:
+                response = getChatHistory(body, message.getSenderId());
+                break;
             case GET_ALL_CHATS:
-                response = getAllChats(message.getSenderId());
+                response = getAllChats(body, message.getSenderId());
+                break;
+            case SEARCH:
+                response = searchMessages(body, message.getSenderId());
                 break;
             case GET_ALL_PENDING_CHATS:
                 response = getAllPendingChats(message.getSenderId());
@@ -1012,19 +2786,14 @@ public class Server extends Node implements Serializable {
                 else
                     response = new Message(SERVER_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, USER_NOT_EXISTS);
                 break;
-            case NEW_MESSAGE_TO_PARTICIPANT:
-                if (users.containsKey(message.getReceiver()))
-                    response = sendMessageToUser((ChatMessage) message.getObject(), message.getReceiver());
-                else
-                    response = new Message(SERVER_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, MESSAGE_NOT_SENT);
+            case UPLOAD_START:
+                response = startUpload((ChatMessage) message.getObject(), body, message.getSenderId());
                 break;
-            case FILE_TRANSACTION:
-                System.out.println("CHEGUEIIII 111111");
-                response = loadFileOnParticipants(connection, message, message.getReceiver(), message.getSenderId());
+            case UPLOAD_CHUNK:
+                response = uploadChunk((ChatMessage) message.getObject(), body, message.getSenderId());
                 break;
-            case STORE_FILE_ON_PARTICIPANT:
-                System.out.println("CHEGUEIIII");
-                response = loadingFile(connection, message, message.getReceiver());
+            case UPLOAD_COMPLETE:
+                response = completeUpload(connection, body, message.getSenderId());
                 break;
             case STORE_FILE_MESSAGE:
                 response = storeFileMessage(connection, (ChatMessage) message.getObject(), message.getReceiver(), message.getSenderId());
@@ -1032,6 +2801,15 @@ public class Server extends Node implements Serializable {
             case DOWNLOAD_FILE:
                 response = downloadFile(connection, message, message.getReceiver(), message.getSenderId());
                 break;
+            case OWN_CHAT:
+                response = ownChat((Chat) message.getObject());
+                break;
+            case CHAT_READ:
+                response = readChat(body);
+                break;
+            case CHAT_SEARCH:
+                response = searchChat(body);
+                break;
             case PUBLIC_KEY:
                 response = sendPubKeyToChat(message);
                 break;
@@ -1048,6 +2826,150 @@ public class Server extends Node implements Serializable {
     }
 
 
+    /**
+     * Verifies if a request is a read that this node can answer from its backups instead of the primary
+     *
+     * @param message request
+     * @return true if the request should be handled by replicaRead
+     */
+    public boolean isReplicaRead(Message message) {
+
+        switch (message.getMessageType()) {
+            case GET_CHAT:
+            case GET_ALL_CHATS:
+                break;
+            default:
+                return false;
+        }
+
+        if (message.getReadConsistency() == null || message.getReadConsistency().equals(READ_PRIMARY))
+            return false;
+
+        return !users.containsKey(message.getSenderId()) && backups.containsKey(message.getSenderId());
+    }
+
+    /**
+     * Verifies if the backup copy of a user satisfies the read consistency asked by the client
+     *
+     * @param replica backup copy of the user
+     * @param message request
+     * @return true if the copy can be used to answer
+     */
+    public boolean canServeFromReplica(User replica, Message message) {
+
+        //the nodes before the tail of a chain hold updates the tail has not applied yet
+        if (replicationMode.equals(CHAIN_REPLICATION) && !replica.isChainTail())
+            return false;
+
+        int primary = dht.nodeLookUp(Integer.remainderUnsigned(replica.getUserId().intValue(), 128)).getNodeId();
+        return isFreshEnough(replica, message, replicatedUntil.getOrDefault(primary, 0L));
+    }
+
+    /**
+     * @param replica   backup copy of the user
+     * @param message   request
+     * @param watermark last watermark of the primary of the user, the updates it sent before were all acked
+     * @return true if the copy satisfies the read consistency asked by the client
+     */
+    public static boolean isFreshEnough(User replica, Message message, long watermark) {
+
+        switch (message.getReadConsistency()) {
+            case READ_BOUNDED_STALENESS:
+                //an idle primary keeps sending watermarks, its replicas stay fresh without updates
+                long freshAt = Math.max(replica.getReplicatedAt(), watermark);
+                return System.currentTimeMillis() - freshAt <= MAX_REPLICA_STALENESS;
+            case READ_YOUR_WRITES:
+                return replica.getVersion() >= message.getVersion();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Answers a read request with the backup copy of the user,
+     * if the copy is not fresh enough the request is sent to the primary
+     *
+     * @param connection connection to the client
+     * @param message    GET_CHAT or GET_ALL_CHATS request
+     */
+    public void replicaRead(ServerConnection connection, Message message) {
+
+        User replica = backups.get(message.getSenderId());
+
+        if (replica == null || !canServeFromReplica(replica, message)) {
+            System.out.println("Replica too stale, redirecting read to primary");
+            message.setReadConsistency(READ_PRIMARY);
+            message.setResponsible(NOT_RESPONSIBLE);
+            redirect(connection, message);
+            return;
+        }
+
+        System.out.println("Serving read from replica");
+
+        Message response;
+
+        if (message.getMessageType().equals(GET_CHAT)) {
+            Chat chat = replica.getChat(new BigInteger(message.getBody().split(" ")[0]));
+            if (chat != null)
+                chat = backupChatStore.view(replica, chat);
+            response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat);
+        } else {
+            sendChats(connection, replica, backupChatStore, message.getBody().split(" "), false);
+            response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_CHATS);
+        }
+
+        response.setVersion(replica.getVersion());
+        connection.sendMessage(response);
+    }
+
+    /**
+     * Tells a logged in client which node holds the replica of its data so reads can be sent there
+     *
+     * @param connection client connection
+     * @param clientId   client id
+     */
+    public void sendReplicaAddress(ServerConnection connection, BigInteger clientId) {
+        Node successor = dht.getSuccessor();
+
+        //reads of a chain go to its tail
+        if (replicationMode.equals(CHAIN_REPLICATION)) {
+            ArrayList<Node> chain = dht.getSuccessors(CHAIN_LENGTH - 1);
+            if (!chain.isEmpty())
+                successor = chain.get(chain.size() - 1);
+        }
+
+        if (successor == null || !users.containsKey(clientId))
+            return;
+
+        connection.sendMessage(new Message(REPLICA_ADDRESS, BigInteger.valueOf(nodeId), RESPONSIBLE, successor.getNodeIp(), Integer.toString(successor.getNodePort())));
+    }
+
+    /**
+     * @param id id in the ring
+     * @return node a message for an id is sent to, its responsible or the closest node known on the way
+     */
+    private Node nextHop(int id) {
+        Node n = dht.nodeLookUp(id);
+
+        if (n.getNodeId() == this.getNodeId())
+            return dht.getFingerTable().get(1);
+        if (n.getNodeId() == dht.getFingerTable().get(1).getNodeId())
+            return n;
+
+        n = dht.nodeLookUp(n.getNodeId());
+        if (n.getNodeId() == this.getNodeId())
+            return dht.getFingerTable().get(1);
+        return n;
+    }
+
+    /**
+     * @return true if the node nextHop returns for an id is responsible for it
+     */
+    private boolean isNextHopResponsible(int id) {
+        Node n = dht.nodeLookUp(id);
+        return n.getNodeId() != this.getNodeId() && n.getNodeId() == dht.getFingerTable().get(1).getNodeId();
+    }
+
     public void redirect(ServerConnection initialConnection, Message message) {
 
         int tempId;
@@ -1062,22 +2984,11 @@ public class Server extends Node implements Serializable {
 
         System.out.println("REDIRECTING ID: " + tempId);
 
-        Node n = dht.nodeLookUp(tempId);
-
-        if (n.getNodeId() == this.getNodeId()) {
-            System.out.println("Redirect to successor");
-            n = dht.getFingerTable().get(1);
-        } else if (n.getNodeId() == dht.getFingerTable().get(1).getNodeId()) {
+        Node n = nextHop(tempId);
+        if (isNextHopResponsible(tempId)) {
             System.out.println("Responsible for " + tempId + " is " + n.getNodeId());
             foundResponsible = true;
-        } else {
-            n = dht.nodeLookUp(n.getNodeId());
-            if (n.getNodeId() == this.getNodeId()) {
-                System.out.println("Redirect to successor");
-                n = dht.getFingerTable().get(1);
-            }
-            System.out.println("Jumping message to " + n.getNodeId());
-        }
+        } else System.out.println("Jumping message to " + n.getNodeId());
 
         ServerConnection redirect = new ServerConnection(n.getNodeIp(), n.getNodePort(), this);
         try {
@@ -1111,6 +3022,7 @@ public class Server extends Node implements Serializable {
 
     public void serverDown(Node downNode) {
         System.out.println("\n Node " + downNode.getNodeId() + " is down.");
+        nodeLinks.close(downNode.getNodeId());
 
         Node successor = dht.nodeLookUp(downNode.getNodeId() + 1);
 
@@ -1154,5 +3066,13 @@ public class Server extends Node implements Serializable {
         return users;
     }
 
+    public int getHintBacklog() {
+        return hintedHandoff.getBacklog();
+    }
+
+    public double getHintDrainRate() {
+        return hintedHandoff.getDrainRate();
+    }
+
 }
 
@@ -0,0 +1,228 @@
+package Server;
+
+import Chat.ChatMessage;
+import Storage.BlobStore;
+import Storage.FileSessions;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import static Utilities.Constants.FILE_CHUNK_SIZE;
+import static Utilities.Constants.MAX_FILE_CHUNK_SIZE;
+import static Utilities.Constants.MAX_CONCURRENT_UPLOADS;
+import static Utilities.Constants.UPLOAD_EXPIRY;
+
+/**
+ * Uploads in progress on this node. The chunks of an upload are written to a part file at their offsets,
+ * so they may arrive in any order and be written in parallel, and an upload is resumed from its first
+ * missing chunk when the client reconnects. The part file of an upload stays open between its chunks,
+ * uploads idle for longer than UPLOAD_EXPIRY are dropped
+ */
+public class UploadManager {
+
+    private static final String PART_EXTENSION = ".part";
+
+    private File directory;
+    private FileSessions sessions;
+    private ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private SecureRandom random = new SecureRandom();
+
+    /**
+     * @param path     directory of the part files, the ones left by a previous run are deleted
+     * @param sessions open channels of the part files
+     */
+    public UploadManager(String path, FileSessions sessions) {
+        this.sessions = sessions;
+        directory = new File(path);
+        directory.mkdirs();
+
+        File[] parts = directory.listFiles((dir, name) -> name.endsWith(PART_EXTENSION));
+        if (parts != null) {
+            for (File part : parts) {
+                if (!part.delete())
+                    System.out.println("Failed to delete " + part.getPath());
+            }
+        }
+    }
+
+    /**
+     * Starts an upload or resumes the upload of the client with the same id and size
+     *
+     * @param clientId owner of the upload
+     * @param file     message of the file, without content
+     * @param size     bytes of the file
+     * @param uploadId id of the upload being resumed, null for a new upload
+     * @return upload
+     */
+    public Upload start(BigInteger clientId, ChatMessage file, long size, String uploadId) throws IOException {
+        if (uploadId != null) {
+            Upload upload = uploads.get(uploadId);
+            if (upload != null && upload.clientId.equals(clientId) && upload.size == size)
+                return upload;
+        }
+
+        if (uploads.size() >= MAX_CONCURRENT_UPLOADS)
+            throw new IOException("Too many uploads in progress");
+
+        String id = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+        Upload upload = new Upload(id, clientId, file, size, new File(directory, id + PART_EXTENSION), sessions);
+        if (!upload.part.createNewFile())
+            throw new IOException("Upload " + id + " already exists");
+
+        uploads.put(id, upload);
+        return upload;
+    }
+
+    /**
+     * @return upload of a client, null if it does not exist
+     */
+    public Upload get(String uploadId, BigInteger clientId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.clientId.equals(clientId))
+            return null;
+        return upload;
+    }
+
+    /**
+     * Closes the part file of an upload, once all its chunks were written
+     */
+    public void close(Upload upload) throws IOException {
+        sessions.close(upload.part);
+    }
+
+    /**
+     * Forgets an upload and deletes its part file
+     */
+    public void remove(Upload upload) {
+        uploads.remove(upload.id);
+        try {
+            sessions.close(upload.part);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (upload.part.exists() && !upload.part.delete())
+            System.out.println("Failed to delete " + upload.part.getPath());
+    }
+
+    /**
+     * Drops the uploads without chunks for longer than UPLOAD_EXPIRY
+     *
+     * @return number of uploads dropped
+     */
+    public int expire() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastUsed >= UPLOAD_EXPIRY) {
+                remove(upload);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+
+    public static class Upload {
+        private String id;
+        private BigInteger clientId;
+        private ChatMessage file;
+        private long size;
+
+        /**
+         * Chunks start at multiples of it and are multiples of it, except the last one, up to the max chunk size
+         */
+        private int chunkSize;
+        private int maxChunkSize;
+        private File part;
+        private FileSessions sessions;
+        private BitSet received = new BitSet();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Upload(String id, BigInteger clientId, ChatMessage file, long size, File part, FileSessions sessions) {
+            this.id = id;
+            this.clientId = clientId;
+            this.file = file;
+            this.size = size;
+            this.chunkSize = FILE_CHUNK_SIZE;
+            this.maxChunkSize = MAX_FILE_CHUNK_SIZE;
+            this.part = part;
+            this.sessions = sessions;
+        }
+
+        /**
+         * Writes a chunk at its offset, chunks already written are written again
+         *
+         * @param offset offset of the chunk, a multiple of the chunk size
+         * @param bytes  chunk, a multiple of the chunk size unless it ends the file
+         * @param crc    CRC32 of the chunk computed by the client
+         * @return false if the chunk is not a chunk of the upload or was corrupted
+         */
+        public boolean write(long offset, byte[] bytes, long crc) throws IOException {
+            long end = offset + bytes.length;
+            if (offset < 0 || offset >= size || offset % chunkSize != 0 || bytes.length == 0 || bytes.length > maxChunkSize
+                    || end > size || (bytes.length % chunkSize != 0 && end != size))
+                return false;
+
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes);
+            if (checksum.getValue() != crc)
+                return false;
+
+            sessions.write(part, offset, bytes);
+            lastUsed = System.currentTimeMillis();
+
+            synchronized (this) {
+                received.set((int) (offset / chunkSize), (int) ((end + chunkSize - 1) / chunkSize));
+            }
+            return true;
+        }
+
+        /**
+         * @return offset of the first chunk not received, the size of the file if all were received
+         */
+        public synchronized long firstMissing() {
+            return Math.min(size, (long) received.nextClearBit(0) * chunkSize);
+        }
+
+        /**
+         * @return SHA-256 of the part file, in hexadecimal
+         */
+        public String digest() throws IOException {
+            return BlobStore.digest(part);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public BigInteger getClientId() {
+            return clientId;
+        }
+
+        public ChatMessage getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getMaxChunkSize() {
+            return maxChunkSize;
+        }
+
+        public File getPart() {
+            return part;
+        }
+    }
+}
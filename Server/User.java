@@ -18,6 +18,31 @@ public class User implements Serializable {
     protected byte[] privateKey;
     protected PublicKey publicKey;
 
+    /**
+     * Key is the chat id, value is the number of messages of the chat already sent to the user
+     */
+    protected ConcurrentHashMap<BigInteger, Integer> readCursors = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented by the primary on every change, replicas compare it with the version a client last wrote
+     */
+    protected long version;
+
+    /**
+     * Time at which this copy was received by a replica, not replicated itself
+     */
+    protected transient long replicatedAt;
+
+    /**
+     * True if the replica holding this copy is the tail of the user replication chain
+     */
+    protected transient boolean chainTail;
+
+    /**
+     * Hash of the email, computed on first use and again if the email changes
+     */
+    private transient volatile HashedEmail hashedEmail;
+
     public User(String email, BigInteger password) {
         this.email = email;
         this.password = password;
@@ -64,8 +89,17 @@ public class User implements Serializable {
         pendingRequests.put(chat.getIdChat(), chat);
     }
 
+    /**
+     * Read without a lock by every request of the user, threads hashing the email at the same time
+     * compute the same id
+     */
     public BigInteger getUserId() {
-        return createHash(email);
+        HashedEmail hashed = hashedEmail;
+        if (hashed == null || !hashed.email.equals(email)) {
+            hashed = new HashedEmail(email, createHash(email));
+            hashedEmail = hashed;
+        }
+        return hashed.userId;
     }
 
     public ConcurrentHashMap<BigInteger, Chat> getChats() {
@@ -80,6 +114,24 @@ public class User implements Serializable {
         pendingRequests.remove(chatId);
     }
 
+    public int getReadCursor(BigInteger chatId) {
+        return readCursors.getOrDefault(chatId, 0);
+    }
+
+    /**
+     * Moves the read cursor of a chat forward, a cursor never goes back
+     *
+     * @param chatId chat id
+     * @param cursor number of messages of the chat sent to the user
+     */
+    public void advanceReadCursor(BigInteger chatId, int cursor) {
+        readCursors.merge(chatId, cursor, Math::max);
+    }
+
+    public ConcurrentHashMap<BigInteger, Integer> getReadCursors() {
+        return readCursors;
+    }
+
 
     public byte[] getPrivateKey() {
         return privateKey;
@@ -96,4 +148,45 @@ public class User implements Serializable {
     public void setPublicKey(PublicKey publicKey) {
         this.publicKey = publicKey;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long incrementVersion() {
+        return ++version;
+    }
+
+    public long getReplicatedAt() {
+        return replicatedAt;
+    }
+
+    public void setReplicatedAt(long replicatedAt) {
+        this.replicatedAt = replicatedAt;
+    }
+
+    public boolean isChainTail() {
+        return chainTail;
+    }
+
+    public void setChainTail(boolean chainTail) {
+        this.chainTail = chainTail;
+    }
+
+    /**
+     * Email and its hash, replaced together
+     */
+    private static class HashedEmail {
+        private final String email;
+        private final BigInteger userId;
+
+        private HashedEmail(String email, BigInteger userId) {
+            this.email = email;
+            this.userId = userId;
+        }
+    }
 }
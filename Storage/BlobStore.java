@@ -0,0 +1,308 @@
+package Storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static Utilities.Constants.BLOB_GC_GRACE;
+import static Utilities.Utilities.bytesToHex;
+
+/**
+ * Files stored once per node under the SHA-256 of their content, chat messages of files only hold the digest.
+ * Each blob counts the chat messages of this node referencing it, a blob without references is deleted by
+ * collect once it is older than a grace period, so a blob received before its message is kept.
+ * Reference changes are appended to a journal, a reference is added before its message is appended and removed
+ * after its message is dropped, so a crash can only leave a blob with too many references, never too few.
+ */
+public class BlobStore {
+
+    private static final String REFS_FILE = "refs";
+    private static final String PART_EXTENSION = ".part";
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    private File directory;
+    private FileSessions sessions;
+    private HashMap<String, Integer> references = new HashMap<>();
+    private HashMap<String, Incoming> incoming = new HashMap<>();
+    private Writer journal;
+
+    private long dedupHits;
+    private long dedupBytes;
+    private long collectedBlobs;
+    private long collectedBytes;
+
+    /**
+     * @param path     directory of the blobs
+     * @param sessions open channels of the blobs being received
+     */
+    public BlobStore(String path, FileSessions sessions) throws IOException {
+        this.sessions = sessions;
+        this.directory = new File(path);
+        directory.mkdirs();
+        load();
+    }
+
+    /**
+     * Moves a file to the store, the file is deleted if the store already has its content
+     *
+     * @param file   file
+     * @param digest SHA-256 of the file, in hexadecimal
+     */
+    public void put(File file, String digest) throws IOException {
+        File blob = get(digest);
+
+        synchronized (this) {
+            if (blob.exists()) {
+                dedupHits++;
+                dedupBytes += blob.length();
+                if (!file.delete())
+                    System.out.println("Failed to delete " + file.getPath());
+                return;
+            }
+            Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Writes a chunk of a blob received from another node, the blob is stored once all its bytes were received
+     * and its digest matches
+     *
+     * @param digest SHA-256 of the blob, in hexadecimal
+     * @param size   bytes of the blob
+     * @param offset offset of the chunk
+     * @param bytes  chunk
+     */
+    public void write(String digest, long size, long offset, byte[] bytes) throws IOException {
+        Incoming part;
+        synchronized (this) {
+            if (contains(digest))
+                return;
+            part = incoming.computeIfAbsent(digest, k -> new Incoming(new File(directory, k + PART_EXTENSION)));
+        }
+
+        sessions.write(part.file, offset, bytes);
+
+        synchronized (this) {
+            if (part.offsets.add(offset))
+                part.received += bytes.length;
+            if (part.received < size || incoming.get(digest) != part)
+                return;
+            incoming.remove(digest);
+        }
+
+        sessions.close(part.file);
+
+        if (digest(part.file).equalsIgnoreCase(digest)) {
+            put(part.file, digest);
+        } else {
+            System.out.println("Digest of blob " + digest + " does not match");
+            if (!part.file.delete())
+                System.out.println("Failed to delete " + part.file.getPath());
+        }
+    }
+
+    /**
+     * @return file of a blob, it may not exist
+     */
+    public File get(String digest) {
+        return new File(directory, digest.toUpperCase());
+    }
+
+    public boolean contains(String digest) {
+        return get(digest).exists();
+    }
+
+    /**
+     * Adds a reference to a blob, called before the message referencing it is appended
+     */
+    public synchronized void retain(String digest) {
+        references.merge(digest.toUpperCase(), 1, Integer::sum);
+        journal(digest, 1);
+    }
+
+    /**
+     * Removes a reference to a blob, called after the message referencing it is dropped
+     */
+    public synchronized void release(String digest) {
+        Integer count = references.get(digest.toUpperCase());
+        if (count == null)
+            return;
+
+        if (count <= 1)
+            references.remove(digest.toUpperCase());
+        else references.put(digest.toUpperCase(), count - 1);
+        journal(digest, -1);
+    }
+
+    /**
+     * Deletes the blobs without references older than the grace period and rewrites the journal
+     *
+     * @return bytes of disk reclaimed
+     */
+    public synchronized long collect() {
+        long now = System.currentTimeMillis();
+        long reclaimed = 0;
+
+        File[] blobs = directory.listFiles((dir, name) -> !name.equals(REFS_FILE) && !name.endsWith(PART_EXTENSION));
+        if (blobs != null) {
+            for (File blob : blobs) {
+                if (references.containsKey(blob.getName()) || now - blob.lastModified() < BLOB_GC_GRACE)
+                    continue;
+                long length = blob.length();
+                if (blob.delete()) {
+                    reclaimed += length;
+                    collectedBlobs++;
+                }
+            }
+        }
+
+        //chunks of blobs that never completed
+        File[] parts = directory.listFiles((dir, name) -> name.endsWith(PART_EXTENSION));
+        if (parts != null) {
+            for (File part : parts) {
+                String digest = part.getName().substring(0, part.getName().length() - PART_EXTENSION.length());
+                if (now - part.lastModified() < BLOB_GC_GRACE)
+                    continue;
+                try {
+                    sessions.close(part);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (part.delete())
+                    incoming.remove(digest);
+            }
+        }
+
+        collectedBytes += reclaimed;
+        try {
+            rewriteJournal();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to rewrite blob references");
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Prints the disk used by the blobs next to the disk the referencing messages would use with one copy each
+     */
+    public synchronized void printStats() {
+        long stored = 0;
+        long referenced = 0;
+        int blobs = 0;
+
+        for (Map.Entry<String, Integer> entry : references.entrySet()) {
+            File blob = get(entry.getKey());
+            if (!blob.exists())
+                continue;
+            blobs++;
+            stored += blob.length();
+            referenced += blob.length() * entry.getValue();
+        }
+
+        System.out.println("Blob store - blobs: " + blobs
+                + " stored: " + stored / 1024 + " KB"
+                + " referenced: " + referenced / 1024 + " KB"
+                + " saved: " + (referenced == 0 ? 0 : 100 - stored * 100 / referenced) + "%"
+                + " dedup hits: " + dedupHits + " (" + dedupBytes / 1024 + " KB)"
+                + " collected: " + collectedBlobs + " (" + collectedBytes / 1024 + " KB)");
+    }
+
+    /**
+     * @return SHA-256 of a file, in hexadecimal
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return bytesToHex(digest.digest());
+    }
+
+    private void journal(String digest, int delta) {
+        try {
+            journal.write(digest.toUpperCase() + " " + delta + "\n");
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write blob reference");
+        }
+    }
+
+    /**
+     * Sums the reference changes of the journal, a journal cut by a crash ends in a partial line that is ignored
+     */
+    private void load() throws IOException {
+        File refs = new File(directory, REFS_FILE);
+
+        if (refs.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(refs))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] entry = line.split(" ");
+                    if (entry.length != 2)
+                        continue;
+                    try {
+                        references.merge(entry[0], Integer.parseInt(entry[1]), Integer::sum);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Skipping blob reference " + line);
+                    }
+                }
+            }
+        }
+
+        references.values().removeIf(count -> count <= 0);
+        rewriteJournal();
+    }
+
+    /**
+     * Replaces the journal by one line per blob with references
+     */
+    private void rewriteJournal() throws IOException {
+        File refs = new File(directory, REFS_FILE);
+        File temp = new File(directory, REFS_FILE + ".tmp");
+
+        try (Writer writer = new BufferedWriter(new FileWriter(temp))) {
+            for (Map.Entry<String, Integer> entry : references.entrySet())
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+
+        if (journal != null)
+            journal.close();
+        Files.move(temp.toPath(), refs.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = new BufferedWriter(new FileWriter(refs, true));
+    }
+
+
+    /**
+     * Blob being received from another node
+     */
+    private static class Incoming {
+        private File file;
+        private HashSet<Long> offsets = new HashSet<>();
+        private long received;
+
+        private Incoming(File file) {
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package Storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static Utilities.Constants.LOG_SEGMENT_SIZE;
+import static Utilities.Constants.LOG_STATS_INTERVAL;
+
+/**
+ * Write-ahead, append-only log of the chats of a node.
+ * Records are framed as [length][crc32][body] and stored in segment files named after the
+ * sequence number of their first record. Appends wait until their record is on disk, the records
+ * of every thread waiting at the same time are written and synced together (group commit).
+ */
+public class ChatLog {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LATENCY_SAMPLES = 4096;
+
+    private File directory;
+    private FileChannel segment;
+    private long segmentSize;
+
+    /**
+     * Records waiting to be written, guarded by this
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+
+    private long startTime;
+    private long appendedBytes;
+    private long appendedRecords;
+    private long syncs;
+    private long[] syncLatencies = new long[LATENCY_SAMPLES];
+    private long lastStatsTime;
+
+    public ChatLog(String path) throws IOException {
+        this.directory = new File(path);
+        directory.mkdirs();
+
+        recover();
+
+        this.startTime = System.currentTimeMillis();
+        this.lastStatsTime = startTime;
+
+        Thread flusher = new Thread(this::flushLoop, "chat-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a record and waits until it is on disk
+     *
+     * @param record record to be appended
+     * @return sequence number of the record
+     */
+    public long append(LogRecord record) throws IOException {
+        byte[] body = record.encode();
+
+        //a record bigger than a segment would be written but rejected when the log is read
+        if (HEADER_SIZE + body.length > LOG_SEGMENT_SIZE)
+            throw new IOException("Record of " + body.length + " bytes does not fit in a log segment");
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+
+            pendingOut.writeInt(body.length);
+            pendingOut.writeInt((int) crc.getValue());
+            pendingOut.write(body);
+            long sequence = ++appendedSequence;
+            notifyAll();
+
+            while (durableSequence < sequence) {
+                if (failure != null)
+                    throw failure;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for chat log sync");
+                }
+            }
+
+            return sequence;
+        }
+    }
+
+    /**
+     * @return sequence number of the last record on disk
+     */
+    public synchronized long getDurableSequence() {
+        return durableSequence;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSequence;
+            long firstSequence;
+
+            synchronized (this) {
+                while (pending.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                firstSequence = durableSequence + 1;
+                batchSequence = appendedSequence;
+            }
+
+            try {
+                if (segment == null || segmentSize + batch.length > LOG_SEGMENT_SIZE)
+                    openSegment(firstSequence);
+
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining())
+                    segment.write(buffer);
+                segmentSize += batch.length;
+
+                long start = System.nanoTime();
+                segment.force(false);
+                recordSync(System.nanoTime() - start, batch.length, batchSequence - firstSequence + 1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                durableSequence = batchSequence;
+                notifyAll();
+            }
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        if (segment != null)
+            segment.close();
+
+        File file = new File(directory, segmentName(firstSequence));
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+        System.out.println("Chat log segment " + file.getPath());
+    }
+
+    static String segmentName(long firstSequence) {
+        return String.format("%020d.log", firstSequence);
+    }
+
+    /**
+     * @return segment files of a log directory ordered by their first sequence number
+     */
+    static File[] segments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    static long firstSequence(File segmentFile) {
+        return Long.parseLong(segmentFile.getName().substring(0, segmentFile.getName().indexOf('.')));
+    }
+
+    /**
+     * Finds the last sequence number on disk and cuts a torn record left at the end of the last segment
+     */
+    private void recover() throws IOException {
+        File[] files = segments(directory);
+        if (files.length == 0)
+            return;
+
+        File last = files[files.length - 1];
+        long sequence = firstSequence(last) - 1;
+        long validBytes = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(last)))) {
+            byte[] body;
+            while ((body = readRecord(in)) != null) {
+                sequence++;
+                validBytes += HEADER_SIZE + body.length;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(last.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() > validBytes) {
+                System.out.println("Cutting " + (channel.size() - validBytes) + " bytes of torn records from " + last.getPath());
+                channel.truncate(validBytes);
+                channel.force(true);
+            }
+        }
+
+        appendedSequence = sequence;
+        durableSequence = sequence;
+        System.out.println("Chat log recovered up to record " + sequence);
+    }
+
+    /**
+     * Reads the records after a sequence number, used to bring a snapshot up to date
+     *
+     * @param afterSequence records up to this one are skipped
+     * @param consumer      receives each record in log order
+     * @return number of records replayed
+     */
+    public long replay(long afterSequence, Consumer<LogRecord> consumer) throws IOException {
+        File[] files = segments(directory);
+        long replayed = 0;
+
+        for (int i = 0; i < files.length; i++) {
+            if (i + 1 < files.length && firstSequence(files[i + 1]) <= afterSequence + 1)
+                continue;
+
+            long sequence = firstSequence(files[i]) - 1;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files[i])))) {
+                byte[] body;
+                while ((body = readRecord(in)) != null) {
+                    sequence++;
+                    if (sequence <= afterSequence)
+                        continue;
+                    consumer.accept(LogRecord.decode(body));
+                    replayed++;
+                }
+            }
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Deletes the segments whose records are all covered by a snapshot
+     *
+     * @param sequence last record covered by the snapshot
+     */
+    public void deleteSegmentsBefore(long sequence) {
+        File[] files = segments(directory);
+
+        //the last segment may still be written to
+        for (int i = 0; i + 1 < files.length; i++) {
+            if (firstSequence(files[i + 1]) > sequence + 1)
+                break;
+            if (files[i].delete())
+                System.out.println("Deleted chat log segment " + files[i].getPath());
+        }
+    }
+
+    /**
+     * Reads the next record body, checking its crc
+     *
+     * @return record body or null at the end of the segment or on a corrupted record
+     */
+    static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        int checksum;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length <= 0 || length > LOG_SEGMENT_SIZE)
+            return null;
+
+        byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum)
+            return null;
+
+        return body;
+    }
+
+    private void recordSync(long latency, int bytes, long records) {
+        syncLatencies[(int) (syncs % LATENCY_SAMPLES)] = latency;
+        syncs++;
+        appendedBytes += bytes;
+        appendedRecords += records;
+
+        long now = System.currentTimeMillis();
+        if (now - lastStatsTime >= LOG_STATS_INTERVAL) {
+            lastStatsTime = now;
+            printStats();
+        }
+    }
+
+    /**
+     * Prints append throughput and the fsync latency distribution of the last syncs
+     */
+    public void printStats() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        int samples = (int) Math.min(syncs, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(syncLatencies, samples);
+        Arrays.sort(sorted);
+
+        System.out.println("Chat log - records: " + appendedRecords
+                + " throughput: " + (appendedRecords * 1000 / elapsed) + " records/s "
+                + (appendedBytes * 1000 / elapsed / 1024) + " KB/s"
+                + " syncs: " + syncs
+                + " fsync p50: " + percentile(sorted, 0.50) / 1000 + "us"
+                + " p99: " + percentile(sorted, 0.99) / 1000 + "us"
+                + " max: " + percentile(sorted, 1.0) / 1000 + "us");
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,197 @@
+package Storage;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open channels of the files being transferred, one per file. Chunks are written at their offsets on the channel
+ * of their file instead of opening the file for every chunk. A channel is closed when its transfer ends or after
+ * being idle for the idle timeout, and when more than the cap of channels are open the least recently used idle
+ * one is closed, it is opened again on its next chunk.
+ */
+public class FileSessions {
+
+    private int maxOpen;
+    private long idleTimeout;
+
+    /**
+     * In access order, the first one is the least recently used
+     */
+    private LinkedHashMap<File, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-sessions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long opened;
+    private long bytesWritten;
+    private long writeTime;
+
+    /**
+     * @param maxOpen     channels kept open, channels in use are never closed so it may be exceeded for a while
+     * @param idleTimeout milliseconds an unused channel is kept open
+     */
+    public FileSessions(int maxOpen, long idleTimeout) {
+        this.maxOpen = maxOpen;
+        this.idleTimeout = idleTimeout;
+        closer.scheduleWithFixedDelay(this::closeIdle, idleTimeout, Math.max(1, idleTimeout / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a chunk at its offset, the file is created by the first chunk
+     *
+     * @param file   file
+     * @param offset offset of the chunk
+     * @param bytes  chunk
+     */
+    public void write(File file, long offset, byte[] bytes) throws IOException {
+        Session session = acquire(file);
+        long start = System.nanoTime();
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                session.channel.write(buffer, offset + buffer.position());
+        } finally {
+            release(session, bytes.length, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Closes the channel of a file
+     *
+     * @param file file
+     * @param size size the file is truncated to, negative to keep its size
+     */
+    public void close(File file, long size) throws IOException {
+        Session session;
+        synchronized (this) {
+            session = sessions.remove(file);
+            if (session == null)
+                return;
+
+            //chunks being written finish first
+            while (session.users > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        try {
+            if (size >= 0)
+                session.channel.truncate(size);
+        } finally {
+            session.channel.close();
+        }
+    }
+
+    public void close(File file) throws IOException {
+        close(file, -1);
+    }
+
+    private synchronized Session acquire(File file) throws IOException {
+        Session session = sessions.get(file);
+        boolean created = session == null;
+        if (created) {
+            session = new Session(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            sessions.put(file, session);
+            opened++;
+        }
+
+        //in use before evicting, so the new channel is not the one closed
+        session.users++;
+        session.lastUsed = System.currentTimeMillis();
+        if (created)
+            evict();
+        return session;
+    }
+
+    private synchronized void release(Session session, int length, long time) {
+        session.users--;
+        session.lastUsed = System.currentTimeMillis();
+        bytesWritten += length;
+        writeTime += time;
+        notifyAll();
+    }
+
+    /**
+     * Closes the least recently used channels not in use while over the cap
+     */
+    private void evict() {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (sessions.size() > maxOpen && iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.users > 0)
+                continue;
+            iterator.remove();
+            closeQuietly(session);
+        }
+    }
+
+    private synchronized void closeIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.users > 0 || now - session.lastUsed < idleTimeout)
+                continue;
+            iterator.remove();
+            closeQuietly(session);
+        }
+    }
+
+    private static void closeQuietly(Session session) {
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to close file channel");
+        }
+    }
+
+    public synchronized int getOpen() {
+        return sessions.size();
+    }
+
+    /**
+     * Prints the channels open, the file descriptors of the process and the write throughput
+     */
+    public synchronized void printStats() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        String descriptors = os instanceof UnixOperatingSystemMXBean ? Long.toString(((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount()) : "n/a";
+
+        System.out.println("File sessions - open: " + sessions.size() + "/" + maxOpen
+                + " opened: " + opened
+                + " fds: " + descriptors
+                + " written: " + bytesWritten / 1024 + " KB"
+                + " write: " + (writeTime == 0 ? 0 : (long) (bytesWritten * 1000000000.0 / writeTime / 1024 / 1024)) + " MB/s");
+    }
+
+
+    private static class Session {
+        private FileChannel channel;
+        private long lastUsed;
+        private int users;
+
+        private Session(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
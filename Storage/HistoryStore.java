@@ -0,0 +1,684 @@
+package Storage;
+
+import Chat.ChatMessage;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static Utilities.Constants.COMPACTION_DEAD_RATIO;
+import static Utilities.Constants.COMPACTION_RATE;
+import static Utilities.Constants.HISTORY_SEGMENT_SIZE;
+
+/**
+ * Chat history stored in fixed-size memory-mapped segment files, it is the cold tier of a ChatStore.
+ * Records are [length][position in the chat][message] and the length is written last, so a zero length marks
+ * the end of a segment and a negative length marks a record that was dropped.
+ * Only the position of each message is kept on the heap, messages are decoded from the mapping when read
+ * and the page cache of the OS does the caching.
+ * Positions in the history of a chat never change, messages dropped from its start leave a gap before the first
+ * position kept. Sealed segments with many dropped records are rewritten in place by the compactor, outside the
+ * store lock. The index keeps the offsets records were appended at and a compacted segment has a table from them
+ * to the offsets of the rewritten file, so swapping a segment does not touch the index.
+ */
+public class HistoryStore {
+
+    private static final int RECORD_HEADER = 8;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private File directory;
+    private ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private int writeOffset;
+
+    /**
+     * Bytes of dropped records of each segment
+     */
+    private ArrayList<Integer> deadBytes = new ArrayList<>();
+
+    /**
+     * Offsets of the records moved by the compaction of each segment, null for a segment never compacted
+     */
+    private ArrayList<Relocation> relocations = new ArrayList<>();
+
+    private long reclaimedBytes;
+    private long compactions;
+    private long compactionTime;
+
+    /**
+     * Key is the chat id, value has the position of every message of the chat in order
+     */
+    private HashMap<BigInteger, ChatIndex> indexes = new HashMap<>();
+
+    public HistoryStore(String path) throws IOException {
+        this.directory = new File(path);
+        directory.mkdirs();
+        load();
+    }
+
+    /**
+     * Appends a message to the history of its chat
+     *
+     * @param chatMessage message
+     */
+    public synchronized void append(ChatMessage chatMessage) throws IOException {
+        ChatIndex index = indexes.computeIfAbsent(chatMessage.getChatId(), k -> new ChatIndex());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        LogRecord.writeChatMessage(out, chatMessage);
+        out.flush();
+        byte[] body = bytes.toByteArray();
+
+        if (body.length + RECORD_HEADER + 4 > HISTORY_SEGMENT_SIZE)
+            throw new IOException("Message too big for the history store");
+
+        if (segments.isEmpty() || writeOffset + RECORD_HEADER + body.length + 4 > segments.get(segments.size() - 1).capacity())
+            newSegment();
+
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(writeOffset + RECORD_HEADER);
+        buffer.put(body);
+        segment.putInt(writeOffset + 4, index.base + index.size);
+        segment.putInt(writeOffset, body.length);
+
+        index.add(position(segments.size() - 1, writeOffset), time(chatMessage), chatMessage.getSequence(), body.length);
+        writeOffset += RECORD_HEADER + body.length;
+    }
+
+    /**
+     * Drops the messages of a chat after the first ones
+     *
+     * @param chatId chat id
+     * @param count  number of messages kept, counting the ones dropped from the start of the chat
+     */
+    public synchronized void truncate(BigInteger chatId, int count) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null)
+            return;
+
+        int keep = Math.max(0, count - index.base);
+        for (int i = keep; i < index.size; i++)
+            drop(index, i);
+        index.size = Math.min(index.size, keep);
+        if (keep == 0)
+            index.base = Math.min(index.base, Math.max(0, count));
+    }
+
+    /**
+     * Drops the messages of a chat and starts its history again at a position, the messages before it
+     * are kept somewhere else
+     *
+     * @param chatId   chat id
+     * @param position position of the next message appended
+     */
+    public synchronized void startAt(BigInteger chatId, int position) {
+        ChatIndex index = indexes.computeIfAbsent(chatId, k -> new ChatIndex());
+        for (int i = 0; i < index.size; i++)
+            drop(index, i);
+        index.size = 0;
+        index.base = position;
+    }
+
+    /**
+     * Drops the messages of a chat before a position, the positions of the other messages do not change
+     *
+     * @param chatId   chat id
+     * @param position position of the first message kept
+     * @return number of messages dropped
+     */
+    public synchronized int dropBefore(BigInteger chatId, int position) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null)
+            return 0;
+
+        int count = Math.min(index.size, position - index.base);
+        if (count <= 0)
+            return 0;
+
+        for (int i = 0; i < count; i++)
+            drop(index, i);
+        index.removeFirst(count);
+        return count;
+    }
+
+    /**
+     * Marks a record as dropped, the compactor removes it when it rewrites its segment
+     */
+    private void drop(ChatIndex index, int i) {
+        int segment = (int) (index.positions[i] >>> 32);
+        int offset = offset(segment, (int) index.positions[i]);
+        if (offset < 0)
+            return;
+        MappedByteBuffer buffer = segments.get(segment);
+        int length = buffer.getInt(offset);
+        if (length <= 0)
+            return;
+
+        buffer.putInt(offset, -length);
+        deadBytes.set(segment, deadBytes.get(segment) + RECORD_HEADER + length);
+    }
+
+    /**
+     * @param chatId chat id
+     * @return position of the first message kept of the chat
+     */
+    public synchronized int first(BigInteger chatId) {
+        ChatIndex index = indexes.get(chatId);
+        return index == null ? 0 : index.base;
+    }
+
+    /**
+     * @param chatId chat id
+     * @param time   oldest creation time kept
+     * @return position of the first message of the chat created at or after the time
+     */
+    public synchronized int firstCreatedAfter(BigInteger chatId, long time) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null)
+            return 0;
+
+        return index.base + index.firstAtLeast(index.maxTimes, time);
+    }
+
+    /**
+     * @param chatId   chat id
+     * @param sequence sequence number known by a client
+     * @return position of the first message of the chat with a later sequence number
+     */
+    public synchronized int firstAfterSequence(BigInteger chatId, long sequence) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null)
+            return 0;
+
+        return index.base + index.firstAtLeast(index.maxSequences, sequence + 1);
+    }
+
+    /**
+     * @param chatId   chat id
+     * @param maxBytes bytes kept
+     * @return position of the first message of the chat such that the messages from it on fit in the bytes
+     */
+    public synchronized int firstWithin(BigInteger chatId, long maxBytes) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null || index.size == 0)
+            return index == null ? 0 : index.base;
+
+        //ends grow with i, so the bytes from i on shrink
+        long total = index.ends[index.size - 1];
+        int low = 0;
+        int high = index.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (total - index.before(middle) <= maxBytes)
+                high = middle;
+            else low = middle + 1;
+        }
+        return index.base + low;
+    }
+
+    /**
+     * @param chatId chat id
+     * @return bytes of the messages kept of the chat
+     */
+    public synchronized long bytes(BigInteger chatId) {
+        ChatIndex index = indexes.get(chatId);
+        return index == null || index.size == 0 ? 0 : index.ends[index.size - 1] - index.startBytes;
+    }
+
+    /**
+     * Writes the changes of the mapped segments to disk, messages are only dropped from the heap after this
+     */
+    public void force() {
+        ArrayList<MappedByteBuffer> mapped;
+        synchronized (this) {
+            mapped = new ArrayList<>(segments);
+        }
+        for (MappedByteBuffer segment : mapped)
+            segment.force();
+    }
+
+    /**
+     * @param chatId chat id
+     * @return number of messages stored for the chat, counting the ones dropped from its start
+     */
+    public synchronized int count(BigInteger chatId) {
+        ChatIndex index = indexes.get(chatId);
+        return index == null ? 0 : index.base + index.size;
+    }
+
+    /**
+     * Reads a page of the history of a chat straight from the mapped segments
+     *
+     * @param chatId chat id
+     * @param from   position of the first message in the chat history
+     * @param count  maximum number of messages
+     * @return messages in the order they were sent, dropped messages are left out
+     */
+    public ArrayList<ChatMessage> read(BigInteger chatId, int from, int count) throws IOException {
+        long[] positions;
+        ArrayList<MappedByteBuffer> mapped;
+
+        synchronized (this) {
+            ChatIndex index = indexes.get(chatId);
+            if (index == null)
+                return new ArrayList<>();
+            int start = Math.max(0, from - index.base);
+            int end = Math.min(index.size, from + count - index.base);
+            if (start >= end)
+                return new ArrayList<>();
+            positions = Arrays.copyOfRange(index.positions, start, end);
+            for (int i = 0; i < positions.length; i++) {
+                int segment = (int) (positions[i] >>> 32);
+                positions[i] = position(segment, offset(segment, (int) positions[i]));
+            }
+            mapped = new ArrayList<>(segments);
+        }
+
+        //records may be dropped once the lock is released, their bytes stay until the segment is compacted
+        ArrayList<ChatMessage> page = new ArrayList<>(positions.length);
+        for (long position : positions) {
+            if ((int) position < 0)
+                continue;
+            ChatMessage chatMessage = readAt(mapped.get((int) (position >>> 32)), (int) position);
+            if (chatMessage != null)
+                page.add(chatMessage);
+        }
+        return page;
+    }
+
+    /**
+     * @return message of the record at an offset, null if the record was dropped
+     */
+    private ChatMessage readAt(MappedByteBuffer segment, int offset) throws IOException {
+        ByteBuffer buffer = segment.duplicate();
+        int length = buffer.getInt(offset);
+        if (length <= 0)
+            return null;
+        buffer.position(offset + RECORD_HEADER);
+        buffer.limit(offset + RECORD_HEADER + length);
+        return LogRecord.readChatMessage(new DataInputStream(new BufferInputStream(buffer)));
+    }
+
+    private void newSegment() throws IOException {
+        File file = segmentFile(segments.size());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, HISTORY_SEGMENT_SIZE));
+        }
+        deadBytes.add(0);
+        relocations.add(null);
+        writeOffset = 0;
+    }
+
+    /**
+     * @param segment segment
+     * @param offset  offset a record was appended at
+     * @return offset of the record in the segment now, -1 if a compaction removed it
+     */
+    private int offset(int segment, int offset) {
+        Relocation relocation = relocations.get(segment);
+        return relocation == null ? offset : relocation.offset(offset);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%010d.seg", segment));
+    }
+
+    /**
+     * Rewrites the sealed segments with many dropped records, at most COMPACTION_RATE bytes per second
+     * are copied so the disk is left to appends and reads
+     *
+     * @return bytes of disk reclaimed
+     */
+    public long compact() {
+        long reclaimed = 0;
+        int sealed;
+        synchronized (this) {
+            sealed = segments.size() - 1;
+        }
+
+        for (int segment = 0; segment < sealed; segment++) {
+            int dead;
+            int capacity;
+            synchronized (this) {
+                dead = deadBytes.get(segment);
+                capacity = segments.get(segment).capacity();
+            }
+            if (dead == 0 || dead < capacity * COMPACTION_DEAD_RATIO)
+                continue;
+
+            long start = System.currentTimeMillis();
+            try {
+                reclaimed += capacity - compactSegment(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to compact history segment " + segment);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            synchronized (this) {
+                compactions++;
+                compactionTime += System.currentTimeMillis() - start;
+            }
+        }
+
+        if (reclaimed > 0) {
+            synchronized (this) {
+                reclaimedBytes += reclaimed;
+            }
+            printStats();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Copies the records kept of a segment to a new file that replaces it, so the order of the records
+     * in the store does not change. Sealed segments only change when a record is dropped, so the copy runs
+     * without the store lock and records dropped meanwhile are dropped in the new file before it is swapped in
+     *
+     * @param segment sealed segment
+     * @return size of the new segment
+     */
+    private int compactSegment(int segment) throws IOException, InterruptedException {
+        MappedByteBuffer old;
+        Relocation previous;
+        synchronized (this) {
+            old = segments.get(segment);
+            previous = relocations.get(segment);
+        }
+
+        //offsets the kept records were appended at, their offsets in the old file and in the new one
+        Relocation moved = new Relocation();
+        int[] oldOffsets = new int[16];
+        int next = 0;
+        int written = 0;
+
+        File file = segmentFile(segment);
+        File temp = new File(directory, file.getName() + ".compact");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer out = ByteBuffer.allocate(COPY_BUFFER);
+            long start = System.currentTimeMillis();
+            int offset = 0;
+            while (offset + 4 <= old.capacity()) {
+                int length = old.getInt(offset);
+                if (length < 0 && offset + RECORD_HEADER - length <= old.capacity()) {
+                    offset += RECORD_HEADER - length;
+                    continue;
+                }
+                if (length == 0 || offset + RECORD_HEADER + length > old.capacity())
+                    break;
+
+                ByteBuffer record = old.duplicate();
+                record.limit(offset + RECORD_HEADER + length);
+                record.position(offset);
+                if (out.remaining() < record.remaining()) {
+                    write(channel, out);
+                    throttle(written, start);
+                }
+                if (out.remaining() < record.remaining()) {
+                    while (record.hasRemaining())
+                        channel.write(record);
+                } else out.put(record);
+
+                //a segment compacted before has the offsets the records were appended at in its table
+                while (previous != null && previous.to[next] != offset)
+                    next++;
+                if (oldOffsets.length == moved.size)
+                    oldOffsets = Arrays.copyOf(oldOffsets, moved.size * 2);
+                oldOffsets[moved.size] = offset;
+                moved.add(previous == null ? offset : previous.from[next], written);
+
+                written += RECORD_HEADER + length;
+                offset += RECORD_HEADER + length;
+            }
+
+            if (out.remaining() < 4)
+                write(channel, out);
+            out.putInt(0);
+            write(channel, out);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        MappedByteBuffer compacted;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            compacted = channel.map(FileChannel.MapMode.READ_WRITE, 0, written + 4);
+        }
+
+        synchronized (this) {
+            //records dropped while the new file was written
+            int dead = 0;
+            for (int i = 0; i < moved.size; i++) {
+                int length = old.getInt(oldOffsets[i]);
+                if (length < 0) {
+                    compacted.putInt(moved.to[i], length);
+                    dead += RECORD_HEADER - length;
+                }
+            }
+
+            segments.set(segment, compacted);
+            relocations.set(segment, moved);
+            deadBytes.set(segment, dead);
+        }
+
+        return written + 4;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Sleeps while more than COMPACTION_RATE bytes per second were copied since the start
+     */
+    private static void throttle(long copied, long start) throws InterruptedException {
+        long ahead = 1000L * copied / COMPACTION_RATE - (System.currentTimeMillis() - start);
+        if (ahead > 0)
+            Thread.sleep(ahead);
+    }
+
+    /**
+     * Prints the disk reclaimed by the compactor and the time it took
+     */
+    public synchronized void printStats() {
+        System.out.println("History store - segments: " + segments.size()
+                + " compactions: " + compactions
+                + " reclaimed: " + reclaimedBytes / 1024 + " KB"
+                + " compaction time: " + compactionTime + " ms");
+    }
+
+    public synchronized long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public synchronized long getCompactionTime() {
+        return compactionTime;
+    }
+
+    /**
+     * Maps the existing segments and rebuilds the index of every chat
+     */
+    private void load() throws IOException {
+        //left by a compaction that did not finish, the segment it replaces is still there
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(".compact"));
+        if (leftovers != null)
+            for (File leftover : leftovers)
+                leftover.delete();
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (files == null || files.length == 0)
+            return;
+        Arrays.sort(files);
+
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //compacted segments are smaller than new ones
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), 4)));
+            }
+
+            MappedByteBuffer segment = segments.get(segments.size() - 1);
+            int dead = 0;
+            int offset = 0;
+            while (offset + 4 <= segment.capacity()) {
+                int length = segment.getInt(offset);
+                if (length < 0 && offset + RECORD_HEADER - length <= segment.capacity()) {
+                    dead += RECORD_HEADER - length;
+                    offset += RECORD_HEADER - length;
+                    continue;
+                }
+                if (length == 0 || offset + RECORD_HEADER + length > segment.capacity())
+                    break;
+                ChatMessage chatMessage = readAt(segment, offset);
+                ChatIndex index = indexes.computeIfAbsent(chatMessage.getChatId(), k -> new ChatIndex());
+                //messages dropped from the start of the chat are gone after a compaction
+                if (index.size == 0)
+                    index.base = segment.getInt(offset + 4);
+                index.add(position(segments.size() - 1, offset), time(chatMessage), chatMessage.getSequence(), length);
+                offset += RECORD_HEADER + length;
+            }
+            deadBytes.add(dead);
+            relocations.add(null);
+            writeOffset = offset;
+        }
+
+        System.out.println("History store loaded " + indexes.size() + " chats from " + segments.size() + " segments");
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static long time(ChatMessage chatMessage) {
+        return chatMessage.getCreationDate() == null ? 0 : chatMessage.getCreationDate().getTime();
+    }
+
+
+    /**
+     * Messages kept of a chat, the message at index i is at position base + i of the chat history.
+     * Creation times and sequence numbers are kept as running maximums, so they can be binary searched even
+     * if a few messages arrived out of order, and record lengths as running sums
+     */
+    private static class ChatIndex {
+        private long[] positions = new long[16];
+        private long[] maxTimes = new long[16];
+        private long[] maxSequences = new long[16];
+        private long[] ends = new long[16];
+        private int base;
+        private int size;
+
+        /**
+         * Running sum of the lengths before the first message kept
+         */
+        private long startBytes;
+
+        private void add(long position, long time, long sequence, int length) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                maxTimes = Arrays.copyOf(maxTimes, size * 2);
+                maxSequences = Arrays.copyOf(maxSequences, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            positions[size] = position;
+            maxTimes[size] = size == 0 ? time : Math.max(maxTimes[size - 1], time);
+            maxSequences[size] = size == 0 ? sequence : Math.max(maxSequences[size - 1], sequence);
+            ends[size] = before(size) + length;
+            size++;
+        }
+
+        /**
+         * @return running sum of the lengths before the message at index i
+         */
+        private long before(int i) {
+            return i == 0 ? startBytes : ends[i - 1];
+        }
+
+        /**
+         * @return first index with a running maximum of at least the value, size if there is none
+         */
+        private int firstAtLeast(long[] maximums, long value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (maximums[middle] >= value)
+                    high = middle;
+                else low = middle + 1;
+            }
+            return low;
+        }
+
+        private void removeFirst(int count) {
+            startBytes = before(count);
+            System.arraycopy(positions, count, positions, 0, size - count);
+            System.arraycopy(maxTimes, count, maxTimes, 0, size - count);
+            System.arraycopy(maxSequences, count, maxSequences, 0, size - count);
+            System.arraycopy(ends, count, ends, 0, size - count);
+            size -= count;
+            base += count;
+        }
+    }
+
+    /**
+     * Offsets records of a compacted segment were appended at and their offsets in the segment now, both in order
+     */
+    private static class Relocation {
+        private int[] from = new int[16];
+        private int[] to = new int[16];
+        private int size;
+
+        private void add(int appendedAt, int offset) {
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+            }
+            from[size] = appendedAt;
+            to[size] = offset;
+            size++;
+        }
+
+        /**
+         * @return offset of the record appended at an offset, -1 if it was removed
+         */
+        private int offset(int appendedAt) {
+            int i = Arrays.binarySearch(from, 0, size, appendedAt);
+            return i < 0 ? -1 : to[i];
+        }
+    }
+
+    /**
+     * Reads a buffer without copying it to an array first
+     */
+    private static class BufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining())
+                return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package Storage;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Chat.RetentionPolicy;
+import Server.User;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Record of the chat log, body format: [type][payload]
+ */
+public class LogRecord {
+
+    public static final byte CHAT_CREATED = 1;
+    public static final byte MEMBERSHIP = 2;
+    public static final byte CHAT_MESSAGE = 3;
+    public static final byte USER_CREATED = 4;
+
+    private byte type;
+    private Chat chat;
+    private ChatMessage chatMessage;
+    private User user;
+    private BigInteger chatId;
+    private BigInteger userId;
+    private boolean pending;
+    private boolean reference;
+
+    private LogRecord(byte type) {
+        this.type = type;
+    }
+
+    /**
+     * @param chat chat that was created, only its metadata and participants are logged. Logged again when the
+     *             node starts or stops holding the messages of the chat, the last record tells if it is a reference
+     */
+    public static LogRecord chatCreated(Chat chat) {
+        LogRecord record = new LogRecord(CHAT_CREATED);
+        record.chat = chat;
+        record.chatId = chat.getIdChat();
+        record.reference = chat.isReference();
+        return record;
+    }
+
+    /**
+     * @param chatId  chat the user joined
+     * @param userId  user of this node
+     * @param pending true if the user still has to accept the invitation
+     */
+    public static LogRecord membership(BigInteger chatId, BigInteger userId, boolean pending) {
+        LogRecord record = new LogRecord(MEMBERSHIP);
+        record.chatId = chatId;
+        record.userId = userId;
+        record.pending = pending;
+        return record;
+    }
+
+    /**
+     * @param chatMessage message appended to its chat, logged once for all participants of this node
+     * @param userId      user of this node that received the message first
+     */
+    public static LogRecord chatMessage(ChatMessage chatMessage, BigInteger userId) {
+        LogRecord record = new LogRecord(CHAT_MESSAGE);
+        record.chatMessage = chatMessage;
+        record.chatId = chatMessage.getChatId();
+        record.userId = userId;
+        return record;
+    }
+
+    /**
+     * @param user user that signed up on this node, without chats
+     */
+    public static LogRecord userCreated(User user) {
+        LogRecord record = new LogRecord(USER_CREATED);
+        record.user = user;
+        record.userId = user.getUserId();
+        return record;
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(type);
+        switch (type) {
+            case CHAT_CREATED:
+                writeBigInteger(out, chat.getIdChat());
+                writeString(out, chat.getChatName());
+                writeString(out, chat.getCreatorEmail());
+                writeRetention(out, chat.getRetention());
+                out.writeInt(chat.getParticipants().size());
+                for (String participant : chat.getParticipants())
+                    out.writeUTF(participant);
+                out.writeBoolean(reference);
+                break;
+            case MEMBERSHIP:
+                writeBigInteger(out, chatId);
+                writeBigInteger(out, userId);
+                out.writeBoolean(pending);
+                break;
+            case CHAT_MESSAGE:
+                writeBigInteger(out, userId);
+                writeChatMessage(out, chatMessage);
+                break;
+            case USER_CREATED:
+                Snapshot.writeUser(out, user);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static LogRecord decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        LogRecord record = new LogRecord(in.readByte());
+
+        switch (record.type) {
+            case CHAT_CREATED:
+                record.chatId = readBigInteger(in);
+                record.chat = new Chat(record.chatId, readString(in));
+                record.chat.setCreatorEmail(readString(in));
+                record.chat.setRetention(readRetention(in));
+                int participants = in.readInt();
+                for (int i = 0; i < participants; i++)
+                    record.chat.addParticipant(in.readUTF());
+                //records logged before references existed end here
+                record.reference = in.available() > 0 && in.readBoolean();
+                record.chat.setReference(record.reference);
+                break;
+            case MEMBERSHIP:
+                record.chatId = readBigInteger(in);
+                record.userId = readBigInteger(in);
+                record.pending = in.readBoolean();
+                break;
+            case CHAT_MESSAGE:
+                record.userId = readBigInteger(in);
+                record.chatMessage = readChatMessage(in);
+                record.chatId = record.chatMessage.getChatId();
+                break;
+            case USER_CREATED:
+                try {
+                    record.user = Snapshot.readUser(in);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Invalid user public key", e);
+                }
+                record.userId = record.user.getUserId();
+                break;
+            default:
+                throw new IOException("Unknown record type " + record.type);
+        }
+
+        return record;
+    }
+
+    static void writeChatMessage(DataOutputStream out, ChatMessage chatMessage) throws IOException {
+        writeBigInteger(out, chatMessage.getChatId());
+        writeBigInteger(out, chatMessage.getUserId());
+        out.writeLong(chatMessage.getCreationDate() == null ? 0 : chatMessage.getCreationDate().getTime());
+        writeString(out, chatMessage.getType());
+        writeString(out, chatMessage.getFilename());
+        out.writeInt(chatMessage.getContentLength());
+        chatMessage.writeContent(out);
+        out.writeLong(chatMessage.getSequence());
+    }
+
+    static ChatMessage readChatMessage(DataInputStream in) throws IOException {
+        BigInteger chatId = readBigInteger(in);
+        BigInteger senderId = readBigInteger(in);
+        Date creationDate = new Date(in.readLong());
+        String messageType = readString(in);
+        String filename = readString(in);
+        int length = in.readInt();
+        byte[] content = null;
+        if (length >= 0) {
+            content = new byte[length];
+            in.readFully(content);
+        }
+        ChatMessage chatMessage = new ChatMessage(chatId, creationDate, senderId, content, messageType, filename);
+        chatMessage.setSequence(in.readLong());
+        return chatMessage;
+    }
+
+    /**
+     * @return key identifying a message, used to find messages delivered or replayed more than once
+     */
+    public static String messageKey(ChatMessage message) {
+        return message.getUserId() + ":" + (message.getCreationDate() == null ? 0 : message.getCreationDate().getTime())
+                + ":" + message.getType() + ":" + message.getFilename() + ":" + Arrays.hashCode(message.getContent());
+    }
+
+    static void writeRetention(DataOutputStream out, RetentionPolicy retention) throws IOException {
+        out.writeBoolean(retention != null);
+        if (retention != null) {
+            out.writeLong(retention.getMaxAge());
+            out.writeLong(retention.getMaxCount());
+            out.writeLong(retention.getMaxBytes());
+        }
+    }
+
+    static RetentionPolicy readRetention(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new RetentionPolicy(in.readLong(), in.readLong(), in.readLong()) : null;
+    }
+
+    static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException {
+        byte[] bytes = value.toByteArray();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static BigInteger readBigInteger(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readShort()];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public Chat getChat() {
+        return chat;
+    }
+
+    public ChatMessage getChatMessage() {
+        return chatMessage;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public BigInteger getChatId() {
+        return chatId;
+    }
+
+    public BigInteger getUserId() {
+        return userId;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+}
@@ -0,0 +1,145 @@
+package Storage;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.User;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Applies chat log records on top of the users restored from a snapshot.
+ * Records already contained in the snapshot may be replayed again, so applying a record twice has no effect
+ */
+public class LogReplay implements Consumer<LogRecord> {
+
+    private ConcurrentHashMap<BigInteger, User> users;
+    private HashMap<BigInteger, Chat> chats = new HashMap<>();
+    private IdentityHashMap<ArrayList<ChatMessage>, HashSet<String>> seenMessages = new IdentityHashMap<>();
+
+    /**
+     * Sequence number of the newest message of each chat in the snapshot, messages up to it are in the snapshot or
+     * spilled to the history store. Messages were still being logged with higher ones while the snapshot was written
+     */
+    private IdentityHashMap<Chat, Long> snapshotSequences = new IdentityHashMap<>();
+
+    public LogReplay(ConcurrentHashMap<BigInteger, User> users) {
+        this(users, new ArrayList<>());
+    }
+
+    /**
+     * @param users     users restored from the snapshot
+     * @param heldChats chats held by the node restored from the snapshot, including the ones of no user of it
+     */
+    public LogReplay(ConcurrentHashMap<BigInteger, User> users, Collection<Chat> heldChats) {
+        this.users = users;
+
+        for (Chat chat : heldChats)
+            chats.putIfAbsent(chat.getIdChat(), chat);
+
+        for (User user : users.values()) {
+            for (Chat chat : user.getChats().values())
+                chats.putIfAbsent(chat.getIdChat(), chat);
+            for (Chat chat : user.getPendingRequests().values())
+                chats.putIfAbsent(chat.getIdChat(), chat);
+        }
+
+        for (Chat chat : chats.values())
+            snapshotSequences.put(chat, chat.getMessageSequence());
+    }
+
+    @Override
+    public void accept(LogRecord record) {
+        User user;
+        Chat chat;
+
+        switch (record.getType()) {
+            case LogRecord.USER_CREATED:
+                users.putIfAbsent(record.getUserId(), record.getUser());
+                break;
+            case LogRecord.CHAT_CREATED:
+                chat = chats.putIfAbsent(record.getChatId(), record.getChat());
+                if (chat != null)
+                    chat.setReference(record.getChat().isReference());
+                break;
+            case LogRecord.MEMBERSHIP:
+                user = users.get(record.getUserId());
+                chat = findChat(user, record.getChatId());
+                if (user == null || chat == null)
+                    break;
+                if (record.isPending()) {
+                    if (user.getChat(record.getChatId()) == null)
+                        user.addPendingChat(chat);
+                } else {
+                    user.addChat(chat);
+                    user.deletePendingRequest(record.getChatId());
+                }
+                break;
+            case LogRecord.CHAT_MESSAGE:
+                //messages of chats held for participants of other nodes have no user here
+                user = users.get(record.getUserId());
+                chat = findChat(user, record.getChatId());
+                if (chat == null)
+                    break;
+                ChatMessage message = record.getChatMessage();
+                Long snapshotSequence = snapshotSequences.get(chat);
+                if (snapshotSequence != null && message.getSequence() <= snapshotSequence)
+                    break;
+                if (firstTime(chat.getChatMessages(), message)) {
+                    insert(chat.getChatMessages(), message);
+                    chat.advanceSequence(message.getSequence());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return chats restored, with the ones created after the snapshot
+     */
+    public Collection<Chat> getChats() {
+        return chats.values();
+    }
+
+    private Chat findChat(User user, BigInteger chatId) {
+        if (user != null) {
+            if (user.getChat(chatId) != null)
+                return user.getChat(chatId);
+            if (user.getPendingRequests().get(chatId) != null)
+                return user.getPendingRequests().get(chatId);
+        }
+        return chats.get(chatId);
+    }
+
+    /**
+     * Adds a message in the place of its sequence number, messages are logged before they are added
+     * to their chat so concurrent messages of a chat may be logged out of order
+     */
+    private void insert(ArrayList<ChatMessage> messages, ChatMessage message) {
+        int index = messages.size();
+        while (index > 0 && messages.get(index - 1).getSequence() > message.getSequence())
+            index--;
+        messages.add(index, message);
+    }
+
+    private boolean firstTime(ArrayList<ChatMessage> messages, ChatMessage message) {
+        HashSet<String> seen = seenMessages.get(messages);
+
+        if (seen == null) {
+            seen = new HashSet<>();
+            for (ChatMessage existing : messages)
+                seen.add(LogRecord.messageKey(existing));
+            seenMessages.put(messages, seen);
+        }
+
+        return seen.add(LogRecord.messageKey(message));
+    }
+
+}
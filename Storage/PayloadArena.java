@@ -0,0 +1,231 @@
+package Storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static Utilities.Constants.PAYLOAD_SLAB_SIZE;
+import static Utilities.Constants.PAYLOAD_STATS_INTERVAL;
+
+/**
+ * Message bodies kept off the heap in direct buffer slabs, so the GC does not have to trace or copy them.
+ * A body is addressed by a handle [slab][offset] and stored as [length][bytes], it is owned by the message
+ * holding the handle, which is shared by every chat, user and view of this node referencing the message.
+ * The owner is tracked with a phantom reference and the body is released once the owner is collected,
+ * a slab is reused when all its bodies are released.
+ */
+public class PayloadArena {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private ArrayList<Integer> liveBodies = new ArrayList<>();
+    private ArrayDeque<Integer> freeSlabs = new ArrayDeque<>();
+    private int currentSlab = -1;
+    private int writeOffset;
+    private int maxSlabs;
+
+    private long liveBytes;
+    private long storedBodies;
+    private long releasedBodies;
+    private long lastStatsTime = System.currentTimeMillis();
+
+    private ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    /**
+     * Phantom references must stay reachable until they are enqueued
+     */
+    private HashSet<Holder> holders = new HashSet<>();
+
+    /**
+     * @param capacity bytes of direct memory the arena may use, bodies that do not fit stay on the heap
+     */
+    public PayloadArena(long capacity) {
+        this.maxSlabs = (int) Math.max(1, capacity / PAYLOAD_SLAB_SIZE);
+    }
+
+    /**
+     * Copies a body to the arena
+     *
+     * @param bytes body
+     * @param owner object holding the handle, the body is released when it is collected
+     * @return handle of the body, -1 if it does not fit in the arena
+     */
+    public synchronized long store(byte[] bytes, Object owner) {
+        drainCollected();
+
+        if (bytes.length + HEADER_SIZE > PAYLOAD_SLAB_SIZE)
+            return -1;
+
+        if (currentSlab < 0 || writeOffset + HEADER_SIZE + bytes.length > PAYLOAD_SLAB_SIZE) {
+            if (!nextSlab())
+                return -1;
+        }
+
+        ByteBuffer slab = slabs.get(currentSlab);
+        slab.putInt(writeOffset, bytes.length);
+        ByteBuffer body = slab.duplicate();
+        body.position(writeOffset + HEADER_SIZE);
+        body.put(bytes);
+
+        long handle = handle(currentSlab, writeOffset);
+        writeOffset += HEADER_SIZE + bytes.length;
+        liveBodies.set(currentSlab, liveBodies.get(currentSlab) + 1);
+        liveBytes += bytes.length;
+        storedBodies++;
+
+        holders.add(new Holder(owner, handle, collected));
+        printStatsIfDue();
+
+        return handle;
+    }
+
+    /**
+     * @param handle handle of the body
+     * @return length of the body
+     */
+    public synchronized int length(long handle) {
+        return slabs.get(slab(handle)).getInt(offset(handle));
+    }
+
+    /**
+     * Copies a body back to the heap
+     *
+     * @param handle handle of the body
+     * @return body
+     */
+    public synchronized byte[] read(long handle) {
+        byte[] bytes = new byte[length(handle)];
+        body(handle).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a body to a stream through a small buffer, the whole body is never copied to the heap
+     *
+     * @param handle handle of the body
+     * @param out    stream
+     */
+    public void writeTo(long handle, OutputStream out) throws IOException {
+        ByteBuffer body;
+        synchronized (this) {
+            body = body(handle);
+        }
+
+        byte[] buffer = new byte[Math.min(COPY_BUFFER_SIZE, body.remaining())];
+        while (body.hasRemaining()) {
+            int length = Math.min(buffer.length, body.remaining());
+            body.get(buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * @return view of a body, only valid while its owner is reachable
+     */
+    private ByteBuffer body(long handle) {
+        ByteBuffer body = slabs.get(slab(handle)).duplicate();
+        body.position(offset(handle) + HEADER_SIZE);
+        body.limit(offset(handle) + HEADER_SIZE + body.getInt(offset(handle)));
+        return body;
+    }
+
+    /**
+     * Releases the bodies of the owners collected by the GC
+     */
+    private void drainCollected() {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            Holder holder = (Holder) reference;
+            holders.remove(holder);
+            release(holder.handle);
+        }
+    }
+
+    private void release(long handle) {
+        int index = slab(handle);
+        liveBodies.set(index, liveBodies.get(index) - 1);
+        liveBytes -= slabs.get(index).getInt(offset(handle));
+        releasedBodies++;
+
+        if (liveBodies.get(index) == 0 && index != currentSlab)
+            freeSlabs.add(index);
+    }
+
+    private boolean nextSlab() {
+        if (currentSlab >= 0 && liveBodies.get(currentSlab) == 0)
+            freeSlabs.add(currentSlab);
+
+        if (!freeSlabs.isEmpty()) {
+            currentSlab = freeSlabs.poll();
+        } else if (slabs.size() < maxSlabs) {
+            slabs.add(ByteBuffer.allocateDirect(PAYLOAD_SLAB_SIZE));
+            liveBodies.add(0);
+            currentSlab = slabs.size() - 1;
+        } else {
+            return false;
+        }
+
+        writeOffset = 0;
+        return true;
+    }
+
+    private void printStatsIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastStatsTime >= PAYLOAD_STATS_INTERVAL) {
+            lastStatsTime = now;
+            printStats();
+        }
+    }
+
+    /**
+     * Prints the occupancy of the arena next to the heap occupancy and the time spent in GC
+     */
+    public synchronized void printStats() {
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        System.out.println("Payload arena - slabs: " + slabs.size() + "/" + maxSlabs
+                + " live bodies: " + (storedBodies - releasedBodies)
+                + " live: " + liveBytes / 1024 + " KB"
+                + " heap used: " + heap.getUsed() / 1024 / 1024 + "/" + heap.getCommitted() / 1024 / 1024 + " MB"
+                + " gc: " + collections + " collections " + collectionTime + " ms");
+    }
+
+    private static long handle(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slab(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+
+    private static class Holder extends PhantomReference<Object> {
+        private long handle;
+
+        private Holder(Object owner, long handle, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.handle = handle;
+        }
+    }
+}
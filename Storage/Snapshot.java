@@ -0,0 +1,368 @@
+package Storage;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.User;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static Storage.LogRecord.*;
+
+/**
+ * Binary snapshot of the users and backups of a node.
+ * Format: [magic][log sequence][chats][users][backups][held chats][backup chats][crc32], a chat shared by several
+ * users is written once and each user has the indexes of its chats and its read cursors. Chats held by the node
+ * for no user of it are written as indexes too
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x534E4150;
+
+    private long logSequence;
+    private ConcurrentHashMap<BigInteger, User> users = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<BigInteger, User> backups = new ConcurrentHashMap<>();
+    private ArrayList<Chat> chats = new ArrayList<>();
+    private ArrayList<Chat> backupChats = new ArrayList<>();
+
+    /**
+     * Writes a snapshot to a temporary file and renames it over the previous one
+     *
+     * @param file        snapshot file
+     * @param logSequence log records after this one have to be replayed over the snapshot
+     * @param users       users of the node
+     * @param backups     backups of the node
+     * @param heldChats   chats of the chat store
+     * @param backupChats chats of the backup chat store
+     */
+    public static void write(File file, long logSequence, Map<BigInteger, User> users, Map<BigInteger, User> backups,
+                             Collection<Chat> heldChats, Collection<Chat> backupChats) throws IOException {
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileStream), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(logSequence);
+
+            IdentityHashMap<Chat, Integer> chats = new IdentityHashMap<>();
+            collectChats(users, chats);
+            collectChats(backups, chats);
+            for (Chat chat : heldChats)
+                chats.putIfAbsent(chat, chats.size());
+            for (Chat chat : backupChats)
+                chats.putIfAbsent(chat, chats.size());
+
+            Chat[] ordered = new Chat[chats.size()];
+            for (Map.Entry<Chat, Integer> entry : chats.entrySet())
+                ordered[entry.getValue()] = entry.getKey();
+
+            out.writeInt(ordered.length);
+            for (Chat chat : ordered)
+                writeChat(out, chat);
+
+            writeUsers(out, users, chats);
+            writeUsers(out, backups, chats);
+            writeChatIndexes(out, heldChats, chats);
+            writeChatIndexes(out, backupChats, chats);
+
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not replace " + file.getPath());
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file.getPath());
+    }
+
+    /**
+     * @param file snapshot file
+     * @return snapshot or null if there is no valid snapshot
+     */
+    public static Snapshot read(File file) {
+        if (!file.exists())
+            return null;
+
+        CheckedInputStream checked;
+        try {
+            checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a snapshot");
+
+            Snapshot snapshot = new Snapshot();
+            snapshot.logSequence = in.readLong();
+
+            Chat[] chats = new Chat[in.readInt()];
+            for (int i = 0; i < chats.length; i++)
+                chats[i] = readChat(in);
+
+            readUsers(in, snapshot.users, chats);
+            readUsers(in, snapshot.backups, chats);
+            readChatIndexes(in, snapshot.chats, chats);
+            readChatIndexes(in, snapshot.backupChats, chats);
+
+            int checksum = (int) checked.getChecksum().getValue();
+            if (in.readInt() != checksum)
+                throw new IOException("Snapshot checksum mismatch");
+
+            return snapshot;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failed to read snapshot " + file.getPath());
+            return null;
+        }
+    }
+
+    private static void collectChats(Map<BigInteger, User> container, IdentityHashMap<Chat, Integer> chats) {
+        for (User user : container.values()) {
+            for (Chat chat : user.getChats().values())
+                chats.putIfAbsent(chat, chats.size());
+            for (Chat chat : user.getPendingRequests().values())
+                chats.putIfAbsent(chat, chats.size());
+        }
+    }
+
+    /**
+     * Chats keep changing while the snapshot is written, the messages in memory, pending messages and participants
+     * are copied under the chat lock together with the position of the first message and the sequence numbers,
+     * messages spilled before that position are in the history store
+     */
+    private static void writeChat(DataOutputStream out, Chat chat) throws IOException {
+        ArrayList<ChatMessage> messages;
+        ArrayList<ChatMessage> pendingMessages;
+        ArrayList<String> participants;
+        int historyOffset;
+        int handover;
+        boolean reference;
+        long sequence;
+        long membershipSequence;
+        long messageSequence;
+        synchronized (chat) {
+            messages = new ArrayList<>(chat.getChatMessages());
+            pendingMessages = new ArrayList<>(chat.getChatPendingMessages());
+            participants = new ArrayList<>(chat.getParticipants());
+            historyOffset = chat.getHistoryOffset();
+            handover = chat.getHandover();
+            reference = chat.isReference();
+            sequence = chat.getSequence();
+            membershipSequence = chat.getMembershipSequence();
+            //a message given a sequence number and still being logged is not in messages yet
+            messageSequence = chat.getMessageSequence();
+        }
+
+        writeBigInteger(out, chat.getIdChat());
+        writeString(out, chat.getChatName());
+        writeString(out, chat.getCreatorEmail());
+        out.writeLong(sequence);
+        out.writeLong(membershipSequence);
+        out.writeLong(messageSequence);
+        out.writeInt(historyOffset);
+        out.writeInt(handover);
+        out.writeBoolean(reference);
+        writeRetention(out, chat.getRetention());
+
+        out.writeInt(participants.size());
+        for (String participant : participants)
+            out.writeUTF(participant);
+
+        out.writeInt(chat.getUsersPubKeys().size());
+        for (Map.Entry<BigInteger, PublicKey> entry : chat.getUsersPubKeys().entrySet()) {
+            writeBigInteger(out, entry.getKey());
+            writePublicKey(out, entry.getValue());
+        }
+
+        out.writeInt(messages.size());
+        for (ChatMessage message : messages)
+            writeChatMessage(out, message);
+
+        out.writeInt(pendingMessages.size());
+        for (ChatMessage message : pendingMessages)
+            writeChatMessage(out, message);
+    }
+
+    private static Chat readChat(DataInputStream in) throws Exception {
+        Chat chat = new Chat(readBigInteger(in), readString(in));
+        chat.setCreatorEmail(readString(in));
+        chat.setSequences(in.readLong(), in.readLong(), in.readLong());
+        chat.setHistoryOffset(in.readInt());
+        chat.setHandover(in.readInt());
+        chat.setReference(in.readBoolean());
+        chat.setRetention(readRetention(in));
+
+        int participants = in.readInt();
+        for (int i = 0; i < participants; i++)
+            chat.addParticipant(in.readUTF());
+
+        int keys = in.readInt();
+        for (int i = 0; i < keys; i++) {
+            BigInteger userId = readBigInteger(in);
+            PublicKey key = readPublicKey(in);
+            if (key != null)
+                chat.getUsersPubKeys().put(userId, key);
+        }
+
+        int messages = in.readInt();
+        for (int i = 0; i < messages; i++)
+            chat.addChatMessage(readChatMessage(in));
+
+        int pendingMessages = in.readInt();
+        for (int i = 0; i < pendingMessages; i++)
+            chat.addPendingChatMessage(readChatMessage(in));
+
+        return chat;
+    }
+
+    private static void writeUsers(DataOutputStream out, Map<BigInteger, User> container, IdentityHashMap<Chat, Integer> chats) throws IOException {
+        ArrayList<User> toWrite = new ArrayList<>(container.values());
+
+        out.writeInt(toWrite.size());
+        for (User user : toWrite) {
+            writeUser(out, user);
+
+            writeChatIndexes(out, user.getChats().values(), chats);
+            writeChatIndexes(out, user.getPendingRequests().values(), chats);
+
+            ArrayList<Map.Entry<BigInteger, Integer>> cursors = new ArrayList<>(user.getReadCursors().entrySet());
+            out.writeInt(cursors.size());
+            for (Map.Entry<BigInteger, Integer> cursor : cursors) {
+                writeBigInteger(out, cursor.getKey());
+                out.writeInt(cursor.getValue());
+            }
+        }
+    }
+
+    /**
+     * Chats added after the chats were written are left out, they are recovered from the log
+     */
+    private static void writeChatIndexes(DataOutputStream out, Collection<Chat> userChats, IdentityHashMap<Chat, Integer> chats) throws IOException {
+        ArrayList<Integer> indexes = new ArrayList<>();
+        for (Chat chat : userChats) {
+            Integer index = chats.get(chat);
+            if (index != null)
+                indexes.add(index);
+        }
+
+        out.writeInt(indexes.size());
+        for (Integer index : indexes)
+            out.writeInt(index);
+    }
+
+    private static void readChatIndexes(DataInputStream in, ArrayList<Chat> container, Chat[] chats) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+            container.add(chats[in.readInt()]);
+    }
+
+    private static void readUsers(DataInputStream in, ConcurrentHashMap<BigInteger, User> container, Chat[] chats) throws Exception {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            User user = readUser(in);
+
+            int userChats = in.readInt();
+            for (int j = 0; j < userChats; j++)
+                user.addChat(chats[in.readInt()]);
+
+            int pendingChats = in.readInt();
+            for (int j = 0; j < pendingChats; j++)
+                user.addPendingChat(chats[in.readInt()]);
+
+            int cursors = in.readInt();
+            for (int j = 0; j < cursors; j++)
+                user.advanceReadCursor(readBigInteger(in), in.readInt());
+
+            container.put(user.getUserId(), user);
+        }
+    }
+
+    static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeUTF(user.getEmail());
+        writeBigInteger(out, user.getPassword());
+        byte[] privateKey = user.getPrivateKey();
+        out.writeInt(privateKey == null ? -1 : privateKey.length);
+        if (privateKey != null)
+            out.write(privateKey);
+        writePublicKey(out, user.getPublicKey());
+        out.writeLong(user.getVersion());
+    }
+
+    static User readUser(DataInputStream in) throws Exception {
+        String email = in.readUTF();
+        BigInteger password = readBigInteger(in);
+        int length = in.readInt();
+        byte[] privateKey = null;
+        if (length >= 0) {
+            privateKey = new byte[length];
+            in.readFully(privateKey);
+        }
+        User user = new User(email, password, privateKey, readPublicKey(in));
+        user.setVersion(in.readLong());
+        return user;
+    }
+
+    private static void writePublicKey(DataOutputStream out, PublicKey key) throws IOException {
+        writeString(out, key == null ? null : key.getAlgorithm());
+        if (key == null)
+            return;
+        byte[] encoded = key.getEncoded();
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static PublicKey readPublicKey(DataInputStream in) throws Exception {
+        String algorithm = readString(in);
+        if (algorithm == null)
+            return null;
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    public long getLogSequence() {
+        return logSequence;
+    }
+
+    public ConcurrentHashMap<BigInteger, User> getUsers() {
+        return users;
+    }
+
+    public ConcurrentHashMap<BigInteger, User> getBackups() {
+        return backups;
+    }
+
+    /**
+     * @return chats of the chat store
+     */
+    public ArrayList<Chat> getChats() {
+        return chats;
+    }
+
+    /**
+     * @return chats of the backup chat store
+     */
+    public ArrayList<Chat> getBackupChats() {
+        return backupChats;
+    }
+}
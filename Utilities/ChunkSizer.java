@@ -0,0 +1,66 @@
+package Utilities;
+
+import static Utilities.Constants.FILE_CHUNK_TARGET_TIME;
+
+/**
+ * Size of the chunks of a transfer. It starts at the minimum, for the latency of the first chunks, and follows
+ * the bytes the transfer moves in FILE_CHUNK_TARGET_TIME, measured on the chunks sent or acknowledged.
+ * It at most doubles per sample so it grows step by step, and it is always a multiple of the minimum
+ */
+public class ChunkSizer {
+
+    private static final long SAMPLE_INTERVAL = 50 * 1000000L;
+    private static final double RATE_WEIGHT = 0.25;
+
+    private int min;
+    private int max;
+    private int size;
+
+    private long sampleStart = System.nanoTime();
+    private long sampleBytes;
+
+    /**
+     * Bytes per nanosecond
+     */
+    private double rate;
+
+    /**
+     * @param min first size, chunks are multiples of it
+     * @param max size never exceeded
+     */
+    public ChunkSizer(int min, int max) {
+        this.min = min;
+        this.max = Math.max(min, max / min * min);
+        this.size = min;
+    }
+
+    /**
+     * @return size of the next chunk
+     */
+    public synchronized int next() {
+        return size;
+    }
+
+    /**
+     * Adds the bytes of a chunk sent or acknowledged to the throughput
+     *
+     * @param bytes bytes of the chunk
+     */
+    public synchronized void record(long bytes) {
+        sampleBytes += bytes;
+
+        long now = System.nanoTime();
+        long elapsed = now - sampleStart;
+        if (elapsed < SAMPLE_INTERVAL)
+            return;
+
+        double sample = (double) sampleBytes / elapsed;
+        rate = rate == 0 ? sample : rate * (1 - RATE_WEIGHT) + sample * RATE_WEIGHT;
+        sampleStart = now;
+        sampleBytes = 0;
+
+        long target = (long) (rate * FILE_CHUNK_TARGET_TIME * 1000000L);
+        target = Math.max(min, Math.min(max, Long.highestOneBit(Math.max(1, target))));
+        size = (int) Math.min((long) size * 2, target / min * min);
+    }
+}
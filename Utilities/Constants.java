@@ -41,8 +41,24 @@ public class Constants {
 
     public static final String GET_CHAT = "GET_CHAT";
 
+    //GET_CHAT_HISTORY SenderId ChatId Cursor PageSize BEFORE|AFTER
+    public static final String GET_CHAT_HISTORY = "GET_CHAT_HISTORY";
+
+    //CHAT_HISTORY SenderId ArrayList<ChatMessage> ChatId FirstPosition ChatSize
+    public static final String CHAT_HISTORY = "CHAT_HISTORY";
+
+    //GET_ALL_CHATS SenderId [ChatId:Sequence ...] chats the client already has
     public static final String GET_ALL_CHATS = "GET_ALL_CHATS";
 
+    //CHAT_DELTA SenderId Chat with the changes after the sequence the client sent
+    public static final String CHAT_DELTA = "CHAT_DELTA";
+
+    //SEARCH SenderId Offset PageSize Query...
+    public static final String SEARCH = "SEARCH";
+
+    //SEARCH_RESULTS SenderId ArrayList<ChatMessage> Offset TotalHits Query...
+    public static final String SEARCH_RESULTS = "SEARCH_RESULTS";
+
     public static final String GET_ALL_PENDING_CHATS = "GET_ALL_PENDING_CHATS";
 
     //NEW_CHAT_INVITATION CHAT_ID CHAT_NAME
@@ -51,14 +67,45 @@ public class Constants {
     //SIGNOUT SenderId userId
     public static final String NEW_MESSAGE = "NEW_MESSAGE";
 
-    public static final String FILE_TRANSACTION = "FILE_TRANSACTION";
-
     public static final String STORE_FILE_MESSAGE = "STORE_FILE_MESSAGE";
 
-    public static final String STORE_FILE_ON_PARTICIPANT = "STORE_FILE_ON_PARTICIPANT";
+    //BLOB_CHUNK SenderId ChatMessage Sequence Digest Offset Size Participant:R|N,..., sent on a link between nodes,
+    //R if the node receiving it is responsible for the participant
+    public static final String BLOB_CHUNK = "BLOB_CHUNK";
 
     public static final String DOWNLOAD_FILE = "DOWNLOAD_FILE";
 
+    //UPLOAD_START SenderId ChatMessage Size [UploadId], UploadId resumes an upload
+    public static final String UPLOAD_START = "UPLOAD_START";
+
+    //UPLOAD_READY SenderId ChatMessage UploadId Offset ChunkSize Window MaxChunkSize, the client sends the chunks
+    //from Offset on with at most Window chunks not acknowledged, chunks are multiples of ChunkSize up to MaxChunkSize
+    public static final String UPLOAD_READY = "UPLOAD_READY";
+
+    //UPLOAD_CHUNK SenderId ChatMessage UploadId Offset Crc32
+    public static final String UPLOAD_CHUNK = "UPLOAD_CHUNK";
+
+    //UPLOAD_ACK SenderId UploadId Offset Length
+    public static final String UPLOAD_ACK = "UPLOAD_ACK";
+
+    //UPLOAD_CHUNK_FAILED SenderId UploadId Offset Length, the chunk has to be sent again
+    public static final String UPLOAD_CHUNK_FAILED = "UPLOAD_CHUNK_FAILED";
+
+    //UPLOAD_COMPLETE SenderId UploadId Sha256
+    public static final String UPLOAD_COMPLETE = "UPLOAD_COMPLETE";
+
+    //UPLOAD_DONE SenderId UploadId
+    public static final String UPLOAD_DONE = "UPLOAD_DONE";
+
+    //UPLOAD_FAILED SenderId UploadId
+    public static final String UPLOAD_FAILED = "UPLOAD_FAILED";
+
+    //DOWNLOAD_STREAM SenderId Part Parts Path, sent on a connection opened for one part of the download
+    public static final String DOWNLOAD_STREAM = "DOWNLOAD_STREAM";
+
+    //FILE_STREAM SenderId Size Offset Length Filename, followed by the raw bytes of the range of the file
+    public static final String FILE_STREAM = "FILE_STREAM";
+
     //SIGNOUT SenderId userId
     public static final String SIGNOUT = "SIGNOUT";
 
@@ -67,6 +114,38 @@ public class Constants {
     //BACKUP_USER SenderId User
     public static final String BACKUP_USER = "BACKUP_USER";
 
+    //CHAIN_UPDATE SenderId User|ChatMessage|Chat|ReadCursors [NodeId:NodeIp:NodePort ...] remaining chain
+    public static final String CHAIN_UPDATE = "CHAIN_UPDATE";
+
+    //CHAIN_HOP SenderId User|ChatMessage|Chat|ReadCursors Sequence [NodeId:NodeIp:NodePort ...], a CHAIN_UPDATE
+    //sent on a link to the next node of the chain, acked with LINK_ACK once the tail applied it
+    public static final String CHAIN_HOP = "CHAIN_HOP";
+
+    //BACKUP_USERS SenderId ArrayList<User>
+    public static final String BACKUP_USERS = "BACKUP_USERS";
+
+    //BACKUP_CHAT_MESSAGE SenderId ChatMessage UserId, version of the user in the message version
+    public static final String BACKUP_CHAT_MESSAGE = "BACKUP_CHAT_MESSAGE";
+
+    //BACKUP_CHAT SenderId Chat, chat held by the node for participants of other nodes
+    public static final String BACKUP_CHAT = "BACKUP_CHAT";
+
+    //BACKUP_READ_CURSORS SenderId ReadCursors, W:Watermark then U:UserId:ChatId:Cursor and C:ChatId:Size:Sequence
+    //separated by commas, sent every READ_CURSOR_REPLICATION_INTERVAL even without cursors as a heartbeat
+    public static final String BACKUP_READ_CURSORS = "BACKUP_READ_CURSORS";
+
+    //OWN_CHAT SenderId Chat, the receiving node holds the messages of the chat from now on
+    public static final String OWN_CHAT = "OWN_CHAT";
+
+    //CHAT_READ SenderId ChatId Cursor PageSize BEFORE|AFTER, answered with CHAT_HISTORY by the node holding the chat
+    public static final String CHAT_READ = "CHAT_READ";
+
+    //CHAT_SEARCH SenderId ChatId Count Query..., answered with SEARCH_RESULTS Total Position:Score,...
+    public static final String CHAT_SEARCH = "CHAT_SEARCH";
+
+    //CHAT_APPEND SenderId ChatMessage Sequence ChatId:R|N, sent on a link to the node holding the chat
+    public static final String CHAT_APPEND = "CHAT_APPEND";
+
     //SERVER_SUCCESS SenderId code
     public static final String SERVER_SUCCESS = "SERVER_SUCCESS";
 
@@ -85,7 +164,13 @@ public class Constants {
     //CREATE_CHAT_BY_INVITATION SenderId Chat
     public static final String CREATE_CHAT_BY_INVITATION = "CREATE_CHAT_BY_INVITATION";
 
-    public static final String NEW_MESSAGE_TO_PARTICIPANT = "NEW_MESSAGE_TO_PARTICIPANT";
+    //NEW_MESSAGE_BATCH SenderId ChatMessage Sequence Position Participant:R|N,..., sent on a link between nodes,
+    //R if the node receiving it is responsible for the participant, Position is the chat size after the message
+    public static final String NEW_MESSAGE_BATCH = "NEW_MESSAGE_BATCH";
+
+    //LINK_ACK SenderId Sequence Delivered, sent back on a link once the message with the sequence was handled,
+    //Delivered is false if the node could not pass it on to every participant
+    public static final String LINK_ACK = "LINK_ACK";
 
     public static final String DOWNLOADING_FILE = "DOWNLOADING_FILE";
 
@@ -95,10 +180,28 @@ public class Constants {
     //SERVER_UPDATE_CONNECTION newServerIp newServerPort
     public static final String SERVER_UPDATE_CONNECTION = "SERVER_UPDATE_CONNECTION";
 
+    //REPLICA_ADDRESS SenderId ReplicaIp ReplicaPort
+    public static final String REPLICA_ADDRESS = "REPLICA_ADDRESS";
+
+    //Replication modes, chosen with -Dreplication=
+    public static final String PRIMARY_BACKUP_REPLICATION = "primary-backup";
+    public static final String CHAIN_REPLICATION = "chain";
+
+    //Read consistency of GET_CHAT and GET_ALL_CHATS
+    public static final String READ_PRIMARY = "READ_PRIMARY";
+    public static final String READ_BOUNDED_STALENESS = "READ_BOUNDED_STALENESS";
+    public static final String READ_YOUR_WRITES = "READ_YOUR_WRITES";
+
     //Directories
     public static final String USER_DIRECTORY = "users";
     public static final String CHAT_DIRECTORY = "chats";
     public static final String DATA_DIRECTORY = "data";
+    public static final String HINTS_DIRECTORY = "hints";
+    public static final String UPLOADS_DIRECTORY = "uploads";
+    public static final String BLOBS_DIRECTORY = "blobs";
+    public static final String SNAPSHOT_FILE = "snapshot";
+    public static final String HISTORY_DIRECTORY = "history";
+    public static final String BACKUP_HISTORY_DIRECTORY = "backup-history";
 
     //Numbers
     public static final int MAX_NUMBER_OF_THREADS = 5;
@@ -106,8 +209,56 @@ public class Constants {
     //TODO: CHANGE max finger table size to 32 on final version
     public static final int MAX_FINGER_TABLE_SIZE = 7;
     public static final int MAX_NUMBER_OF_REQUESTS = 10;
+    public static final long MAX_REPLICA_STALENESS = 5000;
+    public static final long HINT_REPLAY_INTERVAL = 2000;
+    public static final int BACKUP_BATCH_SIZE = 50;
+    public static final int MAX_REPLICATION_RATE = 500; //users per second
+    public static final int CHAIN_LENGTH = 3;
+    public static final long LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long LOG_STATS_INTERVAL = 10000;
+    public static final long SNAPSHOT_INTERVAL = 60000;
+    public static final int HISTORY_SEGMENT_SIZE = 8 * 1024 * 1024;
     public static final int AFTER = 10;
     public static final int BEFORE = 20;
+    public static final int HISTORY_PAGE_SIZE = 50;
+    public static final int MAX_HISTORY_PAGE_SIZE = 500;
+    public static final int HOT_MESSAGES_PER_CHAT = 200;
+    public static final int SEARCH_PAGE_SIZE = 10;
+    public static final int MAX_SEARCH_PAGE_SIZE = 100;
+    public static final int SEARCH_INDEX_BATCH = 500;
+    public static final long SEARCH_STATS_INTERVAL = 10000;
+    public static final long HOT_MESSAGE_BYTES = 64 * 1024 * 1024; //per chat store, overridden by -DhotMessageBytes
+    public static final long OFF_HEAP_PAYLOAD_BYTES = 256 * 1024 * 1024; //overridden by -DoffHeapPayloadBytes
+    public static final int PAYLOAD_SLAB_SIZE = 4 * 1024 * 1024;
+    public static final long PAYLOAD_STATS_INTERVAL = 10000;
+    public static final long RETENTION_MAX_AGE = 0; //ms, 0 keeps messages forever
+    public static final long RETENTION_MAX_COUNT = 0;
+    public static final long RETENTION_MAX_BYTES = 0;
+    public static final long COMPACTION_INTERVAL = 60000;
+    public static final double COMPACTION_DEAD_RATIO = 0.5;
+    public static final int COMPACTION_RATE = 4 * 1024 * 1024; //bytes per second
+    public static final int FILE_CHUNK_SIZE = 8192; //first and smallest chunk, chunks grow by multiples of it
+    public static final int MAX_FILE_CHUNK_SIZE = 1024 * 1024;
+    public static final int REPLICATION_CHUNK_SIZE = 256 * 1024;
+    public static final int LINK_WINDOW = 64; //messages of a link between nodes waiting for their ack
+    public static final long READ_CURSOR_REPLICATION_INTERVAL = 1000; //ms between batches of read cursors sent to the backup, also its heartbeat
+    public static final int CHAT_HANDOVER_ATTEMPTS = 3; //a chat changed while it was handed over is sent again
+    public static final long LINK_ACK_TIMEOUT = 10000; //ms a node waits for the acks of a message it sent on
+    public static final int[] FAN_OUT_BUCKETS = {10, 100, 1000}; //chat sizes the delivery time is printed for
+    public static final int FAN_OUT_SAMPLES = 1024;
+    public static final long FILE_CHUNK_TARGET_TIME = 10; //ms of transfer per chunk the chunk size grows toward
+    public static final long BLOB_GC_GRACE = 10 * 60 * 1000; //ms a blob without references is kept
+    public static final int MAX_OPEN_TRANSFER_FILES = 64;
+    public static final long TRANSFER_IDLE_TIMEOUT = 30000;
+    public static final int MAX_CONCURRENT_UPLOADS = 32;
+    public static final long UPLOAD_EXPIRY = 60 * 60 * 1000;
+    public static final int TRANSFER_WINDOW = 16; //chunks in flight per upload stream, overridden by -DtransferWindow
+    public static final long TRANSFER_WINDOW_BYTES = 4 * 1024 * 1024; //bytes in flight per upload stream, caps the chunk size
+    public static final int TRANSFER_STREAMS = 4; //connections per transfer, overridden by -DtransferStreams
+    public static final long MIN_TRANSFER_RANGE = 1024 * 1024; //smaller files use fewer streams
+    public static final long TRANSFER_CREDIT_TIMEOUT = 30000; //ms without acks before an upload asks where to resume
+    public static final long TRANSFER_STATS_INTERVAL = 10000;
+    public static final int FILE_STREAM_BUFFER_SIZE = 256 * 1024;
     public static final long MAX_NUMBER_OF_NODES = (long) Math.pow(2, MAX_FINGER_TABLE_SIZE);
 
     //Code meaning
@@ -119,6 +270,8 @@ public class Constants {
     public static final String ERROR_DOWNLOADING_FILE = "-6";
     public static final String USER_NOT_EXISTS = "-7";
     public static final String MESSAGE_NOT_SENT = "-8";
+    public static final String ERROR_LOADING_HISTORY = "-9";
+    public static final String CHANGE_NOT_STORED = "-10";
     public static final String USER_ADDED = "1";
     public static final String SENT_INVITATIONS = "2";
     public static final String CREATED_CHAT_WITH_SUCCESS = "3";
@@ -130,6 +283,9 @@ public class Constants {
     public static final String ADDED_PUB_KEYS = "9";
 
 
+    //Typed in an open chat to load the previous page of messages
+    public static final String LOAD_OLDER_MESSAGES = "/older";
+
     public static final String IMAGE_MESSAGE = "image";
     public static final String TEXT_MESSAGE = "text";
 
@@ -0,0 +1,47 @@
+package Utilities;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the last operations, kept in a ring buffer to print their percentiles
+ */
+public class LatencyRecorder {
+
+    private long[] samples;
+    private long count;
+
+    /**
+     * @param size number of latencies kept
+     */
+    public LatencyRecorder(int size) {
+        this.samples = new long[size];
+    }
+
+    /**
+     * @param latency latency in nanoseconds
+     */
+    public synchronized void record(long latency) {
+        samples[(int) (count % samples.length)] = latency;
+        count++;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return latency in nanoseconds of the percentile of the latencies kept, 0 if there are none
+     */
+    public synchronized long percentile(double percentile) {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        if (sorted.length == 0)
+            return 0;
+
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(percentile * sorted.length) - 1))];
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+}
@@ -4,6 +4,7 @@ import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
 import java.security.*;
 import java.sql.Timestamp;
@@ -12,6 +13,17 @@ public class Utilities {
 
     private static final String transformation = "AES";
 
+    /**
+     * One digest per thread, getInstance looks up the provider on every call
+     */
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     /**
      * Returns a hexadecimal encoded SHA-256 hash for the input String.
      *
@@ -21,8 +33,7 @@ public class Utilities {
     public static BigInteger createHash(String data) {
 
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data.getBytes("UTF-8"));
+            byte[] hash = SHA_256.get().digest(data.getBytes("UTF-8"));
             return new BigInteger(hash).abs();
 
         } catch (Exception ex) {
@@ -105,6 +116,43 @@ public class Utilities {
         }
     }
 
+    /**
+     * @return CPU time used by the current thread, in nanoseconds
+     */
+    public static long threadCpuTime() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Prints the throughput of a transfer and the CPU it used per GB
+     *
+     * @param label   transfer
+     * @param bytes   bytes transferred
+     * @param elapsed nanoseconds the transfer took
+     * @param cpu     nanoseconds of CPU the transfer used
+     */
+    public static void printThroughput(String label, long bytes, long elapsed, long cpu) {
+        double megabytes = bytes / (1024.0 * 1024.0);
+        double seconds = Math.max(1, elapsed) / 1e9;
+
+        System.out.println(label + " - " + bytes + " bytes in " + elapsed / 1000000 + " ms, "
+                + String.format("%.1f", megabytes / seconds) + " MB/s, "
+                + String.format("%.0f", bytes == 0 ? 0 : cpu / 1e6 * (1024 / megabytes)) + " ms cpu per GB");
+    }
+
+    /**
+     * Prints the share of the bytes written for a transfer in chunks spent on the message around each chunk
+     *
+     * @param label   transfer
+     * @param payload bytes of the file
+     * @param wire    bytes written, messages included
+     * @param chunks  number of chunks
+     */
+    public static void printOverhead(String label, long payload, long wire, long chunks) {
+        System.out.println(label + " - " + chunks + " chunks of " + (chunks == 0 ? 0 : payload / chunks / 1024) + " KB on average, "
+                + String.format("%.2f", wire == 0 ? 0 : (wire - payload) * 100.0 / wire) + "% envelope overhead");
+    }
+
     public static KeyPair generateUserKeys(String password) throws NoSuchProviderException, NoSuchAlgorithmException {
 
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");